@@ -19,8 +19,10 @@ import com.thimbleware.jmemcached.storage.bytebuffer.BlockStorageCacheStorage;
 import com.thimbleware.jmemcached.storage.CacheStorage;
 import com.thimbleware.jmemcached.storage.bytebuffer.BlockStoreFactory;
 import com.thimbleware.jmemcached.storage.bytebuffer.ByteBufferBlockStore;
+import com.thimbleware.jmemcached.storage.bytebuffer.SlabBlockStore;
 import org.apache.commons.cli.*;
 
+import java.io.File;
 import java.net.InetSocketAddress;
 
 import com.thimbleware.jmemcached.util.Bytes;
@@ -41,10 +43,19 @@ public class Main {
         // setup command line options
         Options options = new Options();
         options.addOption("h", "help", false, "print this help screen");
-        options.addOption("bl", "block-store", false, "use external (from JVM) heap");
+        options.addOption("bl", "block-store", false, "use compact storage, packing items into a few large arrays on the JVM heap rather than an object or more each");
         options.addOption("f", "mapped-file", false, "use external (from JVM) heap through a memory mapped file");
+        options.addOption("fp", "mapped-file-path", true, "keep the memory mapped files at this path, appending the partition number, and reload their contents on restart");
+        options.addOption("sl", "slab-store", false, "use compact storage on the JVM heap, as with the block store, but with a slab allocator");
+        options.addOption("gf", "growth-factor", true, "chunk size growth factor between slab classes of the slab allocator.  default is 1.25");
         options.addOption("bs", "block-size", true, "block size (in bytes) for external memory mapped file allocator.  default is 8 bytes");
+        options.addOption("pt", "partitions", true, "number of independently locked partitions of the external heap.  default is the number of processors, and at least 8");
+        options.addOption("ep", "eviction-policy", true, "eviction policy of the JVM heap storage: fifo, second_chance, lru or tiny_lfu.  default is fifo");
+        options.addOption("rh", "response-headers", false, "render the header of the response to a get of each item as it is stored, so gets needn't; takes some memory per item, reported in the stats.  text protocol and JVM heap storage only");
+        options.addOption("sf", "snapshot-file", true, "restore the cache from this file on startup, and snapshot it to the file on shutdown");
         options.addOption("i", "idle", true, "disconnect after idle <x> seconds");
+        options.addOption("t", "threads", true, "number of threads serving connections.  default is twice the number of processors");
+        options.addOption("et", "execution-threads", true, "number of threads to execute commands on, apart from the threads serving connections, so slow commands don't hold up others.  default is 0, to execute them on the connections' threads");
         options.addOption("p", "port", true, "port to listen on");
         options.addOption("m", "memory", true, "max memory to use; in bytes, specify K, kb, M, GB for larger units");
         options.addOption("c", "ceiling", true, "ceiling memory to use; in bytes, specify K, kb, M, GB for larger units");
@@ -94,6 +105,28 @@ public class Main {
 
         System.out.println("Setting max cache elements to " + String.valueOf(max_size));
 
+        int threads = MemCacheDaemon.DEFAULT_WORKER_COUNT;
+        if (cmdline.hasOption("t")) {
+            threads = Integer.parseInt(cmdline.getOptionValue("t"));
+        } else if (cmdline.hasOption("threads")) {
+            threads = Integer.parseInt(cmdline.getOptionValue("threads"));
+        }
+        if (threads <= 0) {
+            System.out.println("ERROR : number of threads must be positive");
+            return;
+        }
+
+        int executionThreads = 0;
+        if (cmdline.hasOption("et")) {
+            executionThreads = Integer.parseInt(cmdline.getOptionValue("et"));
+        } else if (cmdline.hasOption("execution-threads")) {
+            executionThreads = Integer.parseInt(cmdline.getOptionValue("execution-threads"));
+        }
+        if (executionThreads < 0) {
+            System.out.println("ERROR : number of execution threads may not be negative");
+            return;
+        }
+
         int idle = -1;
         if (cmdline.hasOption("i")) {
             idle = Integer.parseInt(cmdline.getOptionValue("i"));
@@ -101,6 +134,13 @@ public class Main {
             idle = Integer.parseInt(cmdline.getOptionValue("idle"));
         }
 
+        File snapshotFile = null;
+        if (cmdline.hasOption("sf")) {
+            snapshotFile = new File(cmdline.getOptionValue("sf"));
+        } else if (cmdline.hasOption("snapshot-file")) {
+            snapshotFile = new File(cmdline.getOptionValue("snapshot-file"));
+        }
+
         boolean memoryMapped = false;
         if (cmdline.hasOption("f")) {
             memoryMapped = true;
@@ -108,6 +148,15 @@ public class Main {
             memoryMapped = true;
         }
 
+        File mappedFilePath = null;
+        if (!memoryMapped && (cmdline.hasOption("fp") || cmdline.hasOption("mapped-file-path"))) {
+            System.out.println("WARN : mapped file path option is only valid for memory mapped external heap storage; ignoring");
+        } else if (cmdline.hasOption("fp")) {
+            mappedFilePath = new File(cmdline.getOptionValue("fp"));
+        } else if (cmdline.hasOption("mapped-file-path")) {
+            mappedFilePath = new File(cmdline.getOptionValue("mapped-file-path"));
+        }
+
         boolean blockStore = false;
         if (cmdline.hasOption("bl")) {
             blockStore = true;
@@ -115,6 +164,41 @@ public class Main {
             blockStore = true;
         }
 
+        boolean slabStore = false;
+        if (cmdline.hasOption("sl")) {
+            slabStore = true;
+        } else if (cmdline.hasOption("slab-store")) {
+            slabStore = true;
+        }
+
+        double growthFactor = SlabBlockStore.DEFAULT_GROWTH_FACTOR;
+        if (!slabStore && (cmdline.hasOption("gf") || cmdline.hasOption("growth-factor"))) {
+            System.out.println("WARN : growth factor option is only valid for the slab allocator; ignoring");
+        } else if (cmdline.hasOption("gf")) {
+            growthFactor = Double.parseDouble(cmdline.getOptionValue("gf"));
+        } else if (cmdline.hasOption("growth-factor")) {
+            growthFactor = Double.parseDouble(cmdline.getOptionValue("growth-factor"));
+        }
+
+        ConcurrentLinkedHashMap.EvictionPolicy evictionPolicy = ConcurrentLinkedHashMap.EvictionPolicy.FIFO;
+        String evictionPolicyName = cmdline.hasOption("ep") ? cmdline.getOptionValue("ep") : cmdline.getOptionValue("eviction-policy");
+        if (evictionPolicyName != null && (memoryMapped || blockStore || slabStore)) {
+            System.out.println("WARN : eviction policy option is only valid for JVM heap storage; ignoring");
+        } else if (evictionPolicyName != null) {
+            try {
+                evictionPolicy = ConcurrentLinkedHashMap.EvictionPolicy.valueOf(evictionPolicyName.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.out.println("ERROR : unknown eviction policy " + evictionPolicyName);
+                return;
+            }
+        }
+
+        boolean responseHeaders = cmdline.hasOption("rh") || cmdline.hasOption("response-headers");
+        if (responseHeaders && (memoryMapped || blockStore || slabStore)) {
+            System.out.println("WARN : response headers option is only valid for JVM heap storage; ignoring");
+            responseHeaders = false;
+        }
+
         boolean verbose = false;
         if (cmdline.hasOption("v")) {
             verbose = true;
@@ -128,8 +212,8 @@ public class Main {
             ceiling = Bytes.valueOf(cmdline.getOptionValue("ceiling")).bytes();
             System.out.println("Setting ceiling memory size to " + Bytes.bytes(ceiling).megabytes() + "M");
         } else if (!memoryMapped ){
-            ceiling = 1024000;
-            System.out.println("Setting ceiling memory size to default limit of " + Bytes.bytes(ceiling).megabytes() + "M");
+            // no ceiling; the block store only evicts once it is full
+            ceiling = 0;
         } else {
             System.out.println("ERROR : ceiling memory size mandatory when external memory mapped file is specified");
 
@@ -150,6 +234,19 @@ public class Main {
             blockSize = Integer.parseInt(cmdline.getOptionValue("block-size"));
         }
 
+        int partitions = Math.max(8, Runtime.getRuntime().availableProcessors());
+        if (!memoryMapped && !blockStore && !slabStore && (cmdline.hasOption("pt") || cmdline.hasOption("partitions"))) {
+            System.out.println("WARN : partitions option is only valid for external heap storage; ignoring");
+        } else if (cmdline.hasOption("pt")) {
+            partitions = Integer.parseInt(cmdline.getOptionValue("pt"));
+        } else if (cmdline.hasOption("partitions")) {
+            partitions = Integer.parseInt(cmdline.getOptionValue("partitions"));
+        }
+        if (partitions <= 0) {
+            System.out.println("ERROR : number of partitions must be positive");
+            return;
+        }
+
         long maxBytes;
         if (cmdline.hasOption("m")) {
             maxBytes = Bytes.valueOf(cmdline.getOptionValue("m")).bytes();
@@ -165,14 +262,20 @@ public class Main {
             return;
         }
 
-        if (!memoryMapped && !blockStore && maxBytes > Runtime.getRuntime().maxMemory()) {
+        if (!memoryMapped && maxBytes > Runtime.getRuntime().maxMemory()) {
             System.out.println("ERROR : JVM heap size is not big enough. use '-Xmx" + String.valueOf(maxBytes / 1024000) + "m' java argument before the '-jar' option.");
             return;
-        } else if ((memoryMapped || !blockStore) && maxBytes > Integer.MAX_VALUE) {
+        } else if ((memoryMapped || (!blockStore && !slabStore)) && maxBytes > Integer.MAX_VALUE) {
             System.out.println("ERROR : when external memory mapped, memory size may not exceed the size of Integer.MAX_VALUE (" + Bytes.bytes(Integer.MAX_VALUE).gigabytes() + "GB");
             return;
         }
 
+        if ((blockStore || slabStore) && maxBytes / partitions > ByteBufferBlockStore.MAXIMUM_STORE_SIZE) {
+            // each partition's store is a single array
+            partitions = (int) ((maxBytes + ByteBufferBlockStore.MAXIMUM_STORE_SIZE - 1) / ByteBufferBlockStore.MAXIMUM_STORE_SIZE);
+            System.out.println("Raising the number of partitions to " + partitions + " to fit each within an array");
+        }
+
         // create daemon and start it
         final MemCacheDaemon<LocalCacheElement> daemon = new MemCacheDaemon<LocalCacheElement>();
 
@@ -180,21 +283,30 @@ public class Main {
         if (blockStore) {
             BlockStoreFactory blockStoreFactory = ByteBufferBlockStore.getFactory();
 
-            storage = new BlockStorageCacheStorage(8, (int)ceiling, blockSize, maxBytes, max_size, blockStoreFactory);
+            storage = new BlockStorageCacheStorage(partitions, (int)ceiling, blockSize, maxBytes, max_size, blockStoreFactory);
+        } else if (slabStore) {
+            BlockStoreFactory blockStoreFactory = new SlabBlockStore.SlabBlockStoreFactory(growthFactor, SlabBlockStore.DEFAULT_SLAB_SIZE);
+
+            storage = new BlockStorageCacheStorage(partitions, (int)ceiling, blockSize, maxBytes, max_size, blockStoreFactory);
         }  else if (memoryMapped) {
-            BlockStoreFactory blockStoreFactory = MemoryMappedBlockStore.getFactory();
+            BlockStoreFactory blockStoreFactory = mappedFilePath != null ? MemoryMappedBlockStore.getDurableFactory(mappedFilePath) : MemoryMappedBlockStore.getFactory();
 
-            storage = new BlockStorageCacheStorage(8, (int)ceiling, blockSize, maxBytes, max_size, blockStoreFactory);
+            storage = new BlockStorageCacheStorage(partitions, (int)ceiling, blockSize, maxBytes, max_size, blockStoreFactory);
         }
         else  {
-            storage = ConcurrentLinkedHashMap.create(ConcurrentLinkedHashMap.EvictionPolicy.FIFO, max_size, maxBytes);
+            storage = ConcurrentLinkedHashMap.create(evictionPolicy, max_size, maxBytes);
         }
 
 
-        daemon.setCache(new CacheImpl(storage));
+        CacheImpl cache = new CacheImpl(storage);
+        cache.setRenderResponseHeaders(responseHeaders && !binary);
+        daemon.setCache(cache);
         daemon.setBinary(binary);
         daemon.setAddr(addr);
         daemon.setIdleTime(idle);
+        daemon.setWorkerCount(threads);
+        daemon.setExecutionThreads(executionThreads);
+        daemon.setSnapshotFile(snapshotFile);
         daemon.setVerbose(verbose);
         daemon.start();
 
@@ -6,6 +6,8 @@ import java.util.Set;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
 
 import static java.lang.String.*;
 
@@ -22,6 +24,8 @@ public abstract class AbstractCache<CACHE_ELEMENT extends CacheElement> implemen
     protected final AtomicInteger getHits = new AtomicInteger();
     protected final AtomicInteger getMisses = new AtomicInteger();
     protected final AtomicLong casCounter = new AtomicLong(1);
+    protected final AtomicLong crawlerReclaimed = new AtomicLong();
+    protected final AtomicLong crawlerReclaimedBytes = new AtomicLong();
 
     public AbstractCache() {
         initStats();
@@ -31,7 +35,7 @@ public abstract class AbstractCache<CACHE_ELEMENT extends CacheElement> implemen
      * @return the current time in seconds (from epoch), used for expiries, etc.
      */
     public static int Now() {
-        return (int) (System.currentTimeMillis());
+        return (int) (System.currentTimeMillis() / 1000);
     }
 
     protected abstract Set<Key> keys();
@@ -42,6 +46,10 @@ public abstract class AbstractCache<CACHE_ELEMENT extends CacheElement> implemen
 
     public abstract long getCurrentBytes();
 
+    public abstract long getCurrentDataBytes();
+
+    public abstract long getCurrentResponseHeaderBytes();
+
 
     public final int getGetCmds() {
         return getCmds.get();
@@ -59,6 +67,23 @@ public abstract class AbstractCache<CACHE_ELEMENT extends CacheElement> implemen
         return getMisses.get();
     }
 
+    /**
+     * @return how many bytes the storage uses for each byte of the entries it holds
+     */
+    public final String getMemoryOverheadRatio() {
+        long dataBytes = getCurrentDataBytes();
+        return dataBytes == 0 ? "0.0000" : format(Locale.US, "%.4f", (double) getCurrentBytes() / dataBytes);
+    }
+
+    /**
+     * @return the proportion of gets which have been hits so far, to compare eviction policies by
+     */
+    public final String getHitRatio() {
+        long hits = getHits.get();
+        long lookups = hits + getMisses.get();
+        return lookups == 0 ? "0.0000" : format(Locale.US, "%.4f", (double) hits / lookups);
+    }
+
     /**
      * Return runtime statistics
      *
@@ -66,6 +91,12 @@ public abstract class AbstractCache<CACHE_ELEMENT extends CacheElement> implemen
      * @return the full command response
      */
     public final Map<String, Set<String>> stat(String arg) {
+        if ("slabs".equals(arg)) {
+            Map<String, Set<String>> slabs = new LinkedHashMap<String, Set<String>>();
+            slabStats(slabs);
+            return slabs;
+        }
+
         Map<String, Set<String>> result = new HashMap<String, Set<String>>();
 
         // stats we know
@@ -74,12 +105,18 @@ public abstract class AbstractCache<CACHE_ELEMENT extends CacheElement> implemen
         multiSet(result, "cmd_sets", valueOf(getSetCmds()));
         multiSet(result, "get_hits", valueOf(getGetHits()));
         multiSet(result, "get_misses", valueOf(getGetMisses()));
+        multiSet(result, "get_hit_ratio", getHitRatio());
         multiSet(result, "time", valueOf(valueOf(Now())));
         multiSet(result, "uptime", valueOf(Now() - this.started.longValue()));
         multiSet(result, "cur_items", valueOf(this.getCurrentItems()));
         multiSet(result, "limit_maxbytes", valueOf(this.getLimitMaxBytes()));
         multiSet(result, "current_bytes", valueOf(this.getCurrentBytes()));
+        multiSet(result, "current_data_bytes", valueOf(this.getCurrentDataBytes()));
+        multiSet(result, "memory_overhead_ratio", getMemoryOverheadRatio());
+        multiSet(result, "current_response_header_bytes", valueOf(this.getCurrentResponseHeaderBytes()));
         multiSet(result, "free_bytes", valueOf(Runtime.getRuntime().freeMemory()));
+        multiSet(result, "crawler_reclaimed", valueOf(crawlerReclaimed.get()));
+        multiSet(result, "crawler_reclaimed_bytes", valueOf(crawlerReclaimedBytes.get()));
 
         // Not really the same thing precisely, but meaningful nonetheless. potentially this should be renamed
         multiSet(result, "pid", valueOf(Thread.currentThread().getId()));
@@ -96,7 +133,16 @@ public abstract class AbstractCache<CACHE_ELEMENT extends CacheElement> implemen
         return result;
     }
 
-    private void multiSet(Map<String, Set<String>> map, String key, String val) {
+    /**
+     * Add the usage of each slab size class, as "stats slabs" gives it, the classes numbered from 1 as memcached
+     * numbers them. Caches whose storage doesn't allocate from slabs have nothing to add.
+     *
+     * @param result the statistics to add to
+     */
+    protected void slabStats(Map<String, Set<String>> result) {
+    }
+
+    protected final void multiSet(Map<String, Set<String>> map, String key, String val) {
         Set<String> cur = map.get(key);
         if (cur == null) {
             cur = new HashSet<String>();
@@ -109,7 +155,7 @@ public abstract class AbstractCache<CACHE_ELEMENT extends CacheElement> implemen
      * Initialize all statistic counters
      */
     protected void initStats() {
-        started.set(System.currentTimeMillis());
+        started.set(Now());
 //        getCmds.set(0);
 //        setCmds.set(0);
 //        getHits.set(0);
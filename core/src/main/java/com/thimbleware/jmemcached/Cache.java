@@ -1,5 +1,6 @@
 package com.thimbleware.jmemcached;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Set;
 import java.util.Map;
@@ -88,12 +89,31 @@ public interface Cache<CACHE_ELEMENT extends CacheElement> {
     Integer get_add(Key key, int mod);
 
     /**
-     * Get element(s) from the cache
+     * Get element(s) from the cache. Their data may refer directly to the cache's storage, so each element should
+     * be released once it has been written out.
      * @param keys the key for the element to lookup
      * @return the element, or 'null' in case of cache miss.
+     * @see CacheElement#release()
      */
     CACHE_ELEMENT[] get(Key ... keys);
 
+    /**
+     * Give an element another expiry, without storing it again.
+     * @param key the key of the element
+     * @param expire the time (in seconds) at which the element is to expire, or 0 for never
+     * @return whether there was an element to touch
+     */
+    boolean touch(Key key, long expire);
+
+    /**
+     * Get element(s) from the cache, as {@link #get(Key[])} does, giving each found another expiry as it is.
+     * @param expire the time (in seconds) at which the elements are to expire, or 0 for never
+     * @param keys the keys of the elements to look up
+     * @return the elements, with their new expiry, or 'null' in place of each miss
+     * @see CacheElement#release()
+     */
+    CACHE_ELEMENT[] getAndTouch(long expire, Key ... keys);
+
     /**
      * Flush all cache entries
      * @return command response
@@ -101,8 +121,9 @@ public interface Cache<CACHE_ELEMENT extends CacheElement> {
     boolean flush_all();
 
     /**
-     * Flush all cache entries with a timestamp after a given expiration time
-     * @param expire the flush time in seconds
+     * Flush all cache entries stored before a given time
+     * @param expire the delay in seconds before the flush takes effect, or if over thirty days the time (in seconds
+     *               since the epoch) at which it does; 0 to flush at once
      * @return command response
      */
     boolean flush_all(int expire);
@@ -113,6 +134,24 @@ public interface Cache<CACHE_ELEMENT extends CacheElement> {
      */
     void close() throws IOException;
 
+    /**
+     * Write a snapshot of the cache's contents to a file, while it goes on serving requests.
+     * @param file the file to write to, which is replaced once the snapshot is complete
+     * @param compress whether to compress the file
+     * @return the number of items written
+     * @throws IOException thrown on failure to write the file
+     */
+    long snapshot(File file, boolean compress) throws IOException;
+
+    /**
+     * Load a snapshot written by {@link #snapshot(java.io.File, boolean)} into the cache, which should be empty
+     * and not yet serving requests.
+     * @param file the file to read from
+     * @return the number of items loaded
+     * @throws IOException thrown on failure to read the file, or if it is corrupt
+     */
+    long restore(File file) throws IOException;
+
 
     /**
      * @return the # of items in the cache
@@ -129,6 +168,17 @@ public interface Cache<CACHE_ELEMENT extends CacheElement> {
      */
     long getCurrentBytes();
 
+    /**
+     * @return the number of bytes of the entries themselves, without the storage's overhead for them
+     */
+    long getCurrentDataBytes();
+
+    /**
+     * @return the number of bytes taken by response headers rendered for the entries as they were stored, which
+     * are part of {@link #getCurrentBytes()}
+     */
+    long getCurrentResponseHeaderBytes();
+
     /**
      * @return the number of get commands executed
      */
@@ -157,8 +207,8 @@ public interface Cache<CACHE_ELEMENT extends CacheElement> {
     Map<String, Set<String>> stat(String arg);
 
     /**
-     * Called periodically by the network event loop to process any pending events.
-     * (such as delete queues, etc.)
+     * Process any pending events (such as delayed deletes which have fallen due). The cache does this itself in
+     * the background, so there is no need to call it on each request.
      */
     void asyncEventPing();
 
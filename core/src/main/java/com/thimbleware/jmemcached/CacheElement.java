@@ -35,9 +35,23 @@ public interface CacheElement extends Serializable, SizedItem {
 
     long getBlockedUntil();
 
+    long getStored();
+
+    /**
+     * @return the start of the text protocol's response to a get of the element, "VALUE &lt;key&gt; &lt;flags&gt;
+     * &lt;bytes&gt;", if it was rendered when the element was stored; otherwise null
+     */
+    ChannelBuffer getResponseHeader();
+
     CacheElement append(LocalCacheElement element);
 
     CacheElement prepend(LocalCacheElement element);
 
     LocalCacheElement.IncrDecrResult add(int mod);
+
+    /**
+     * Signal that a value returned by {@link Cache#get} has been written out and is no longer needed, allowing the
+     * storage to reuse the memory behind its data.
+     */
+    void release();
 }
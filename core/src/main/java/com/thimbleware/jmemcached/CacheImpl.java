@@ -15,36 +15,120 @@
  */
 package com.thimbleware.jmemcached;
 
+import com.thimbleware.jmemcached.storage.CacheSnapshot;
 import com.thimbleware.jmemcached.storage.CacheStorage;
+import com.thimbleware.jmemcached.storage.Crawl;
+import com.thimbleware.jmemcached.storage.bytebuffer.BlockStorageCacheStorage;
+import com.thimbleware.jmemcached.storage.bytebuffer.SlabBlockStore;
+import com.thimbleware.jmemcached.util.TimingWheel;
 import org.jboss.netty.buffer.ChannelBuffers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Default implementation of the cache handler, supporting local memory cache elements.
+ * <p/>
+ * Flushing doesn't touch the storage. Instead it records a stamp (see {@link LocalCacheElement#stamp()}), and
+ * entries stored at or before it are treated as absent from then on, and removed as they are come upon.
+ * <p/>
+ * Expired and flushed entries are also reclaimed in the background, by crawling through a small part of the
+ * storage at a time (see {@link CacheStorage#crawl(Crawl, int)}).
+ * <p/>
+ * Delayed deletes leave a blocked placeholder in place of the entry, which is removed when its time is up by a
+ * timing wheel driven from the same background thread.
  */
 public final class CacheImpl extends AbstractCache<LocalCacheElement> implements Cache<LocalCacheElement> {
 
+    final Logger logger = LoggerFactory.getLogger(CacheImpl.class);
+
+    /**
+     * The interval between steps of the expiry crawl, and roughly how many entries each step looks at
+     */
+    private static final long CRAWL_INTERVAL_MILLIS = 100;
+    private static final int CRAWL_LIMIT = 10000;
+
+    /**
+     * The resolution of delayed deletes, and the number of ticks in a turn of the wheel they are kept on
+     */
+    private static final long DELETE_TICK_MILLIS = 100;
+    private static final int DELETE_WHEEL_TICKS = 1024;
+
     final CacheStorage<Key, LocalCacheElement> storage;
-    final DelayQueue<DelayedMCElement> deleteQueue;
+    final TimingWheel<LocalCacheElement> deleteWheel;
+    private final TimingWheel.Expiry<LocalCacheElement> deleteExpiry = new TimingWheel.Expiry<LocalCacheElement>() {
+        public void expired(LocalCacheElement placeHolder) {
+            // only if the placeholder hasn't been replaced in the meantime
+            storage.remove(placeHolder.getKey(), placeHolder);
+        }
+    };
     private final ScheduledExecutorService scavenger;
 
+    /**
+     * Whether to render the text protocol's response header for each entry as it is stored
+     */
+    private volatile boolean renderResponseHeaders;
+
+    /**
+     * Entries stamped at or before this have been flushed; 0 if the cache has never been flushed
+     */
+    private final AtomicLong flushedThrough = new AtomicLong();
+
+    /**
+     * The time (in ms) at which a delayed flush is to take effect, or 0 if none is pending
+     */
+    private final AtomicLong pendingFlush = new AtomicLong();
+
     /**
      * @inheritDoc
      */
     public CacheImpl(CacheStorage<Key, LocalCacheElement> storage) {
         super();
         this.storage = storage;
-        deleteQueue = new DelayQueue<DelayedMCElement>();
+        if (storage instanceof BlockStorageCacheStorage) {
+            // durable storage comes back with entries whose CAS values clients may still hold
+            long restoredCas = ((BlockStorageCacheStorage) storage).getRestoredCasUnique();
+            if (restoredCas >= casCounter.get()) casCounter.set(restoredCas + 1);
+        }
+        deleteWheel = new TimingWheel<LocalCacheElement>(DELETE_TICK_MILLIS, DELETE_WHEEL_TICKS);
 
         scavenger = Executors.newScheduledThreadPool(1);
         scavenger.scheduleAtFixedRate(new Runnable(){
             public void run() {
-                asyncEventPing();
+                try {
+                    asyncEventPing();
+                } catch (RuntimeException e) {
+                    logger.error("delayed delete failed", e);
+                }
             }
-        }, 10, 2, TimeUnit.SECONDS);
+        }, DELETE_TICK_MILLIS, DELETE_TICK_MILLIS, TimeUnit.MILLISECONDS);
+        scavenger.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    crawl();
+                } catch (RuntimeException e) {
+                    // keep crawling; a failed step only leaves entries for the next pass
+                    logger.error("expiry crawl failed", e);
+                }
+            }
+        }, CRAWL_INTERVAL_MILLIS, CRAWL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Take one step of the crawl through the storage for expired and flushed entries.
+     */
+    void crawl() {
+        Crawl crawl = new Crawl(LocalCacheElement.Now(), flushStamp());
+        storage.crawl(crawl, CRAWL_LIMIT);
+        crawlerReclaimed.addAndGet(crawl.getReclaimed());
+        crawlerReclaimedBytes.addAndGet(crawl.getReclaimedBytes());
     }
 
     /**
@@ -60,12 +144,15 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
             placeHolder.setData(ChannelBuffers.buffer(0));
             placeHolder.block(Now() + (long)time);
 
-            storage.replace(key, placeHolder);
-
-            // this must go on a queue for processing later...
-            deleteQueue.add(new DelayedMCElement(placeHolder));
-        } else
-            removed = storage.remove(key) != null;
+            LocalCacheElement old = storage.replace(key, placeHolder);
+            if (old != null) {
+                deleteWheel.schedule(placeHolder, time * 1000L);
+                removed = !isFlushed(old) && !isBlocked(old);
+            }
+        } else {
+            LocalCacheElement old = storage.remove(key);
+            removed = old != null && !isFlushed(old);
+        }
 
         if (removed) return DeleteResponse.DELETED;
         else return DeleteResponse.NOT_FOUND;
@@ -78,7 +165,10 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
     public StoreResponse add(LocalCacheElement e) {
         final long origCasUnique = e.getCasUnique();
         e.setCasUnique(casCounter.getAndIncrement());
-        final boolean stored = storage.putIfAbsent(e.getKey(), e) == null;
+        final LocalCacheElement existing = storage.putIfAbsent(e.getKey(), prepare(e));
+        // an entry which has been flushed or has expired is as good as absent
+        final boolean stored = existing == null
+                || ((isFlushed(existing) || isExpired(existing)) && storage.replace(e.getKey(), existing, e));
         // we should restore the former cas so that the object isn't left dirty
         if (!stored) {
             e.setCasUnique(origCasUnique);
@@ -90,20 +180,29 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
      * @inheritDoc
      */
     public StoreResponse replace(LocalCacheElement e) {
-        return storage.replace(e.getKey(), e) != null ? StoreResponse.STORED : StoreResponse.NOT_STORED;
+        LocalCacheElement old = storage.get(e.getKey());
+        if (old != null && isFlushed(old)) {
+            storage.remove(e.getKey(), old);
+            return StoreResponse.NOT_STORED;
+        }
+        return storage.replace(e.getKey(), prepare(e)) != null ? StoreResponse.STORED : StoreResponse.NOT_STORED;
     }
 
     /**
      * @inheritDoc
      */
     public StoreResponse append(LocalCacheElement element) {
-        LocalCacheElement old = storage.get(element.getKey());
-        if (old == null || isBlocked(old) || isExpired(old)) {
-            getMisses.incrementAndGet();
-            return StoreResponse.NOT_FOUND;
-        }
-        else {
-            return storage.replace(old.getKey(), old, old.append(element)) ? StoreResponse.STORED : StoreResponse.NOT_STORED;
+        LocalCacheElement old = storage.lease(element.getKey());
+        try {
+            if (old == null || isBlocked(old) || isExpired(old) || isFlushed(old)) {
+                getMisses.incrementAndGet();
+                return StoreResponse.NOT_FOUND;
+            }
+            else {
+                return storage.replace(old.getKey(), old, prepare(old.append(element))) ? StoreResponse.STORED : StoreResponse.NOT_STORED;
+            }
+        } finally {
+            if (old != null) old.release();
         }
     }
 
@@ -111,13 +210,17 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
      * @inheritDoc
      */
     public StoreResponse prepend(LocalCacheElement element) {
-        LocalCacheElement old = storage.get(element.getKey());
-        if (old == null || isBlocked(old) || isExpired(old)) {
-            getMisses.incrementAndGet();
-            return StoreResponse.NOT_FOUND;
-        }
-        else {
-            return storage.replace(old.getKey(), old, old.prepend(element)) ? StoreResponse.STORED : StoreResponse.NOT_STORED;
+        LocalCacheElement old = storage.lease(element.getKey());
+        try {
+            if (old == null || isBlocked(old) || isExpired(old) || isFlushed(old)) {
+                getMisses.incrementAndGet();
+                return StoreResponse.NOT_FOUND;
+            }
+            else {
+                return storage.replace(old.getKey(), old, prepare(old.prepend(element))) ? StoreResponse.STORED : StoreResponse.NOT_STORED;
+            }
+        } finally {
+            if (old != null) old.release();
         }
     }
 
@@ -129,7 +232,7 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
 
         e.setCasUnique(casCounter.getAndIncrement());
 
-        storage.put(e.getKey(), e);
+        storage.put(e.getKey(), prepare(e));
 
         return StoreResponse.STORED;
     }
@@ -139,23 +242,27 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
      */
     public StoreResponse cas(Long cas_key, LocalCacheElement e) {
         // have to get the element
-        LocalCacheElement element = storage.get(e.getKey());
-        if (element == null || isBlocked(element)) {
-            getMisses.incrementAndGet();
-            return StoreResponse.NOT_FOUND;
-        }
-
-        if (element.getCasUnique() == cas_key) {
-            // casUnique matches, now set the element
-        	e.setCasUnique(casCounter.getAndIncrement());
-            if (storage.replace(e.getKey(), element, e)) return StoreResponse.STORED;
-            else {
+        LocalCacheElement element = storage.lease(e.getKey());
+        try {
+            if (element == null || isBlocked(element) || isFlushed(element)) {
                 getMisses.incrementAndGet();
                 return StoreResponse.NOT_FOUND;
             }
-        } else {
-            // cas didn't match; someone else beat us to it
-            return StoreResponse.EXISTS;
+
+            if (element.getCasUnique() == cas_key) {
+                // casUnique matches, now set the element
+                e.setCasUnique(casCounter.getAndIncrement());
+                if (storage.replace(e.getKey(), element, prepare(e))) return StoreResponse.STORED;
+                else {
+                    getMisses.incrementAndGet();
+                    return StoreResponse.NOT_FOUND;
+                }
+            } else {
+                // cas didn't match; someone else beat us to it
+                return StoreResponse.EXISTS;
+            }
+        } finally {
+            if (element != null) element.release();
         }
     }
 
@@ -163,17 +270,43 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
      * @inheritDoc
      */
     public Integer get_add(Key key, int mod) {
-        LocalCacheElement old = storage.get(key);
-        if (old == null || isBlocked(old) || isExpired(old)) {
-            getMisses.incrementAndGet();
-            return null;
-        } else {
-            LocalCacheElement.IncrDecrResult result = old.add(mod);
-            return storage.replace(old.getKey(), old, result.replace) ? result.oldValue : null;
+        LocalCacheElement old = storage.lease(key);
+        try {
+            if (old == null || isBlocked(old) || isExpired(old) || isFlushed(old)) {
+                getMisses.incrementAndGet();
+                return null;
+            } else {
+                LocalCacheElement.IncrDecrResult result = old.add(mod);
+                return storage.replace(old.getKey(), old, prepare(result.replace)) ? result.oldValue : null;
+            }
+        } finally {
+            if (old != null) old.release();
         }
     }
 
 
+    /**
+     * Ready an element to be stored, rendering its response header first if that has been asked for.
+     */
+    private LocalCacheElement prepare(LocalCacheElement e) {
+        if (renderResponseHeaders) e.renderResponseHeader();
+        return e;
+    }
+
+    /**
+     * @param renderResponseHeaders whether to render the start of the text protocol's response to a get of each
+     *                              entry as it is stored, and keep it with the entry, so that gets need only write
+     *                              it out; at the cost of the memory it takes, which is reported in the stats.
+     *                              Only storage which keeps entries as objects, on the JVM heap, keeps the headers.
+     */
+    public void setRenderResponseHeaders(boolean renderResponseHeaders) {
+        this.renderResponseHeaders = renderResponseHeaders;
+    }
+
+    public boolean isRenderResponseHeaders() {
+        return renderResponseHeaders;
+    }
+
     protected boolean isBlocked(CacheElement e) {
         return e.isBlocked() && e.getBlockedUntil() > Now();
     }
@@ -183,6 +316,46 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
         return e.getExpire() != 0 && e.getExpire() < Now();
     }
 
+    /**
+     * @return true if the element was stored before a flush which has since taken effect
+     */
+    protected boolean isFlushed(CacheElement e) {
+        return e.getStored() <= flushStamp();
+    }
+
+    /**
+     * @return the stamp at or before which entries have been flushed, taking account of a delayed flush which
+     * is now due
+     */
+    private long flushStamp() {
+        long pending = pendingFlush.get();
+        if (pending != 0 && pending <= System.currentTimeMillis() && pendingFlush.compareAndSet(pending, 0)) {
+            flushThrough(pending - 1);
+        }
+        return flushedThrough.get();
+    }
+
+    private void flushThrough(long stamp) {
+        long flushed;
+        do {
+            flushed = flushedThrough.get();
+            if (flushed >= stamp) return;
+        } while (!flushedThrough.compareAndSet(flushed, stamp));
+    }
+
+    /**
+     * Remove those entries which have been flushed but not yet come across.
+     */
+    private void removeFlushed() {
+        if (flushedThrough.get() == 0 && pendingFlush.get() == 0) return;
+
+        storage.visit(new CacheStorage.Visitor<LocalCacheElement>() {
+            public void visit(LocalCacheElement value) {
+                if (isFlushed(value)) storage.remove(value.getKey(), value);
+            }
+        });
+    }
+
     /**
      * @inheritDoc
      */
@@ -190,13 +363,22 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
         getCmds.incrementAndGet();//updates stats
 
         LocalCacheElement[] elements = new LocalCacheElement[keys.length];
+        storage.lease(keys, elements);
+
         int x = 0;
         int hits = 0;
         int misses = 0;
         for (Key key : keys) {
-            LocalCacheElement e = storage.get(key);
+            LocalCacheElement e = elements[x];
+            if (e != null && isFlushed(e)) {
+                // reclaim it now rather than leaving it to be evicted
+                storage.remove(key, e);
+                e.release();
+                e = null;
+            }
             if (e == null || isExpired(e) || e.isBlocked()) {
                 misses++;
+                if (e != null) e.release();
 
                 elements[x] = null;
             } else {
@@ -214,6 +396,66 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
 
     }
 
+    /**
+     * @inheritDoc
+     */
+    public boolean touch(Key key, long expire) {
+        LocalCacheElement touched = touched(key, expire);
+        if (touched == null) return false;
+
+        touched.release();
+        return true;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public LocalCacheElement[] getAndTouch(long expire, Key ... keys) {
+        getCmds.incrementAndGet();//updates stats
+
+        LocalCacheElement[] elements = new LocalCacheElement[keys.length];
+        int hits = 0;
+        for (int i = 0; i < keys.length; i++) {
+            elements[i] = touched(keys[i], expire);
+            if (elements[i] != null) hits++;
+        }
+        getMisses.addAndGet(keys.length - hits);
+        getHits.addAndGet(hits);
+
+        return elements;
+    }
+
+    /**
+     * Replace an element with a copy of it which expires at another time; retrying if it is changed meanwhile, as
+     * a touch isn't expected to fail while there is something to touch.
+     *
+     * The element is leased, not just got, as the copy shares its data: storage which reuses memory would
+     * otherwise be free to hand that data's memory to another element as soon as the copy replaces it.
+     *
+     * @return the copy now stored, which is to be released; or null if there was no element
+     */
+    private LocalCacheElement touched(Key key, long expire) {
+        while (true) {
+            final LocalCacheElement old = storage.lease(key);
+            if (old == null) return null;
+            if (isBlocked(old) || isExpired(old) || isFlushed(old)) {
+                old.release();
+                return null;
+            }
+
+            LocalCacheElement touched = prepare(old.touch(expire));
+            if (storage.replace(key, old, touched)) {
+                touched.onRelease(new Runnable() {
+                    public void run() {
+                        old.release();
+                    }
+                });
+                return touched;
+            }
+            old.release();
+        }
+    }
+
     /**
      * @inheritDoc
      */
@@ -225,8 +467,13 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
      * @inheritDoc
      */
     public boolean flush_all(int expire) {
-        // TODO implement this, it isn't right... but how to handle efficiently? (don't want to linear scan entire cacheStorage)
-        storage.clear();
+        if (expire <= 0) {
+            flushThrough(LocalCacheElement.reserveStamp());
+        } else {
+            // like expiry times, delays longer than thirty days are taken to be absolute times
+            long delay = expire * 1000L;
+            pendingFlush.set(delay < CacheElement.THIRTY_DAYS ? System.currentTimeMillis() + delay : delay);
+        }
         return true;
     }
 
@@ -235,9 +482,26 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
      */
     public void close() throws IOException {
         scavenger.shutdown();;
+        // storage which outlives the cache mustn't bring flushed entries back
+        removeFlushed();
         storage.close();
     }
 
+    /**
+     * @inheritDoc
+     */
+    public long snapshot(File file, boolean compress) throws IOException {
+        removeFlushed();
+        return CacheSnapshot.write(storage, file, compress);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    public long restore(File file) throws IOException {
+        return CacheSnapshot.read(storage, file, casCounter);
+    }
+
     /**
      * @inheritDoc
      */
@@ -274,33 +538,52 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
      * @inheritDoc
      */
     @Override
-    public void asyncEventPing() {
-        DelayedMCElement toDelete = deleteQueue.poll();
-        if (toDelete != null) {
-            storage.remove(toDelete.element.getKey());
-        }
+    public long getCurrentDataBytes() {
+        return storage.getDataUsed();
     }
 
-
     /**
-     * Delayed key blocks get processed occasionally.
+     * @inheritDoc
      */
-    protected static class DelayedMCElement implements Delayed {
-        private CacheElement element;
-
-        public DelayedMCElement(CacheElement element) {
-            this.element = element;
-        }
+    public long getCurrentResponseHeaderBytes() {
+        return storage.getResponseHeadersUsed();
+    }
 
-        public long getDelay(TimeUnit timeUnit) {
-            return timeUnit.convert(element.getBlockedUntil() - Now(), TimeUnit.MILLISECONDS);
+    /**
+     * @inheritDoc
+     * <p/>
+     * Only the classes which have slabs are listed.
+     */
+    @Override
+    protected void slabStats(Map<String, Set<String>> result) {
+        if (!(storage instanceof BlockStorageCacheStorage)) return;
+
+        List<SlabBlockStore.SlabClassStats> classes = ((BlockStorageCacheStorage) storage).getSlabClassStats();
+        int activeSlabs = 0;
+        long malloced = 0;
+        for (int i = 0; i < classes.size(); i++) {
+            SlabBlockStore.SlabClassStats stats = classes.get(i);
+            if (stats.getTotalSlabs() == 0) continue;
+
+            String id = (i + 1) + ":";
+            multiSet(result, id + "chunk_size", String.valueOf(stats.getChunkSize()));
+            multiSet(result, id + "chunks_per_page", String.valueOf(stats.getChunksPerSlab()));
+            multiSet(result, id + "total_pages", String.valueOf(stats.getTotalSlabs()));
+            multiSet(result, id + "total_chunks", String.valueOf(stats.getTotalChunks()));
+            multiSet(result, id + "used_chunks", String.valueOf(stats.getUsedChunks()));
+            multiSet(result, id + "free_chunks", String.valueOf(stats.getFreeChunks()));
+            activeSlabs++;
+            malloced += stats.getTotalChunks() * stats.getChunkSize();
         }
+        multiSet(result, "active_slabs", String.valueOf(activeSlabs));
+        multiSet(result, "total_malloced", String.valueOf(malloced));
+    }
 
-        public int compareTo(Delayed delayed) {
-            if (!(delayed instanceof CacheImpl.DelayedMCElement))
-                return -1;
-            else
-                return element.getKey().toString().compareTo(((DelayedMCElement) delayed).element.getKey().toString());
-        }
+    /**
+     * Remove the entries whose delayed deletes have fallen due.
+     */
+    @Override
+    public void asyncEventPing() {
+        deleteWheel.advance(System.currentTimeMillis(), deleteExpiry);
     }
 }
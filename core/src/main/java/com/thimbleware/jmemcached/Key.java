@@ -18,6 +18,14 @@ public class Key {
         this.hashCode = this.bytes.hashCode();
     }
 
+    /**
+     * A key viewing part of a buffer, without first slicing the part out of it.
+     */
+    public Key(ChannelBuffer buffer, int index, int length) {
+        this.bytes = buffer.slice(index, length);
+        this.hashCode = this.bytes.hashCode();
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
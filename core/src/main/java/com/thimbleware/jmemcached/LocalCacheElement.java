@@ -16,6 +16,7 @@
 package com.thimbleware.jmemcached;
 
 import com.thimbleware.jmemcached.util.BufferUtils;
+import com.thimbleware.jmemcached.util.HeapSize;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 
@@ -24,6 +25,7 @@ import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -37,6 +39,14 @@ public final class LocalCacheElement implements CacheElement {
     private long casUnique = 0L;
     private boolean blocked = false;
     private long blockedUntil;
+    private long stored = stamp();
+    private transient Runnable releaser;
+    private transient ChannelBuffer responseHeader;
+
+    /**
+     * Just past the last stamp reserved by {@link #reserveStamp()}
+     */
+    private static final AtomicLong lastStamp = new AtomicLong();
 
     public LocalCacheElement() {
     }
@@ -59,10 +69,90 @@ public final class LocalCacheElement implements CacheElement {
         return (int) (System.currentTimeMillis() / 1000);
     }
 
+    /**
+     * @param expiration an expiration as the protocols give it: 0 for none, a number of seconds from now up to
+     *                   thirty days, or past that the time (in seconds since the epoch)
+     * @return the time (in seconds) at which to expire, or 0 for never
+     */
+    public static long expiry(int expiration) {
+        if (expiration == 0 || expiration > THIRTY_DAYS_SECONDS) return expiration;
+        return Now() + expiration;
+    }
+
+    private static final int THIRTY_DAYS_SECONDS = 30 * 24 * 60 * 60;
+
+    /**
+     * @return the current time in ms, or just past the last stamp reserved if that is later; so stamps never go
+     * backwards, and can be compared with those of earlier runs
+     */
+    public static long stamp() {
+        return Math.max(System.currentTimeMillis(), lastStamp.get());
+    }
+
+    /**
+     * @return a stamp no earlier than any returned by {@link #stamp()} so far, and earlier than any it returns
+     * from now on
+     */
+    public static long reserveStamp() {
+        while (true) {
+            long last = lastStamp.get();
+            long stamp = Math.max(System.currentTimeMillis(), last);
+            if (lastStamp.compareAndSet(last, stamp + 1)) return stamp;
+        }
+    }
+
     public int size() {
         return getData().capacity();
     }
 
+    /**
+     * The element itself: header, expire, flags, data, key, cas, blocked, blockedUntil, stored, releaser and
+     * response header
+     */
+    private static final int SHALLOW_SIZE = HeapSize.align(HeapSize.OBJECT_HEADER + 8 + 4 + HeapSize.REFERENCE
+            + HeapSize.REFERENCE + 8 + 1 + 8 + 8 + HeapSize.REFERENCE + HeapSize.REFERENCE);
+
+    /**
+     * A key: header, bytes and hash code
+     */
+    private static final int KEY_SHALLOW_SIZE = HeapSize.align(HeapSize.OBJECT_HEADER + HeapSize.REFERENCE + 4);
+
+    public long retainedSize() {
+        long size = SHALLOW_SIZE + HeapSize.of(data);
+        if (key != null) size += KEY_SHALLOW_SIZE + HeapSize.of(key.bytes);
+        return size + responseHeaderSize();
+    }
+
+    public long responseHeaderSize() {
+        return HeapSize.of(responseHeader);
+    }
+
+    /**
+     * Render the start of the text protocol's response to a get of the element, "VALUE &lt;key&gt; &lt;flags&gt;
+     * &lt;bytes&gt;", and keep it with the element. It has to be done before the element is stored, so that storage
+     * counts the memory it takes; it is dropped if the data is changed.
+     */
+    public void renderResponseHeader() {
+        byte[] flagsText = String.valueOf(flags).getBytes();
+        byte[] sizeText = String.valueOf(size()).getBytes();
+        int keyLength = key.bytes.capacity();
+
+        ChannelBuffer header = ChannelBuffers.buffer(VALUE.length + keyLength + 1 + flagsText.length + 1 + sizeText.length);
+        header.writeBytes(VALUE);
+        header.writeBytes(key.bytes, 0, keyLength);
+        header.writeByte(' ');
+        header.writeBytes(flagsText);
+        header.writeByte(' ');
+        header.writeBytes(sizeText);
+        responseHeader = header;
+    }
+
+    private static final byte[] VALUE = "VALUE ".getBytes();
+
+    public ChannelBuffer getResponseHeader() {
+        return responseHeader;
+    }
+
     public LocalCacheElement append(LocalCacheElement appendElement) {
         int newLength = size() + appendElement.size();
         LocalCacheElement appendedElement = new LocalCacheElement(getKey(), getFlags(), getExpire(), 0L);
@@ -106,6 +196,18 @@ public final class LocalCacheElement implements CacheElement {
         return prependedElement;
     }
 
+    /**
+     * @return a copy of the element which expires at another time, with nothing else changed, its cas included
+     */
+    public LocalCacheElement touch(long expire) {
+        LocalCacheElement touched = new LocalCacheElement(key, flags, expire, casUnique);
+        touched.data = data;
+        touched.stored = stored;
+        touched.blocked = blocked;
+        touched.blockedUntil = blockedUntil;
+        return touched;
+    }
+
     public static class IncrDecrResult {
         int oldValue;
         LocalCacheElement replace;
@@ -143,6 +245,7 @@ public final class LocalCacheElement implements CacheElement {
         if (blocked != that.blocked) return false;
         if (blockedUntil != that.blockedUntil) return false;
         if (casUnique != that.casUnique) return false;
+        if (stored != that.stored) return false;
         if (expire != that.expire) return false;
         if (flags != that.flags) return false;
         if (data != null ? !data.equals(that.data) : that.data != null) return false;
@@ -160,6 +263,7 @@ public final class LocalCacheElement implements CacheElement {
         result = 31 * result + (int) (casUnique ^ (casUnique >>> 32));
         result = 31 * result + (blocked ? 1 : 0);
         result = 31 * result + (int) (blockedUntil ^ (blockedUntil >>> 32));
+        result = 31 * result + (int) (stored ^ (stored >>> 32));
         return result;
     }
 
@@ -196,6 +300,14 @@ public final class LocalCacheElement implements CacheElement {
         return blockedUntil;
     }
 
+    /**
+     * @return the stamp (see {@link #stamp()}) taken when the element was created, which is when it was
+     * written as far as flushing the cache is concerned
+     */
+    public long getStored() {
+        return stored;
+    }
+
     public void setCasUnique(long casUnique) {
         this.casUnique = casUnique;
     }
@@ -209,6 +321,21 @@ public final class LocalCacheElement implements CacheElement {
     public void setData(ChannelBuffer data) {
         data.readerIndex(0);
         this.data = data;
+        this.responseHeader = null;
+    }
+
+    /**
+     * Have {@link #release()} run the given action, so that storage can tell when memory it lent the element is
+     * no longer needed.
+     */
+    public void onRelease(Runnable releaser) {
+        this.releaser = releaser;
+    }
+
+    public void release() {
+        Runnable releaser = this.releaser;
+        this.releaser = null;
+        if (releaser != null) releaser.run();
     }
 
     public static LocalCacheElement readFromBuffer(ChannelBuffer in) {
@@ -226,28 +353,30 @@ public final class LocalCacheElement implements CacheElement {
         localCacheElement.data = in.slice(in.readerIndex(), dataLength);
         in.skipBytes(dataLength);
 
-        localCacheElement.casUnique = in.readInt();
+        localCacheElement.casUnique = in.readLong();
         localCacheElement.blocked = in.readByte() == 1;
         localCacheElement.blockedUntil = in.readLong();
+        localCacheElement.stored = in.readLong();
 
         return localCacheElement;
     }
 
     public int bufferSize() {
-        return 4 + 8 + 4 + key.bytes.capacity() + 4 + 4 + 4 + data.capacity() + 8 + 1 + 8;
+        return 4 + 8 + 4 + key.bytes.capacity() + 4 + 4 + data.capacity() + 8 + 1 + 8 + 8;
     }
 
     public void writeToBuffer(ChannelBuffer out) {
         out.writeInt(bufferSize());
         out.writeLong(expire) ;
         out.writeInt(key.bytes.capacity());
-        out.writeBytes(key.bytes);
+        out.writeBytes(key.bytes, 0, key.bytes.capacity());
         out.writeInt(flags);
         out.writeInt(data.capacity());
-        out.writeBytes(data);
+        out.writeBytes(data, 0, data.capacity());
         out.writeLong(casUnique);
         out.writeByte(blocked ? 1 : 0);
         out.writeLong(blockedUntil);
+        out.writeLong(stored);
     }
 
 }
\ No newline at end of file
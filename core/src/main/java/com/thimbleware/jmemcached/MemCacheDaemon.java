@@ -17,6 +17,7 @@ package com.thimbleware.jmemcached;
 
 import com.thimbleware.jmemcached.protocol.binary.MemcachedBinaryPipelineFactory;
 import com.thimbleware.jmemcached.protocol.text.MemcachedPipelineFactory;
+import com.thimbleware.jmemcached.util.NamedThreadFactory;
 import org.jboss.netty.bootstrap.ServerBootstrap;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelPipelineFactory;
@@ -24,12 +25,17 @@ import org.jboss.netty.channel.group.ChannelGroupFuture;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
 import org.jboss.netty.channel.socket.ServerSocketChannelFactory;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The actual daemon - responsible for the binding and configuration of the network configuration.
@@ -40,6 +46,20 @@ public class MemCacheDaemon<CACHE_ELEMENT extends CacheElement> {
 
     public static String memcachedVersion = "0.9";
 
+    public static final int DEFAULT_WORKER_COUNT = Runtime.getRuntime().availableProcessors() * 2;
+
+    /**
+     * The most memory (in bytes) the commands waiting to be executed may take up, for a connection and in all,
+     * before the I/O threads stop reading more
+     */
+    private static final long EXECUTION_CHANNEL_MEMORY = 1024 * 1024;
+    private static final long EXECUTION_TOTAL_MEMORY = 64 * 1024 * 1024;
+
+    /**
+     * How long (in seconds) to wait on stopping for the commands already read to finish executing
+     */
+    private static final long EXECUTION_SHUTDOWN_TIMEOUT = 30;
+
     private int frameSize = 32768 * 1024;
 
     private boolean binary = false;
@@ -47,9 +67,23 @@ public class MemCacheDaemon<CACHE_ELEMENT extends CacheElement> {
     private int idleTime;
     private InetSocketAddress addr;
     private Cache<CACHE_ELEMENT> cache;
+    private File snapshotFile;
+    private boolean compressSnapshot = true;
+
+    /**
+     * The number of I/O worker threads; each connection is served by the one it is assigned to when accepted
+     */
+    private int workerCount = DEFAULT_WORKER_COUNT;
+
+    /**
+     * The number of threads commands are executed on, apart from the I/O threads; 0 to execute them on the I/O
+     * threads
+     */
+    private int executionThreads;
 
     private boolean running = false;
     private ServerSocketChannelFactory channelFactory;
+    private ExecutionHandler executionHandler;
     private DefaultChannelGroup allChannels;
 
 
@@ -61,14 +95,31 @@ public class MemCacheDaemon<CACHE_ELEMENT extends CacheElement> {
     }
 
     /**
-     * Bind the network connection and start the network processing threads.
+     * Bind the network connection and start the network processing threads. If a snapshot file has been set and
+     * exists, it is loaded into the cache first.
      */
     public void start() {
-        // TODO provide tweakable options here for passing in custom executors.
+        if (snapshotFile != null && snapshotFile.exists()) {
+            try {
+                long loaded = cache.restore(snapshotFile);
+                log.info("restored " + loaded + " items from " + snapshotFile);
+            } catch (IOException e) {
+                log.error("unable to restore snapshot " + snapshotFile + "; starting empty", e);
+            }
+        }
+
+        // a boss thread per listening socket accepts connections and hands each to a worker round robin, which
+        // serves it for as long as it is open; the workers' threads are kept even while they have no connections
         channelFactory =
                 new NioServerSocketChannelFactory(
-                        Executors.newCachedThreadPool(),
-                        Executors.newCachedThreadPool());
+                        Executors.newCachedThreadPool(new NamedThreadFactory("boss", false)),
+                        Executors.newFixedThreadPool(workerCount, new NamedThreadFactory("worker", false)),
+                        workerCount);
+
+        // commands for each connection are still executed one at a time, in the order they arrive
+        executionHandler = executionThreads <= 0 ? null : new ExecutionHandler(
+                new OrderedMemoryAwareThreadPoolExecutor(executionThreads, EXECUTION_CHANNEL_MEMORY, EXECUTION_TOTAL_MEMORY,
+                        60, TimeUnit.SECONDS, new NamedThreadFactory("execution", false)));
 
         allChannels = new DefaultChannelGroup("jmemcachedChannelGroup");
 
@@ -76,9 +127,9 @@ public class MemCacheDaemon<CACHE_ELEMENT extends CacheElement> {
 
         ChannelPipelineFactory pipelineFactory;
         if (binary)
-            pipelineFactory = createMemcachedBinaryPipelineFactory(cache, memcachedVersion, verbose, idleTime, allChannels);
+            pipelineFactory = createMemcachedBinaryPipelineFactory(cache, memcachedVersion, verbose, idleTime, allChannels, executionHandler);
         else
-            pipelineFactory = createMemcachedPipelineFactory(cache, memcachedVersion, verbose, idleTime, frameSize, allChannels);
+            pipelineFactory = createMemcachedPipelineFactory(cache, memcachedVersion, verbose, idleTime, frameSize, allChannels, executionHandler);
 
         bootstrap.setPipelineFactory(pipelineFactory);
         bootstrap.setOption("sendBufferSize", 65536 );
@@ -93,13 +144,13 @@ public class MemCacheDaemon<CACHE_ELEMENT extends CacheElement> {
     }
 
     protected ChannelPipelineFactory createMemcachedBinaryPipelineFactory(
-            Cache cache, String memcachedVersion, boolean verbose, int idleTime, DefaultChannelGroup allChannels) {
-        return new MemcachedBinaryPipelineFactory(cache, memcachedVersion, verbose, idleTime, allChannels);
+            Cache cache, String memcachedVersion, boolean verbose, int idleTime, DefaultChannelGroup allChannels, ExecutionHandler executionHandler) {
+        return new MemcachedBinaryPipelineFactory(cache, memcachedVersion, verbose, idleTime, allChannels, executionHandler);
     }
 
     protected ChannelPipelineFactory createMemcachedPipelineFactory(
-            Cache cache, String memcachedVersion, boolean verbose, int idleTime, int receiveBufferSize, DefaultChannelGroup allChannels) {
-        return new MemcachedPipelineFactory(cache, memcachedVersion, verbose, idleTime, receiveBufferSize, allChannels);
+            Cache cache, String memcachedVersion, boolean verbose, int idleTime, int receiveBufferSize, DefaultChannelGroup allChannels, ExecutionHandler executionHandler) {
+        return new MemcachedPipelineFactory(cache, memcachedVersion, verbose, idleTime, receiveBufferSize, allChannels, executionHandler);
     }
 
     public void stop() {
@@ -110,6 +161,27 @@ public class MemCacheDaemon<CACHE_ELEMENT extends CacheElement> {
         if (!future.isCompleteSuccess()) {
             throw new RuntimeException("failure to complete closing all network channels");
         }
+        if (executionHandler != null) {
+            // let the commands already read finish before the cache goes; releasing the handler's resources would
+            // shut the executor down at once and drop them
+            ExecutorService executor = (ExecutorService) executionHandler.getExecutor();
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(EXECUTION_SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)) {
+                    log.warn("commands still executing after " + EXECUTION_SHUTDOWN_TIMEOUT + "s; closing the cache under them");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (snapshotFile != null) {
+            try {
+                snapshot();
+            } catch (IOException e) {
+                log.error("unable to write snapshot " + snapshotFile, e);
+            }
+        }
+
         log.info("channels closed, freeing cache storage");
         try {
             cache.close();
@@ -122,6 +194,57 @@ public class MemCacheDaemon<CACHE_ELEMENT extends CacheElement> {
         log.info("successfully shut down");
     }
 
+    /**
+     * Write a snapshot of the cache to the snapshot file while it goes on serving requests.
+     * @return the number of items written
+     * @throws IOException thrown on failure to write the file
+     */
+    public long snapshot() throws IOException {
+        if (snapshotFile == null) throw new IllegalStateException("no snapshot file set");
+
+        long written = cache.snapshot(snapshotFile, compressSnapshot);
+        log.info("wrote " + written + " items to " + snapshotFile);
+        return written;
+    }
+
+    /**
+     * @param snapshotFile the file to restore the cache from on start, and snapshot it to on stop; null for neither
+     */
+    public void setSnapshotFile(File snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    public void setCompressSnapshot(boolean compressSnapshot) {
+        this.compressSnapshot = compressSnapshot;
+    }
+
+    /**
+     * @param workerCount the number of I/O worker threads, which takes effect on the next start; by default twice
+     *                    the number of processors
+     */
+    public void setWorkerCount(int workerCount) {
+        if (workerCount <= 0) throw new IllegalArgumentException("worker count must be positive");
+        this.workerCount = workerCount;
+    }
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    /**
+     * @param executionThreads the number of threads to execute commands on, so that slow commands don't hold up
+     *                         the other connections served by the same I/O thread; 0 (the default) to execute them
+     *                         on the I/O threads. Takes effect on the next start.
+     */
+    public void setExecutionThreads(int executionThreads) {
+        if (executionThreads < 0) throw new IllegalArgumentException("execution threads may not be negative");
+        this.executionThreads = executionThreads;
+    }
+
+    public int getExecutionThreads() {
+        return executionThreads;
+    }
+
     public void setVerbose(boolean verbose) {
         this.verbose = verbose;
     }
@@ -38,6 +38,11 @@ public final class CommandMessage<CACHE_ELEMENT extends CacheElement> implements
     public int opaque;
     public boolean addKeyToResponse = false;
 
+    /**
+     * The binary protocol's code for the command, which its response is sent with
+     */
+    public byte opcode;
+
     public int incrExpiry;
     public int incrAmount;
 
@@ -51,6 +56,11 @@ public final class CommandMessage<CACHE_ELEMENT extends CacheElement> implements
         this.keys.add(new Key(key));
     }
 
+    public void addKey(Key key) {
+        if (this.keys == null) this.keys = new ArrayList<Key>();
+        this.keys.add(key);
+    }
+
     public void setKeys(List<ChannelBuffer> keys) {
         this.keys = new ArrayList<Key>(keys.size());
         for (ChannelBuffer key : keys) {
@@ -58,6 +68,25 @@ public final class CommandMessage<CACHE_ELEMENT extends CacheElement> implements
         }
     }
 
+    /**
+     * Make the message over for another command, so that a decoder can use the one message for each command which
+     * is done with before it decodes the next.
+     */
+    public CommandMessage<CACHE_ELEMENT> reset(Op operation) {
+        op = operation;
+        element = null;
+        if (keys != null) keys.clear();
+        noreply = false;
+        cas_key = 0;
+        time = 0;
+        opaque = 0;
+        addKeyToResponse = false;
+        opcode = 0;
+        incrExpiry = 0;
+        incrAmount = 0;
+        return this;
+    }
+
     public static CommandMessage command(Op operation) {
         return new CommandMessage(operation);
     }
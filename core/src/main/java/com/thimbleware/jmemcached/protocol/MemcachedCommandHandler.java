@@ -20,15 +20,17 @@ import com.thimbleware.jmemcached.Cache;
 import com.thimbleware.jmemcached.CacheElement;
 import com.thimbleware.jmemcached.Key;
 import com.thimbleware.jmemcached.protocol.exceptions.UnknownCommandException;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
-// TODO implement flush_all delay
-
 /**
  * The actual command handler, which is responsible for processing the CommandMessage instances
  * that are inbound from the protocol decoders.
@@ -43,6 +45,12 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
 
     final Logger logger = LoggerFactory.getLogger(MemcachedCommandHandler.class);
 
+    /**
+     * The most quiet gets held back for a connection before they are looked up, whether or not the command which
+     * ends them has come
+     */
+    private static final int MAX_QUIET_GETS = 256;
+
     public final AtomicInteger curr_conns = new AtomicInteger();
     public final AtomicInteger total_conns = new AtomicInteger();
 
@@ -112,6 +120,8 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
     public void channelClosed(ChannelHandlerContext channelHandlerContext, ChannelStateEvent channelStateEvent) throws Exception {
         curr_conns.decrementAndGet();
         channelGroup.remove(channelHandlerContext.getChannel());
+        // the encoder may be holding responses to let go of
+        channelHandlerContext.sendUpstream(channelStateEvent);
     }
 
 
@@ -137,9 +147,6 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
         Op cmd = command.op;
         int cmdKeysSize = command.keys == null ? 0 : command.keys.size();
 
-        // first process any messages in the delete queue
-        cache.asyncEventPing();
-
         // now do the real work
         if (this.verbose) {
             StringBuilder log = new StringBuilder();
@@ -154,6 +161,13 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
         }
 
         Channel channel = messageEvent.getChannel();
+        if (cmd == Op.GETQ || cmd == Op.GETKQ) {
+            queueQuietGet(channelHandlerContext, command, channel);
+            return;
+        }
+        // the quiet gets before this command are answered before it
+        handleQuietGets(channelHandlerContext, channel);
+
         if (cmd == null) handleNoOp(channelHandlerContext, command);
         else
         switch (cmd) {
@@ -161,12 +175,6 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
             case GETS:
                 handleGets(channelHandlerContext, command, channel);
                 break;
-            case GETQ:
-                handleGetq(channelHandlerContext, command, channel);
-                break;
-            case GETKQ:
-                handleGetkq(channelHandlerContext, command, channel);
-                break;
             case APPEND:
                 handleAppend(channelHandlerContext, command, channel);
                 break;
@@ -212,6 +220,14 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
             case NOOP:
                 handleNoOp(channelHandlerContext, command);
                 break;
+            case TOUCH:
+                handleTouch(channelHandlerContext, command, channel);
+                break;
+            case GAT:
+            case GATS:
+            case GATQ:
+                handleGetAndTouch(channelHandlerContext, command, channel);
+                break;
             default:
                  throw new UnknownCommandException("unknown command");
         }
@@ -231,7 +247,8 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
  	}
 
     protected void handleQuit(Channel channel) {
-        channel.disconnect();
+        // close once the responses written before have gone out, even when they were written on another thread
+        channel.write(ChannelBuffers.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
     }
 
     protected void handleVersion(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
@@ -307,24 +324,65 @@ public final class MemcachedCommandHandler<CACHE_ELEMENT extends CacheElement> e
         Channels.fireMessageReceived(channelHandlerContext, resp, channel.getRemoteAddress());
     }
 
-    protected void handleGetq(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+    protected void handleTouch(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+        boolean touched = cache.touch(command.keys.get(0), command.time);
+        Channels.fireMessageReceived(channelHandlerContext, new ResponseMessage(command).withTouchResponse(touched), channel.getRemoteAddress());
+    }
+
+    /**
+     * Get elements, giving them the command's time as their new expiry. A quiet get and touch (GATQ or GATKQ of
+     * the binary protocol) which misses has no response.
+     */
+    protected void handleGetAndTouch(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
         Key[] keys = new Key[command.keys.size()];
         keys = command.keys.toArray(keys);
-        CACHE_ELEMENT[] results = get(keys);
+        CACHE_ELEMENT[] results = cache.getAndTouch(command.time, keys);
+        if (command.op == Op.GATQ && results[0] == null) return;
+
         ResponseMessage<CACHE_ELEMENT> resp = new ResponseMessage<CACHE_ELEMENT>(command).withElements(results);
-        if (results[0] != null) {
-            Channels.fireMessageReceived(channelHandlerContext, resp, channel.getRemoteAddress());
+        Channels.fireMessageReceived(channelHandlerContext, resp, channel.getRemoteAddress());
+    }
+
+    /**
+     * Hold back a quiet get (GETQ or GETKQ) of the binary protocol until the command which ends the run of them,
+     * usually a NOOP or GETK, so that they can all be looked up together. The held back gets are kept as the
+     * attachment of the connection's context.
+     */
+    @SuppressWarnings("unchecked")
+    protected void queueQuietGet(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
+        List<CommandMessage<CACHE_ELEMENT>> quietGets = (List<CommandMessage<CACHE_ELEMENT>>) channelHandlerContext.getAttachment();
+        if (quietGets == null) {
+            quietGets = new ArrayList<CommandMessage<CACHE_ELEMENT>>();
+            channelHandlerContext.setAttachment(quietGets);
         }
+        quietGets.add(command);
+
+        if (quietGets.size() >= MAX_QUIET_GETS) handleQuietGets(channelHandlerContext, channel);
     }
 
-    protected void handleGetkq(ChannelHandlerContext channelHandlerContext, CommandMessage<CACHE_ELEMENT> command, Channel channel) {
-        Key[] keys = new Key[command.keys.size()];
-        keys = command.keys.toArray(keys);
+    /**
+     * Look up the quiet gets held back so far in one go, and pass on the responses to those which hit; those
+     * which miss get none.
+     */
+    @SuppressWarnings("unchecked")
+    protected void handleQuietGets(ChannelHandlerContext channelHandlerContext, Channel channel) {
+        List<CommandMessage<CACHE_ELEMENT>> quietGets = (List<CommandMessage<CACHE_ELEMENT>>) channelHandlerContext.getAttachment();
+        if (quietGets == null || quietGets.isEmpty()) return;
+
+        Key[] keys = new Key[quietGets.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = quietGets.get(i).keys.get(0);
+        }
         CACHE_ELEMENT[] results = get(keys);
-        ResponseMessage<CACHE_ELEMENT> resp = new ResponseMessage<CACHE_ELEMENT>(command).withElements(results);
-        if (results[0] != null) {
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == null) continue;
+
+            CACHE_ELEMENT[] result = (CACHE_ELEMENT[]) Array.newInstance(results.getClass().getComponentType(), 1);
+            result[0] = results[i];
+            ResponseMessage<CACHE_ELEMENT> resp = new ResponseMessage<CACHE_ELEMENT>(quietGets.get(i)).withElements(result);
             Channels.fireMessageReceived(channelHandlerContext, resp, channel.getRemoteAddress());
         }
+        quietGets.clear();
     }
 
     /**
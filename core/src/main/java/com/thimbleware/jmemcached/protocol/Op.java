@@ -16,32 +16,57 @@
 package com.thimbleware.jmemcached.protocol;
 
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBuffers;
-
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  */
 public enum Op {
     GET, GETS, APPEND, PREPEND, DELETE, DECR,
     INCR, REPLACE, ADD, SET, CAS, STATS, VERSION,
-    QUIT, FLUSH_ALL, VERBOSITY, NOOP, GETQ, GETKQ;
+    QUIT, FLUSH_ALL, VERBOSITY, NOOP, GETQ, GETKQ,
+    TOUCH, GAT, GATS, GATQ;
 
-    private static Map<ChannelBuffer, Op> opsbf = new HashMap<ChannelBuffer, Op>();
+    /**
+     * The ops by the first byte of their names, and their names, for matching without making anything
+     */
+    private static final Op[][] byFirstByte = new Op[128][];
+    private static final byte[][] names = new byte[values().length][];
 
     static {
-        for (int x = 0 ; x < Op.values().length; x++) {
-            byte[] bytes = Op.values()[x].toString().toLowerCase().getBytes();
-            opsbf.put(ChannelBuffers.wrappedBuffer(bytes), Op.values()[x]);
+        for (Op op : values()) {
+            byte[] name = op.toString().toLowerCase().getBytes();
+            names[op.ordinal()] = name;
+
+            Op[] ops = byFirstByte[name[0]];
+            Op[] grown = new Op[ops == null ? 1 : ops.length + 1];
+            if (ops != null) System.arraycopy(ops, 0, grown, 0, ops.length);
+            grown[grown.length - 1] = op;
+            byFirstByte[name[0]] = grown;
         }
     }
 
 
     public static Op FindOp(ChannelBuffer cmd) {
-        cmd.readerIndex(0);
-        return opsbf.get(cmd);
+        return FindOp(cmd, 0, cmd.capacity());
+    }
+
+    /**
+     * @return the op named by the given bytes of the buffer, or null if none is
+     */
+    public static Op FindOp(ChannelBuffer buffer, int index, int length) {
+        if (length == 0) return null;
+        byte first = buffer.getByte(index);
+        if (first < 0) return null;
+        Op[] ops = byFirstByte[first];
+        if (ops == null) return null;
+
+        for (Op op : ops) {
+            byte[] name = names[op.ordinal()];
+            if (name.length != length) continue;
+            int i = 1;
+            while (i < length && buffer.getByte(index + i) == name[i]) i++;
+            if (i == length) return op;
+        }
+        return null;
     }
 
 }
@@ -0,0 +1,103 @@
+package com.thimbleware.jmemcached.protocol;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Gathers up the responses written while the commands of one read from the network are handled, and writes them
+ * in one go once they all have been, so that a client pipelining its commands gets its responses in a write or
+ * two rather than one per command (or, for the binary protocol, several per command).
+ * <p/>
+ * It must come first in the pipeline, so that it sees each read before the decoder does and each write after the
+ * encoder has made it. Only what is written on the I/O thread while it handles a read is gathered; anything written
+ * from other threads, such as those of an execution stage, passes straight through.
+ * <p/>
+ * One instance per channel.
+ */
+public final class ResponseAggregator extends SimpleChannelHandler {
+
+    /**
+     * How many bytes of responses to gather before writing them out, even if the read has yet to be handled
+     */
+    private static final int FLUSH_THRESHOLD = 64 * 1024;
+
+    /**
+     * The thread handling a read, while it does
+     */
+    private volatile Thread aggregating;
+
+    private final List<MessageEvent> pending = new ArrayList<MessageEvent>();
+    private int pendingBytes;
+
+    @Override
+    public void handleUpstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception {
+        if (!(e instanceof MessageEvent) || aggregating != null) {
+            ctx.sendUpstream(e);
+            return;
+        }
+
+        aggregating = Thread.currentThread();
+        try {
+            ctx.sendUpstream(e);
+        } finally {
+            aggregating = null;
+            flush(ctx);
+        }
+    }
+
+    @Override
+    public void handleDownstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception {
+        if (aggregating != Thread.currentThread()) {
+            ctx.sendDownstream(e);
+            return;
+        }
+
+        if (e instanceof MessageEvent && ((MessageEvent) e).getMessage() instanceof ChannelBuffer) {
+            pending.add((MessageEvent) e);
+            pendingBytes += ((ChannelBuffer) ((MessageEvent) e).getMessage()).readableBytes();
+            if (pendingBytes >= FLUSH_THRESHOLD) flush(ctx);
+        } else {
+            // a close or the like has to come after the responses before it
+            flush(ctx);
+            ctx.sendDownstream(e);
+        }
+    }
+
+    /**
+     * Write the responses gathered so far as one buffer, completing each of their futures when it has been.
+     */
+    private void flush(ChannelHandlerContext ctx) {
+        if (pending.isEmpty()) return;
+
+        if (pending.size() == 1) {
+            ctx.sendDownstream(pending.get(0));
+        } else {
+            ChannelBuffer[] buffers = new ChannelBuffer[pending.size()];
+            final ChannelFuture[] futures = new ChannelFuture[pending.size()];
+            for (int i = 0; i < buffers.length; i++) {
+                MessageEvent event = pending.get(i);
+                buffers[i] = (ChannelBuffer) event.getMessage();
+                futures[i] = event.getFuture();
+            }
+
+            ChannelFuture written = Channels.future(ctx.getChannel());
+            written.addListener(new ChannelFutureListener() {
+                public void operationComplete(ChannelFuture future) {
+                    for (ChannelFuture each : futures) {
+                        if (future.isSuccess()) each.setSuccess();
+                        else if (future.isCancelled()) each.cancel();
+                        else each.setFailure(future.getCause());
+                    }
+                }
+            });
+            Channels.write(ctx, written, ChannelBuffers.wrappedBuffer(buffers));
+        }
+
+        pending.clear();
+        pendingBytes = 0;
+    }
+}
@@ -24,6 +24,7 @@ public final class ResponseMessage<CACHE_ELEMENT extends CacheElement> implement
     public Cache.DeleteResponse deleteResponse;
     public Integer incrDecrResponse;
     public boolean flushSuccess;
+    public boolean touched;
 
     public ResponseMessage<CACHE_ELEMENT> withElements(CACHE_ELEMENT[] elements) {
         this.elements = elements;
@@ -52,6 +53,12 @@ public final class ResponseMessage<CACHE_ELEMENT extends CacheElement> implement
         return this;
     }
 
+    public ResponseMessage<CACHE_ELEMENT> withTouchResponse(boolean touched) {
+        this.touched = touched;
+
+        return this;
+    }
+
     public ResponseMessage<CACHE_ELEMENT> withFlushResponse(boolean success) {
         this.flushSuccess = success;
 
@@ -2,25 +2,19 @@ package com.thimbleware.jmemcached.protocol.binary;
 
 import com.thimbleware.jmemcached.Key;
 import com.thimbleware.jmemcached.LocalCacheElement;
-import com.thimbleware.jmemcached.CacheElement;
 import com.thimbleware.jmemcached.protocol.Op;
 import com.thimbleware.jmemcached.protocol.CommandMessage;
 import com.thimbleware.jmemcached.protocol.exceptions.MalformedCommandException;
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
-import org.jboss.netty.channel.ChannelHandler;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.handler.codec.frame.FrameDecoder;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.util.ArrayList;
-import java.nio.ByteOrder;
 
 /**
  */
-@ChannelHandler.Sharable
 public class MemcachedBinaryCommandDecoder extends FrameDecoder {
 
     public static final Charset USASCII = Charset.forName("US-ASCII");
@@ -52,7 +46,28 @@ public class MemcachedBinaryCommandDecoder extends FrameDecoder {
         QuitQ(0x17, Op.QUIT, true),
         FlushQ(0x18, Op.FLUSH_ALL, true),
         AppendQ(0x19, Op.APPEND, true),
-        PrependQ(0x1A, Op.PREPEND, true);
+        PrependQ(0x1A, Op.PREPEND, true),
+        Verbosity(0x1B, Op.VERBOSITY, false),
+        Touch(0x1C, Op.TOUCH, false),
+        GAT(0x1D, Op.GAT, false),
+        GATQ(0x1E, Op.GATQ, true),
+        // authentication isn't supported; these are answered as unknown commands
+        SaslListMechs(0x20, null, false),
+        SaslAuth(0x21, null, false),
+        SaslStep(0x22, null, false),
+        GATK(0x23, Op.GAT, false, true),
+        GATKQ(0x24, Op.GATQ, true, true);
+
+        /**
+         * The ops by their codes; null for codes without one
+         */
+        private static final BinaryOp[] byCode = new BinaryOp[256];
+
+        static {
+            for (BinaryOp binaryOp : values()) {
+                byCode[binaryOp.code & 0xff] = binaryOp;
+            }
+        }
 
         public byte code;
         public Op correspondingOp;
@@ -72,77 +87,89 @@ public class MemcachedBinaryCommandDecoder extends FrameDecoder {
             this.addKeyToResponse = addKeyToResponse;
         }
 
-        public static BinaryOp forCommandMessage(CommandMessage msg) {
-            for (BinaryOp binaryOp : values()) {
-                if (binaryOp.correspondingOp == msg.op && binaryOp.noreply == msg.noreply && binaryOp.addKeyToResponse == msg.addKeyToResponse) {
-                    return binaryOp;
-                }
-            }
+        /**
+         * @return the op with the given code, or null if there is none
+         */
+        public static BinaryOp forCode(int code) {
+            return byCode[code & 0xff];
+        }
 
-            return null;
+        /**
+         * @return the op the command was decoded from, whose code its response is sent with; null if the code is
+         * not one known
+         */
+        public static BinaryOp forCommandMessage(CommandMessage msg) {
+            return forCode(msg.opcode);
         }
 
     }
 
+    /**
+     * The size of the header every request starts with
+     */
+    private static final int HEADER_LENGTH = 24;
+
+    private final boolean detachKeys;
+
+    public MemcachedBinaryCommandDecoder() {
+        this(false);
+    }
+
+    /**
+     * @param detachKeys whether to copy the keys of all commands, rather than slice those of commands which only
+     *                   read out of the read buffer; they must be when the commands are carried out on another
+     *                   thread, as the buffer is compacted on the next read
+     */
+    public MemcachedBinaryCommandDecoder(boolean detachKeys) {
+        this.detachKeys = detachKeys;
+    }
+
     protected Object decode(ChannelHandlerContext channelHandlerContext, Channel channel, ChannelBuffer channelBuffer) throws Exception {
 
         // need at least 24 bytes, to get header
-        if (channelBuffer.readableBytes() < 24) return null;
+        if (channelBuffer.readableBytes() < HEADER_LENGTH) return null;
 
-        // get the header
-        channelBuffer.markReaderIndex();
-        ChannelBuffer headerBuffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, 24);
-        channelBuffer.readBytes(headerBuffer);
+        // the header is read where it lies, and nothing is consumed until the whole request has arrived
+        int header = channelBuffer.readerIndex();
 
-        short magic = headerBuffer.readUnsignedByte();
+        short magic = channelBuffer.getUnsignedByte(header);
 
         // magic should be 0x80
         if (magic != 0x80) {
-            headerBuffer.resetReaderIndex();
+            channelBuffer.skipBytes(HEADER_LENGTH);
 
             throw new MalformedCommandException("binary request payload is invalid, magic byte incorrect");
         }
 
-        short opcode = headerBuffer.readUnsignedByte();
-        short keyLength = headerBuffer.readShort();
-        short extraLength = headerBuffer.readUnsignedByte();
-        short dataType = headerBuffer.readUnsignedByte();   // unused
-        short reserved = headerBuffer.readShort(); // unused
-        int totalBodyLength = headerBuffer.readInt();
-        int opaque = headerBuffer.readInt();
-        long cas = headerBuffer.readLong();
+        short opcode = channelBuffer.getUnsignedByte(header + 1);
+        int keyLength = channelBuffer.getUnsignedShort(header + 2);
+        short extraLength = channelBuffer.getUnsignedByte(header + 4);
+        int totalBodyLength = channelBuffer.getInt(header + 8);
+        int opaque = channelBuffer.getInt(header + 12);
+        long cas = channelBuffer.getLong(header + 16);
 
         // we want the whole of totalBodyLength; otherwise, keep waiting.
-        if (channelBuffer.readableBytes() < totalBodyLength) {
-            channelBuffer.resetReaderIndex();
-            return null;
-        }
+        if (channelBuffer.readableBytes() < HEADER_LENGTH + totalBodyLength) return null;
+        channelBuffer.skipBytes(HEADER_LENGTH + totalBodyLength);
 
-        // This assumes correct order in the enum. If that ever changes, we will have to scan for 'code' field.
-        BinaryOp bcmd = BinaryOp.values()[opcode];
+        // a command with a code which isn't known, or isn't supported, has no op, and is answered as unknown
+        BinaryOp bcmd = BinaryOp.forCode(opcode);
 
-        Op cmdType = bcmd.correspondingOp;
+        Op cmdType = bcmd != null ? bcmd.correspondingOp : null;
         CommandMessage cmdMessage = CommandMessage.command(cmdType);
-        cmdMessage.noreply = bcmd.noreply;
+        cmdMessage.opcode = (byte) opcode;
+        cmdMessage.noreply = bcmd != null && bcmd.noreply;
         cmdMessage.cas_key = cas;
         cmdMessage.opaque = opaque;
-        cmdMessage.addKeyToResponse = bcmd.addKeyToResponse;
+        cmdMessage.addKeyToResponse = bcmd != null && bcmd.addKeyToResponse;
 
-        // get extras. could be empty.
-        ChannelBuffer extrasBuffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, extraLength);
-        channelBuffer.readBytes(extrasBuffer);
+        // the extras, key and value follow the header, in that order
+        int extras = header + HEADER_LENGTH;
+        int key = extras + extraLength;
+        int value = key + keyLength;
 
         // get the key if any
         if (keyLength != 0) {
-            ChannelBuffer keyBuffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, keyLength);
-            channelBuffer.readBytes(keyBuffer);
-
-            ArrayList<Key> keys = new ArrayList<Key>();
-            keys.add(new Key(keyBuffer.copy()));
-
-            cmdMessage.keys = keys;
-
-
             if (cmdType == Op.ADD ||
                     cmdType == Op.SET ||
                     cmdType == Op.REPLACE ||
@@ -150,24 +177,35 @@ public class MemcachedBinaryCommandDecoder extends FrameDecoder {
                     cmdType == Op.PREPEND)
             {
 
-                int flags = extrasBuffer.capacity() != 0 ? (int) extrasBuffer.readUnsignedInt() : 0;
-                int expire = extrasBuffer.capacity() != 0 ? (int) extrasBuffer.readUnsignedInt() : 0;
+                int flags = extraLength != 0 ? channelBuffer.getInt(extras) : 0;
+                int expire = extraLength != 0 ? channelBuffer.getInt(extras + 4) : 0;
 
                 // the remainder of the message -- that is, totalLength - (keyLength + extraLength) should be the payload
                 int size = totalBodyLength - keyLength - extraLength;
 
-                cmdMessage.element = new LocalCacheElement(new Key(keyBuffer.slice()), flags, expire != 0 && expire < CacheElement.THIRTY_DAYS ? LocalCacheElement.Now() + expire : expire, 0L);
-                ChannelBuffer data = ChannelBuffers.buffer(size);
-                channelBuffer.readBytes(data);
-                cmdMessage.element.setData(data);
-            } else if (cmdType == Op.INCR || cmdType == Op.DECR) {
-                long initialValue = extrasBuffer.readUnsignedInt();
-                long amount = extrasBuffer.readUnsignedInt();
-                long expiration = extrasBuffer.readUnsignedInt();
-
-                cmdMessage.incrAmount = (int) amount;
-                cmdMessage.incrExpiry = (int) expiration;
+                // the storage keeps both key and data, so they are copied out of the read buffer, once
+                Key storedKey = new Key(channelBuffer.copy(key, keyLength));
+                cmdMessage.addKey(storedKey);
+                cmdMessage.element = new LocalCacheElement(storedKey, flags, LocalCacheElement.expiry(expire), 0L);
+                cmdMessage.element.setData(channelBuffer.copy(value, size));
+            } else {
+                // the key of a quiet get waits for the next command which isn't, and that of a response which
+                // echoes it may wait to be written, so both may outlive the read buffer's contents
+                boolean detach = detachKeys || cmdType == Op.GETQ || cmdType == Op.GETKQ || cmdMessage.addKeyToResponse;
+                cmdMessage.addKey(detach ? new Key(channelBuffer.copy(key, keyLength)) : new Key(channelBuffer, key, keyLength));
+
+                if (cmdType == Op.INCR || cmdType == Op.DECR) {
+                    // the amount, the initial value (which isn't supported) and the expiration
+                    if (extraLength < 20) throw new MalformedCommandException("binary increment or decrement is missing its extras");
+                    cmdMessage.incrAmount = (int) channelBuffer.getLong(extras);
+                    cmdMessage.incrExpiry = channelBuffer.getInt(extras + 16);
+                } else if (cmdType == Op.TOUCH || cmdType == Op.GAT || cmdType == Op.GATQ) {
+                    if (extraLength < 4) throw new MalformedCommandException("binary touch is missing its expiration");
+                    cmdMessage.time = (int) LocalCacheElement.expiry(channelBuffer.getInt(extras));
+                }
             }
+        } else if ((cmdType == Op.FLUSH_ALL || cmdType == Op.VERBOSITY) && extraLength >= 4) {
+            cmdMessage.time = channelBuffer.getInt(extras);
         }
 
         return cmdMessage;
@@ -2,25 +2,46 @@ package com.thimbleware.jmemcached.protocol.binary;
 
 import com.thimbleware.jmemcached.Cache;
 import com.thimbleware.jmemcached.protocol.MemcachedCommandHandler;
+import com.thimbleware.jmemcached.protocol.ResponseAggregator;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.handler.execution.ExecutionHandler;
 
 
 public class MemcachedBinaryPipelineFactory implements ChannelPipelineFactory {
 
-    private final MemcachedBinaryCommandDecoder decoder =  new MemcachedBinaryCommandDecoder();
     private final MemcachedCommandHandler memcachedCommandHandler;
     private final MemcachedBinaryResponseEncoder memcachedBinaryResponseEncoder = new MemcachedBinaryResponseEncoder();
+    private final ExecutionHandler executionHandler;
 
     public MemcachedBinaryPipelineFactory(Cache cache, String version, boolean verbose, int idleTime, DefaultChannelGroup channelGroup) {
+        this(cache, version, verbose, idleTime, channelGroup, null);
+    }
+
+    /**
+     * @param executionHandler hands decoded commands to other threads to be carried out, so that slow ones don't
+     *                         hold up the I/O thread; null to carry them out on the I/O thread
+     */
+    public MemcachedBinaryPipelineFactory(Cache cache, String version, boolean verbose, int idleTime, DefaultChannelGroup channelGroup, ExecutionHandler executionHandler) {
         memcachedCommandHandler = new MemcachedCommandHandler(cache, version, verbose, idleTime, channelGroup);
+        this.executionHandler = executionHandler;
     }
 
     public ChannelPipeline getPipeline() throws Exception {
+        if (executionHandler != null) {
+            return Channels.pipeline(
+                    new ResponseAggregator(),
+                    new MemcachedBinaryCommandDecoder(true),
+                    executionHandler,
+                    memcachedCommandHandler,
+                    memcachedBinaryResponseEncoder
+            );
+        }
         return Channels.pipeline(
-                decoder,
+                new ResponseAggregator(),
+                new MemcachedBinaryCommandDecoder(),
                 memcachedCommandHandler,
                 memcachedBinaryResponseEncoder
         );
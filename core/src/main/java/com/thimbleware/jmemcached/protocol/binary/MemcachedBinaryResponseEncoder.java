@@ -5,15 +5,18 @@ import com.thimbleware.jmemcached.protocol.ResponseMessage;
 import com.thimbleware.jmemcached.protocol.exceptions.UnknownCommandException;
 import com.thimbleware.jmemcached.CacheElement;
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferFactory;
 import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.buffer.DirectChannelBufferFactory;
 import org.jboss.netty.channel.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *
@@ -22,7 +25,19 @@ import java.util.concurrent.ConcurrentHashMap;
 @ChannelHandler.Sharable
 public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement> extends SimpleChannelUpstreamHandler {
 
-    private ConcurrentHashMap<Integer, ChannelBuffer> corkedBuffers = new ConcurrentHashMap<Integer, ChannelBuffer>();
+    /**
+     * How many bytes of responses to quiet commands to hold back before writing them out, even if no response to
+     * a command which isn't quiet has come to write them with
+     */
+    private static final int MAX_HELD_BYTES = 64 * 1024;
+
+    private static final int HEADER_LENGTH = 24;
+
+    /**
+     * Allocates the header, extras and any small value of each response together, as a slice of a preallocated
+     * direct buffer, rather than a heap buffer for each
+     */
+    private static final ChannelBufferFactory BUFFERS = DirectChannelBufferFactory.getInstance(ByteOrder.BIG_ENDIAN);
 
     final Logger logger = LoggerFactory.getLogger(MemcachedBinaryResponseEncoder.class);
 
@@ -45,7 +60,7 @@ public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement>
 
     public ResponseCode getStatusCode(ResponseMessage command) {
         Op cmd = command.cmd.op;
-        if (cmd == Op.GET || cmd == Op.GETS) {
+        if (cmd == Op.GET || cmd == Op.GETS || cmd == Op.GETQ || cmd == Op.GETKQ || cmd == Op.GAT || cmd == Op.GATQ) {
             // https://code.google.com/p/memcached/wiki/MemcacheBinaryProtocol
             // If the item exist on the server the following packet is returned, otherwise a packet with status code != 0 will be returned (see Introduction (Section 4.1))
             return (command.elements != null && command.elements.length != 0 && command.elements[0] != null) ? ResponseCode.OK : ResponseCode.KEYNF;
@@ -77,6 +92,10 @@ public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement>
             return ResponseCode.OK;
         } else if (cmd == Op.NOOP) {
             return ResponseCode.OK;
+        } else if (cmd == Op.VERBOSITY) {
+            return ResponseCode.OK;
+        } else if (cmd == Op.TOUCH) {
+            return command.touched ? ResponseCode.OK : ResponseCode.KEYNF;
         }
         return ResponseCode.UNKNOWN;
     }
@@ -84,22 +103,28 @@ public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement>
 
 
     public ChannelBuffer constructHeader(MemcachedBinaryCommandDecoder.BinaryOp bcmd, ChannelBuffer extrasBuffer, ChannelBuffer keyBuffer, ChannelBuffer valueBuffer, short responseCode, int opaqueValue, long casUnique) {
-        // take the ResponseMessage and turn it into a binary payload.
-        ChannelBuffer header = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, 24);
-        header.writeByte((byte)0x81);  // magic
-        header.writeByte(bcmd.code); // opcode
-        short keyLength = (short) (keyBuffer != null ? keyBuffer.capacity() :0);
-
-        header.writeShort(keyLength);
+        int keyLength = keyBuffer != null ? keyBuffer.capacity() : 0;
         int extrasLength = extrasBuffer != null ? extrasBuffer.capacity() : 0;
+        int dataLength = valueBuffer != null ? valueBuffer.capacity() : 0;
+        return header(bcmd.code, 0, extrasLength, keyLength, dataLength, responseCode, opaqueValue, casUnique);
+    }
+
+    /**
+     * Start a response with its header, in a direct buffer carved out of a preallocated chunk, with room after
+     * the header for whatever small parts of the response are to be written into the same buffer.
+     *
+     * @param room the bytes to leave room for after the header
+     */
+    private static ChannelBuffer header(byte opcode, int room, int extrasLength, int keyLength, int dataLength, short responseCode, int opaqueValue, long casUnique) {
+        ChannelBuffer header = BUFFERS.getBuffer(HEADER_LENGTH + room);
+        header.writeByte((byte)0x81);  // magic
+        header.writeByte(opcode); // opcode
+        header.writeShort((short) keyLength);
         header.writeByte((byte) extrasLength); // extra length = flags + expiry
         header.writeByte((byte)0); // data type unused
         header.writeShort(responseCode); // status code
-
-        int dataLength = valueBuffer != null ? valueBuffer.capacity() : 0;
         header.writeInt(dataLength + keyLength + extrasLength); // data length
         header.writeInt(opaqueValue); // opaque
-
         header.writeLong(casUnique);
 
         return header;
@@ -130,40 +155,32 @@ public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement>
     @SuppressWarnings("unchecked")
     public void messageReceived(ChannelHandlerContext channelHandlerContext, MessageEvent messageEvent) throws Exception {
         ResponseMessage<CACHE_ELEMENT> command = (ResponseMessage<CACHE_ELEMENT>) messageEvent.getMessage();
-        Object additional = messageEvent.getMessage();
 
+        // null for a command of an unknown code, which is answered as unknown with the code it came with
         MemcachedBinaryCommandDecoder.BinaryOp bcmd = MemcachedBinaryCommandDecoder.BinaryOp.forCommandMessage(command.cmd);
+        boolean quiet = bcmd != null && bcmd.noreply;
 
         // write extras == flags & expiry
         ChannelBuffer extrasBuffer = null;
+        int extrasLength = 0;
 
         // write key if there is one
         ChannelBuffer keyBuffer = null;
-        if (bcmd.addKeyToResponse && command.cmd.keys != null && command.cmd.keys.size() != 0) {
+        if (command.cmd.addKeyToResponse && command.cmd.keys != null && command.cmd.keys.size() != 0) {
             keyBuffer = ChannelBuffers.wrappedBuffer(command.cmd.keys.get(0).bytes);
         }
 
-        // write value if there is one
+        // write value if there is one; the data of a get is written as it is, while the result of an increment
+        // or decrement goes in with the header
         ChannelBuffer valueBuffer = null;
+        boolean incrDecrValue = (command.cmd.op == Op.INCR || command.cmd.op == Op.DECR) && command.incrDecrResponse != null;
+        CacheElement element = null;
         if (command.elements != null) {
-            extrasBuffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, 4);
-            CacheElement element = command.elements[0];
-            extrasBuffer.writeShort((short) (element != null ? element.getExpire() : 0));
-            extrasBuffer.writeShort((short) (element != null ? element.getFlags() : 0));
-
-            if ((command.cmd.op == Op.GET || command.cmd.op == Op.GETS || command.cmd.op == Op.GETQ || command.cmd.op == Op.GETKQ)) {
-                if (element != null) {
-                    valueBuffer = ChannelBuffers.wrappedBuffer(element.getData());
-                } else {
-                    valueBuffer = ChannelBuffers.buffer(0);
-                }
-            } else if (command.cmd.op == Op.INCR || command.cmd.op == Op.DECR) {
-                valueBuffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, 8);
-                valueBuffer.writeLong(command.incrDecrResponse);
+            extrasLength = 4;
+            element = command.elements[0];
+            if (element != null) {
+                valueBuffer = element.getData();
             }
-        } else if (command.cmd.op == Op.INCR || command.cmd.op == Op.DECR) {
-            valueBuffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, 8);
-            valueBuffer.writeLong(command.incrDecrResponse);
         }
 
         long casUnique = 0;
@@ -173,8 +190,8 @@ public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement>
 
         // stats is special -- with it, we write N times, one for each stat, then an empty payload
         if (command.cmd.op == Op.STATS) {
-            // first uncork any corked buffers
-            if (corkedBuffers.containsKey(command.cmd.opaque)) uncork(command.cmd.opaque, messageEvent.getChannel());
+            // first write out any held back responses
+            writeHeld(channelHandlerContext, messageEvent.getChannel());
 
             for (Map.Entry<String, Set<String>> statsEntries : command.stats.entrySet()) {
                 for (String stat : statsEntries.getValue()) {
@@ -196,68 +213,141 @@ public class MemcachedBinaryResponseEncoder<CACHE_ELEMENT extends CacheElement>
             writePayload(messageEvent, extrasBuffer, keyBuffer, valueBuffer, headerBuffer);
 
         } else {
-            ChannelBuffer headerBuffer = constructHeader(bcmd, extrasBuffer, keyBuffer, valueBuffer, getStatusCode(command).code, command.cmd.opaque, casUnique);
-
-            // write everything
-            // is the command 'quiet?' if so, then we append to our 'corked' buffer until a non-corked command comes along
-            if (bcmd.noreply) {
-                int totalCapacity = headerBuffer.capacity() + (extrasBuffer != null ? extrasBuffer.capacity() : 0)
-                        + (keyBuffer != null ? keyBuffer.capacity() : 0) + (valueBuffer != null ? valueBuffer.capacity() : 0);
+            int keyLength = keyBuffer != null ? keyBuffer.capacity() : 0;
+            int valueLength = incrDecrValue ? 8 : valueBuffer != null ? valueBuffer.capacity() : 0;
+            ChannelBuffer headerBuffer = header(command.cmd.opcode, extrasLength + (incrDecrValue ? 8 : 0), extrasLength, keyLength, valueLength,
+                    getStatusCode(command).code, command.cmd.opaque, casUnique);
+            if (extrasLength != 0) {
+                headerBuffer.writeShort((short) (element != null ? element.getExpire() : 0));
+                headerBuffer.writeShort((short) (element != null ? element.getFlags() : 0));
+            }
+            // no increment or decrement echoes its key, which would have to come before the value
+            if (incrDecrValue) headerBuffer.writeLong(command.incrDecrResponse);
+
+            ChannelBuffer response = keyBuffer == null && valueBuffer == null
+                    ? headerBuffer
+                    : payload(headerBuffer, null, keyBuffer, valueBuffer);
+
+            // is the command 'quiet?' if so, its response is held back, to be written along with the next one
+            // which isn't; quiet commands which change the cache only have one when they fail
+            if (quiet) {
+                if (command.cmd.op != Op.GETQ && command.cmd.op != Op.GETKQ && command.cmd.op != Op.GATQ && getStatusCode(command) == ResponseCode.OK) {
+                    release(command);
+                    return;
+                }
+                Held held = held(channelHandlerContext);
+                held.add(response, command);
+                if (held.bytes >= MAX_HELD_BYTES) writeHeld(channelHandlerContext, messageEvent.getChannel());
+            } else {
+                Held held = held(channelHandlerContext);
+                held.add(response, command);
+                writeHeld(channelHandlerContext, messageEvent.getChannel());
+            }
+        }
+    }
 
-                ChannelBuffer corkedResponse  = cork(command.cmd.opaque, totalCapacity);
+    /**
+     * Let go of any responses held back for a connection which has closed.
+     */
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        Held held = (Held) ctx.getAttachment();
+        if (held != null) held.release();
+        super.channelClosed(ctx, e);
+    }
 
+    private Held held(ChannelHandlerContext ctx) {
+        Held held = (Held) ctx.getAttachment();
+        if (held == null) {
+            held = new Held();
+            ctx.setAttachment(held);
+        }
+        return held;
+    }
 
-                corkedResponse.writeBytes(headerBuffer);
-                if (extrasBuffer != null)
-                    corkedResponse.writeBytes(extrasBuffer);
-                if (keyBuffer != null)
-                    corkedResponse.writeBytes(keyBuffer);
-                if (valueBuffer != null)
-                    corkedResponse.writeBytes(valueBuffer);
-            } else {
-                // first write out any corked responses
-                 if (corkedBuffers.containsKey(command.cmd.opaque)) uncork(command.cmd.opaque, messageEvent.getChannel());
-                
+    /**
+     * Write the responses held back for a connection in one go, letting go of their elements once written.
+     */
+    private void writeHeld(ChannelHandlerContext ctx, Channel channel) {
+        Held held = (Held) ctx.getAttachment();
+        if (held == null || held.responses.isEmpty()) return;
+
+        final Held written = held;
+        ctx.setAttachment(null);
+        if (!channel.isOpen()) {
+            written.release();
+            return;
+        }
 
-                writePayload(messageEvent, extrasBuffer, keyBuffer, valueBuffer, headerBuffer);
+        ChannelBuffer[] buffers = written.responses.toArray(new ChannelBuffer[written.responses.size()]);
+        channel.write(ChannelBuffers.wrappedBuffer(buffers)).addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) {
+                written.release();
             }
-        }
+        });
     }
 
-    private ChannelBuffer cork(int opaque, int totalCapacity) {
-        if (corkedBuffers.containsKey(opaque)) {
-            ChannelBuffer corkedResponse = corkedBuffers.get(opaque);
-            ChannelBuffer oldBuffer = corkedResponse;
-            corkedResponse = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, totalCapacity + corkedResponse.capacity());
-            corkedResponse.writeBytes(oldBuffer);
-            oldBuffer.clear();
-
-            corkedBuffers.remove(opaque);
-            corkedBuffers.put(opaque, corkedResponse);
-            return corkedResponse;
-        } else {
-            ChannelBuffer buffer = ChannelBuffers.buffer(ByteOrder.BIG_ENDIAN, totalCapacity);
-            corkedBuffers.put(opaque, buffer);
-            return buffer;
+    /**
+     * The responses held back for a connection, kept as the attachment of its context, with the messages they
+     * came from, whose elements may be straight out of the cache's storage.
+     */
+    private final class Held {
+        final List<ChannelBuffer> responses = new ArrayList<ChannelBuffer>();
+        final List<ResponseMessage<CACHE_ELEMENT>> messages = new ArrayList<ResponseMessage<CACHE_ELEMENT>>();
+        int bytes;
+
+        void add(ChannelBuffer response, ResponseMessage<CACHE_ELEMENT> message) {
+            responses.add(response);
+            messages.add(message);
+            bytes += response.readableBytes();
+        }
+
+        void release() {
+            for (ResponseMessage<CACHE_ELEMENT> message : messages) {
+                MemcachedBinaryResponseEncoder.this.release(message);
+            }
         }
     }
 
-    private void uncork(int opaque, Channel channel) {
-        ChannelBuffer corkedBuffer = corkedBuffers.get(opaque);
-        assert corkedBuffer !=  null;
-        channel.write(corkedBuffer);
-        corkedBuffers.remove(opaque);
+    private static ChannelBuffer payload(ChannelBuffer headerBuffer, ChannelBuffer extrasBuffer, ChannelBuffer keyBuffer, ChannelBuffer valueBuffer) {
+        ChannelBuffer[] parts = new ChannelBuffer[4];
+        int count = 0;
+        parts[count++] = headerBuffer;
+        if (extrasBuffer != null) parts[count++] = extrasBuffer;
+        if (keyBuffer != null) parts[count++] = keyBuffer;
+        if (valueBuffer != null) parts[count++] = valueBuffer;
+        if (count < parts.length) {
+            ChannelBuffer[] present = new ChannelBuffer[count];
+            System.arraycopy(parts, 0, present, 0, count);
+            parts = present;
+        }
+        return ChannelBuffers.wrappedBuffer(parts);
     }
 
-    private void writePayload(MessageEvent messageEvent, ChannelBuffer extrasBuffer, ChannelBuffer keyBuffer, ChannelBuffer valueBuffer, ChannelBuffer headerBuffer) {
+    /**
+     * @return the future of the last write, or null if the channel was closed and nothing was written
+     */
+    private ChannelFuture writePayload(MessageEvent messageEvent, ChannelBuffer extrasBuffer, ChannelBuffer keyBuffer, ChannelBuffer valueBuffer, ChannelBuffer headerBuffer) {
         if (messageEvent.getChannel().isOpen()) {
-            messageEvent.getChannel().write(headerBuffer);
+            ChannelFuture written = messageEvent.getChannel().write(headerBuffer);
             if (extrasBuffer != null)
-                messageEvent.getChannel().write(extrasBuffer);
+                written = messageEvent.getChannel().write(extrasBuffer);
             if (keyBuffer != null)
-                messageEvent.getChannel().write(keyBuffer);
+                written = messageEvent.getChannel().write(keyBuffer);
             if (valueBuffer != null)
-                messageEvent.getChannel().write(valueBuffer);
+                written = messageEvent.getChannel().write(valueBuffer);
+            return written;
+        }
+        return null;
+    }
+
+    /**
+     * Let go of the elements of a response, whose data may be straight out of the cache's storage.
+     */
+    private void release(ResponseMessage<CACHE_ELEMENT> command) {
+        if (command.elements == null) return;
+        for (CacheElement element : command.elements) {
+            if (element != null) element.release();
         }
     }
 }
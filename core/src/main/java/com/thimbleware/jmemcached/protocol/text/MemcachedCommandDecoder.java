@@ -1,24 +1,22 @@
 package com.thimbleware.jmemcached.protocol.text;
 
-import com.thimbleware.jmemcached.CacheElement;
 import com.thimbleware.jmemcached.Key;
 import com.thimbleware.jmemcached.LocalCacheElement;
 import com.thimbleware.jmemcached.protocol.CommandMessage;
 import com.thimbleware.jmemcached.protocol.Op;
 import com.thimbleware.jmemcached.protocol.SessionStatus;
+import com.thimbleware.jmemcached.protocol.exceptions.ClientException;
 import com.thimbleware.jmemcached.protocol.exceptions.IncorrectlyTerminatedPayloadException;
 import com.thimbleware.jmemcached.protocol.exceptions.InvalidProtocolStateException;
 import com.thimbleware.jmemcached.protocol.exceptions.MalformedCommandException;
 import com.thimbleware.jmemcached.protocol.exceptions.UnknownCommandException;
 import com.thimbleware.jmemcached.util.BufferUtils;
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBufferIndexFinder;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.handler.codec.frame.FrameDecoder;
 
-import java.util.ArrayList;
-import java.util.List;
+import static com.thimbleware.jmemcached.protocol.text.MemcachedPipelineFactory.USASCII;
 
 /**
  * The MemcachedCommandDecoder is responsible for taking lines from the MemcachedFrameDecoder and parsing them
@@ -30,63 +28,66 @@ public final class MemcachedCommandDecoder extends FrameDecoder {
 
     private static final int MIN_BYTES_LINE = 2;
     private SessionStatus status;
+    private final boolean detachKeys;
 
-    private static final ChannelBuffer NOREPLY = ChannelBuffers.wrappedBuffer("noreply".getBytes());
+    private static final byte[] NOREPLY = "noreply".getBytes();
+
+    /**
+     * The start and end (exclusive) of each token of the line being decoded, as indexes into the buffer; kept
+     * from line to line, and grown when a line has more tokens than it has room for
+     */
+    private int[] tokens = new int[16];
+    private int tokenCount;
+
+    /**
+     * The message reused for each command which is done with before the next is decoded, which is all but the
+     * storage commands, unless the commands are carried out on another thread
+     */
+    private final CommandMessage reusable = CommandMessage.command(null);
 
 
     public MemcachedCommandDecoder(SessionStatus status) {
-        this.status = status;
+        this(status, false);
     }
 
     /**
-     * Index finder which locates a byte which is neither a {@code CR ('\r')}
-     * nor a {@code LF ('\n')}.
+     * @param detachKeys whether to copy the keys of commands which only read, rather than slice them out of the
+     *                   read buffer; they must be when the commands are carried out on another thread, as the buffer
+     *                   is compacted on the next read
      */
-    static ChannelBufferIndexFinder CRLF_OR_WS = new ChannelBufferIndexFinder() {
-        public final boolean find(ChannelBuffer buffer, int guessedIndex) {
-            byte b = buffer.getByte(guessedIndex);
-            return b == ' ' || b == '\r' || b == '\n';
-        }
-    };
-
-    static boolean eol(int pos, ChannelBuffer buffer) {
-        return buffer.readableBytes() >= MIN_BYTES_LINE && buffer.getByte(buffer.readerIndex() + pos) == '\r' && buffer.getByte(buffer.readerIndex() + pos+1) == '\n';
+    public MemcachedCommandDecoder(SessionStatus status, boolean detachKeys) {
+        this.status = status;
+        this.detachKeys = detachKeys;
     }
 
     @Override
     protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
         if (status.state == SessionStatus.State.READY) {
-            ChannelBuffer in = buffer.slice();
-
-            // split into pieces
-            List<ChannelBuffer> pieces = new ArrayList<ChannelBuffer>(6);
-            if (in.readableBytes() < MIN_BYTES_LINE) return null;
-            int pos = in.bytesBefore(CRLF_OR_WS);
-            boolean eol = false;
-            do {
-                if (pos != -1) {
-                    eol = eol(pos, in);
-                    int skip = eol ? MIN_BYTES_LINE : 1;
-                    ChannelBuffer slice = in.readSlice(pos);
-                    slice.readerIndex(0);
-                    pieces.add(slice);
-                    in.skipBytes(skip);
-                    if (eol) break;
+            int lineEnd = tokenize(buffer);
+            if (lineEnd != -1) {
+                // the line is consumed even if it turns out to be bad; the tokens' indexes stay good
+                buffer.readerIndex(lineEnd);
+
+                // a blank line is skipped; a storage command has yet to get its data
+                if (tokenCount == 0) return null;
+                try {
+                    return processLine(buffer);
+                } catch (ClientException e) {
+                    // answer the bad line and go on to the ones after it, which thrown out of here would be lost
+                    Channels.fireExceptionCaught(ctx, e);
+                    return null;
+                } catch (NumberFormatException e) {
+                    Channels.fireExceptionCaught(ctx, new MalformedCommandException("invalid number"));
+                    return null;
                 }
-            } while ((pos = in.bytesBefore(CRLF_OR_WS)) != -1);
-            if (eol) {
-                buffer.skipBytes(in.readerIndex());
-
-                return processLine(pieces, channel, ctx);
             }
             if (status.state != SessionStatus.State.WAITING_FOR_DATA) status.ready();
         } else if (status.state == SessionStatus.State.WAITING_FOR_DATA) {
-            if (buffer.readableBytes() >= status.bytesNeeded + MemcachedResponseEncoder.CRLF.capacity()) {
+            if (buffer.readableBytes() >= status.bytesNeeded + MIN_BYTES_LINE) {
 
                 // verify delimiter matches at the right location
-                ChannelBuffer dest = buffer.slice(buffer.readerIndex() + status.bytesNeeded, MIN_BYTES_LINE);
-
-                if (!dest.equals(MemcachedResponseEncoder.CRLF)) {
+                int delimiter = buffer.readerIndex() + status.bytesNeeded;
+                if (buffer.getByte(delimiter) != '\r' || buffer.getByte(delimiter + 1) != '\n') {
                     // before we throw error... we're ready for the next command
                     status.ready();
 
@@ -98,7 +99,7 @@ public final class MemcachedCommandDecoder extends FrameDecoder {
                     // There's enough bytes in the buffer and the delimiter is at the end. Read it.
                     ChannelBuffer result = buffer.slice(buffer.readerIndex(), status.bytesNeeded);
 
-                    buffer.skipBytes(status.bytesNeeded + MemcachedResponseEncoder.CRLF.capacity());
+                    buffer.skipBytes(status.bytesNeeded + MIN_BYTES_LINE);
 
                     CommandMessage commandMessage = continueSet(channel, status, result, ctx);
 
@@ -114,79 +115,166 @@ public final class MemcachedCommandDecoder extends FrameDecoder {
     }
 
     /**
-     * Process an individual complete protocol line and either passes the command for processing by the
-     * session handler, or (in the case of SET-type commands) partially parses the command and sets the session into
-     * a state to wait for additional data.
+     * Split the line at the start of the buffer into its space separated tokens, in one pass over it, looking for
+     * the end of each token eight bytes at a time. A line ends at a LF, and a CR before the LF is not part of it.
      *
-     * @param parts                 the (originally space separated) parts of the command
-     * @param channel               the netty channel to operate on
-     * @param channelHandlerContext the netty channel handler context
+     * @return the index just past the end of the line, or -1 if the buffer doesn't hold a whole line yet
+     */
+    private int tokenize(ChannelBuffer buffer) {
+        int index = buffer.readerIndex();
+        int end = buffer.writerIndex();
+
+        tokenCount = 0;
+        while (index < end) {
+            byte b = buffer.getByte(index);
+            if (b == '\n') return index + 1;
+            if (b == ' ' || b == '\r') {
+                index++;
+                continue;
+            }
+
+            int tokenEnd = BufferUtils.indexOfDelimiter(buffer, index + 1, end);
+            if (tokenEnd == -1) return -1;
+            addToken(index, tokenEnd);
+            index = tokenEnd;
+        }
+        return -1;
+    }
+
+    private void addToken(int start, int end) {
+        if (tokenCount * 2 == tokens.length) {
+            int[] grown = new int[tokens.length * 2];
+            System.arraycopy(tokens, 0, grown, 0, tokens.length);
+            tokens = grown;
+        }
+        tokens[tokenCount * 2] = start;
+        tokens[tokenCount * 2 + 1] = end;
+        tokenCount++;
+    }
+
+    private int start(int token) {
+        return tokens[token * 2];
+    }
+
+    private int length(int token) {
+        return tokens[token * 2 + 1] - tokens[token * 2];
+    }
+
+    private int atoi(ChannelBuffer buffer, int token) {
+        return BufferUtils.atoi(buffer, start(token), length(token));
+    }
+
+    private boolean isNoreply(ChannelBuffer buffer, int token) {
+        if (length(token) != NOREPLY.length) return false;
+        int start = start(token);
+        for (int i = 0; i < NOREPLY.length; i++) {
+            if (buffer.getByte(start + i) != NOREPLY[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the token as a key sliced out of the buffer, or copied out of it if it is to outlive the next read
+     */
+    private Key key(ChannelBuffer buffer, int token, boolean detach) {
+        return detach
+                ? new Key(buffer.copy(start(token), length(token)))
+                : new Key(buffer, start(token), length(token));
+    }
+
+    /**
+     * Process an individual complete protocol line, whose tokens have been found, and either passes the command
+     * for processing by the session handler, or (in the case of SET-type commands) partially parses the command and
+     * sets the session into a state to wait for additional data.
+     *
+     * @param buffer the buffer holding the line
+     * @return the command, or null if it has yet to get its data
      * @throws com.thimbleware.jmemcached.protocol.exceptions.MalformedCommandException
      * @throws com.thimbleware.jmemcached.protocol.exceptions.UnknownCommandException
      */
-    private Object processLine(List<ChannelBuffer> parts, Channel channel, ChannelHandlerContext channelHandlerContext) throws UnknownCommandException, MalformedCommandException {
-        final int numParts = parts.size();
+    @SuppressWarnings("unchecked")
+    private Object processLine(ChannelBuffer buffer) throws UnknownCommandException, MalformedCommandException {
+        final int numParts = tokenCount;
 
         // Turn the command into an enum for matching on
-        Op op;
-        try {
-            op = Op.FindOp(parts.get(0));
-            if (op == null)
-                throw new IllegalArgumentException("unknown operation: " + parts.get(0).toString());
-        } catch (IllegalArgumentException e) {
-            throw new UnknownCommandException("unknown operation: " + parts.get(0).toString());
-        }
-
-        // Produce the initial command message, for filling in later
-        CommandMessage cmd = CommandMessage.command(op);
+        Op op = Op.FindOp(buffer, start(0), length(0));
+        if (op == null)
+            throw new UnknownCommandException("unknown operation: " + buffer.toString(start(0), length(0), USASCII));
 
+        // Produce the initial command message, for filling in later; those which are done with by the time the
+        // next one is decoded share one
+        boolean storage = op == Op.APPEND || op == Op.PREPEND || op == Op.REPLACE || op == Op.ADD || op == Op.SET || op == Op.CAS;
+        CommandMessage cmd = storage || detachKeys ? CommandMessage.command(op) : reusable.reset(op);
 
         switch (op) {
             case DELETE:
-                cmd.setKey(parts.get(1));
+                if (numParts < 2)
+                    throw new MalformedCommandException("invalid delete command");
 
-                if (numParts >= MIN_BYTES_LINE) {
-                    if (parts.get(numParts - 1).equals(NOREPLY)) {
-                        cmd.noreply = true;
-                        if (numParts == 4)
-                            cmd.time = BufferUtils.atoi(parts.get(MIN_BYTES_LINE));
-                    } else if (numParts == 3)
-                        cmd.time = BufferUtils.atoi(parts.get(MIN_BYTES_LINE));
-                }
+                // a delete with a time leaves a place holder with the key in the cache
+                cmd.addKey(key(buffer, 1, true));
+
+                if (isNoreply(buffer, numParts - 1)) {
+                    cmd.noreply = true;
+                    if (numParts == 4)
+                        cmd.time = atoi(buffer, 2);
+                } else if (numParts == 3)
+                    cmd.time = atoi(buffer, 2);
 
                 return cmd;
             case DECR:
             case INCR:
                 // Malformed
-                if (numParts < MIN_BYTES_LINE || numParts > 3)
+                if (numParts < 3 || numParts > 4)
                     throw new MalformedCommandException("invalid increment command");
 
-                cmd.setKey(parts.get(1));
-                cmd.incrAmount = BufferUtils.atoi(parts.get(MIN_BYTES_LINE));
+                cmd.addKey(key(buffer, 1, detachKeys));
+                cmd.incrAmount = atoi(buffer, 2);
 
-                if (numParts == 3 && parts.get(MIN_BYTES_LINE).equals(NOREPLY)) {
+                if (numParts == 4 && isNoreply(buffer, 3)) {
                     cmd.noreply = true;
                 }
 
                 return cmd;
-            case FLUSH_ALL:
-                if (numParts >= 1) {
-                    if (parts.get(numParts - 1).equals(NOREPLY)) {
-                        cmd.noreply = true;
-                        if (numParts == 3)
-                            cmd.time = BufferUtils.atoi((parts.get(1)));
-                    } else if (numParts == MIN_BYTES_LINE)
-                        cmd.time = BufferUtils.atoi((parts.get(1)));
+            case TOUCH: // touch <key> <exptime> [noreply]\r\n
+                if (numParts < 3 || numParts > 4)
+                    throw new MalformedCommandException("invalid touch command");
+
+                cmd.addKey(key(buffer, 1, detachKeys));
+                cmd.time = (int) LocalCacheElement.expiry(atoi(buffer, 2));
+
+                if (numParts == 4 && isNoreply(buffer, 3)) {
+                    cmd.noreply = true;
                 }
+
+                return cmd;
+            case GAT: // gat <exptime> <key>*\r\n
+            case GATS:
+                if (numParts < 3)
+                    throw new MalformedCommandException("invalid get and touch command");
+
+                cmd.time = (int) LocalCacheElement.expiry(atoi(buffer, 1));
+                for (int i = 2; i < numParts; i++) {
+                    cmd.addKey(key(buffer, i, detachKeys));
+                }
+
+                return cmd;
+            case FLUSH_ALL:
+                if (isNoreply(buffer, numParts - 1)) {
+                    cmd.noreply = true;
+                    if (numParts == 3)
+                        cmd.time = atoi(buffer, 1);
+                } else if (numParts == 2)
+                    cmd.time = atoi(buffer, 1);
                 return cmd;
             case VERBOSITY: // verbosity <time> [noreply]\r\n
                 // Malformed
-                if (numParts < MIN_BYTES_LINE || numParts > 3)
+                if (numParts < 2 || numParts > 3)
                     throw new MalformedCommandException("invalid verbosity command");
 
-                cmd.time = BufferUtils.atoi((parts.get(1))); // verbose level
+                cmd.time = atoi(buffer, 1); // verbose level
 
-                if (numParts > 1 && parts.get(MIN_BYTES_LINE).equals(NOREPLY))
+                if (numParts > 2 && isNoreply(buffer, 2))
                     cmd.noreply = true;
 
                 return cmd;
@@ -202,19 +290,21 @@ public final class MemcachedCommandDecoder extends FrameDecoder {
                 }
 
                 // Fill in all the elements of the command
-                int size = BufferUtils.atoi(parts.get(4));
-                long expire = BufferUtils.atoi(parts.get(3)) * 1000;
-                int flags = BufferUtils.atoi(parts.get(MIN_BYTES_LINE));
-                cmd.element = new LocalCacheElement(new Key(parts.get(1).slice()), flags, expire != 0 && expire < CacheElement.THIRTY_DAYS ? LocalCacheElement.Now() + expire : expire, 0L);
+                int size = atoi(buffer, 4);
+                long expire = LocalCacheElement.expiry(atoi(buffer, 3));
+                int flags = atoi(buffer, 2);
+                // what is stored is copied out of the read buffer, which is compacted, bytes moved over the ones
+                // already read, on the next read
+                cmd.element = new LocalCacheElement(key(buffer, 1, true), flags, expire, 0L);
 
                 // look for cas and "noreply" elements
                 if (numParts > 5) {
                     int noreply = op == Op.CAS ? 6 : 5;
                     if (op == Op.CAS) {
-                        cmd.cas_key = BufferUtils.atol(parts.get(5));
+                        cmd.cas_key = BufferUtils.atol(buffer, start(5), length(5));
                     }
 
-                    if (numParts == noreply + 1 && parts.get(noreply).equals(NOREPLY))
+                    if (numParts == noreply + 1 && isNoreply(buffer, noreply))
                         cmd.noreply = true;
                 }
 
@@ -230,7 +320,9 @@ public final class MemcachedCommandDecoder extends FrameDecoder {
             case VERSION:
             case QUIT:
                 // Get all the keys
-                cmd.setKeys(parts.subList(1, numParts));
+                for (int i = 1; i < numParts; i++) {
+                    cmd.addKey(key(buffer, i, detachKeys));
+                }
 
                 // Pass it on.
                 return cmd;
@@ -250,7 +342,7 @@ public final class MemcachedCommandDecoder extends FrameDecoder {
      * @param channelHandlerContext netty channel handler context
      */
     private CommandMessage continueSet(Channel channel, SessionStatus state, ChannelBuffer remainder, ChannelHandlerContext channelHandlerContext) {
-        state.cmd.element.setData(remainder);
+        state.cmd.element.setData(ChannelBuffers.copiedBuffer(remainder));
         return state.cmd;
     }
 }
@@ -2,11 +2,13 @@ package com.thimbleware.jmemcached.protocol.text;
 
 import com.thimbleware.jmemcached.Cache;
 import com.thimbleware.jmemcached.protocol.MemcachedCommandHandler;
+import com.thimbleware.jmemcached.protocol.ResponseAggregator;
 import com.thimbleware.jmemcached.protocol.SessionStatus;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.handler.execution.ExecutionHandler;
 
 import java.nio.charset.Charset;
 
@@ -25,22 +27,41 @@ public final class MemcachedPipelineFactory implements ChannelPipelineFactory {
     private final MemcachedResponseEncoder memcachedResponseEncoder = new MemcachedResponseEncoder();
 
     private final MemcachedCommandHandler memcachedCommandHandler;
+    private final ExecutionHandler executionHandler;
 
 
     public MemcachedPipelineFactory(Cache cache, String version, boolean verbose, int idleTime, int frameSize, DefaultChannelGroup channelGroup) {
+        this(cache, version, verbose, idleTime, frameSize, channelGroup, null);
+    }
+
+    /**
+     * @param executionHandler hands decoded commands to other threads to be carried out, so that slow ones don't
+     *                         hold up the I/O thread; null to carry them out on the I/O thread
+     */
+    public MemcachedPipelineFactory(Cache cache, String version, boolean verbose, int idleTime, int frameSize, DefaultChannelGroup channelGroup, ExecutionHandler executionHandler) {
         this.cache = cache;
         this.version = version;
         this.verbose = verbose;
         this.idleTime = idleTime;
         this.frameSize = frameSize;
         this.channelGroup = channelGroup;
+        this.executionHandler = executionHandler;
         memcachedCommandHandler = new MemcachedCommandHandler(this.cache, this.version, this.verbose, this.idleTime, this.channelGroup);
     }
 
     public final ChannelPipeline getPipeline() throws Exception {
         SessionStatus status = new SessionStatus().ready();
 
+        if (executionHandler != null) {
+            return Channels.pipeline(
+                    new ResponseAggregator(),
+                    new MemcachedCommandDecoder(status, true),
+                    executionHandler,
+                    memcachedCommandHandler,
+                    memcachedResponseEncoder);
+        }
         return Channels.pipeline(
+                new ResponseAggregator(),
                 new MemcachedCommandDecoder(status),
                 memcachedCommandHandler,
                 memcachedResponseEncoder);
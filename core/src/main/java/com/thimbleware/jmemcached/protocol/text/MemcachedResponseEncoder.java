@@ -36,6 +36,7 @@ public final class MemcachedResponseEncoder<CACHE_ELEMENT extends CacheElement>
     private static final ChannelBuffer NOT_STORED = ChannelBuffers.copiedBuffer("NOT_STORED\r\n", USASCII);
     private static final ChannelBuffer STORED = ChannelBuffers.copiedBuffer("STORED\r\n", USASCII);
     private static final ChannelBuffer DELETED = ChannelBuffers.copiedBuffer("DELETED\r\n", USASCII);
+    private static final ChannelBuffer TOUCHED = ChannelBuffers.copiedBuffer("TOUCHED\r\n", USASCII);
     private static final ChannelBuffer END = ChannelBuffers.copiedBuffer("END\r\n", USASCII);
     private static final ChannelBuffer OK = ChannelBuffers.copiedBuffer("OK\r\n", USASCII);
     private static final ChannelBuffer ERROR = ChannelBuffers.copiedBuffer("ERROR\r\n", USASCII);
@@ -54,11 +55,11 @@ public final class MemcachedResponseEncoder<CACHE_ELEMENT extends CacheElement>
             throw e.getCause();
         } catch (ClientException ce) {
             if (ctx.getChannel().isOpen())
-                ctx.getChannel().write(CLIENT_ERROR);
+                ctx.getChannel().write(CLIENT_ERROR.duplicate());
         } catch (Throwable tr) {
             logger.error("error", tr);
             if (ctx.getChannel().isOpen())
-                ctx.getChannel().write(ERROR);
+                ctx.getChannel().write(ERROR.duplicate());
         }
     }
 
@@ -75,30 +76,45 @@ public final class MemcachedResponseEncoder<CACHE_ELEMENT extends CacheElement>
         switch (cmd) {
             case GET:
             case GETS:
-                CacheElement[] results = command.elements;
+            case GAT:
+            case GATS:
+                final CacheElement[] results = command.elements;
+                boolean withCas = cmd == Op.GETS || cmd == Op.GATS;
 
-                ChannelBuffer[] buffers = new ChannelBuffer[results.length * (9 + (cmd == Op.GETS ? 2 : 0)) + 1];
+                ChannelBuffer[] buffers = new ChannelBuffer[results.length * (9 + (withCas ? 2 : 0)) + 1];
                 int i = 0;
                 for (CacheElement result : results) {
-                    if (result != null) {
+                    if (result == null) continue;
+
+                    ChannelBuffer header = result.getResponseHeader();
+                    if (header != null) {
+                        buffers[i++] = header;
+                    } else {
                         buffers[i++] = VALUE;
                         buffers[i++] = result.getKey().bytes;
                         buffers[i++] = SPACE;
                         buffers[i++] = BufferUtils.itoa(result.getFlags());
                         buffers[i++] = SPACE;
                         buffers[i++] = BufferUtils.itoa(result.size());
-                        if (cmd == Op.GETS) {
-                            buffers[i++] = SPACE;
-                            buffers[i++] = BufferUtils.ltoa(result.getCasUnique());
-                        }
-                        buffers[i++] = CRLF;
-                        buffers[i++] = result.getData();
-                        buffers[i++] = CRLF;
                     }
+                    if (withCas) {
+                        buffers[i++] = SPACE;
+                        buffers[i++] = BufferUtils.ltoa(result.getCasUnique());
+                    }
+                    buffers[i++] = CRLF;
+                    buffers[i++] = result.getData();
+                    buffers[i++] = CRLF;
                 }
                 buffers[i] = END;
 
-                Channels.write(channel, ChannelBuffers.wrappedBuffer(buffers));
+                // the data may be straight out of the cache's storage; let it go once it has been written
+                Channels.write(channel, ChannelBuffers.wrappedBuffer(buffers)).addListener(new ChannelFutureListener() {
+                    public void operationComplete(ChannelFuture future) {
+                        for (CacheElement result : results) {
+                            if (result != null) result.release();
+                        }
+                    }
+                });
                 break;
             case APPEND:
             case PREPEND:
@@ -114,6 +130,10 @@ public final class MemcachedResponseEncoder<CACHE_ELEMENT extends CacheElement>
                     Channels.write(channel, deleteResponseString(command.deleteResponse));
 
                 break;
+            case TOUCH:
+                if (!command.cmd.noreply)
+                    Channels.write(channel, command.touched ? TOUCHED.duplicate() : NOT_FOUND.duplicate());
+                break;
             case DECR:
             case INCR:
                 if (!command.cmd.noreply)
@@ -0,0 +1,188 @@
+package com.thimbleware.jmemcached.storage;
+
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.io.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the contents of a storage to a dump file, and loads them back.
+ * <p/>
+ * The file starts with a short header saying whether the rest of it is compressed. Then come the entries, each
+ * in the layout of {@link LocalCacheElement#writeToBuffer(org.jboss.netty.buffer.ChannelBuffer)}, which starts
+ * with its length; then a zero length, the number of entries and a CRC32 of everything since the header.
+ * Expired and blocked entries are left out, and entries which expire between the snapshot and the restore are
+ * skipped when it is loaded.
+ */
+public final class CacheSnapshot {
+
+    private static final int MAGIC = 0x6a6d6364;
+    private static final int VERSION = 2;
+
+    private CacheSnapshot() {
+    }
+
+    /**
+     * Write a snapshot of a storage, which goes on serving requests in the meantime. The snapshot is written to a
+     * temporary file which replaces the given one once complete, so an existing snapshot is never left half
+     * overwritten.
+     *
+     * @param storage the storage to snapshot
+     * @param file the file to write to
+     * @param compress whether to compress the file
+     * @return the number of entries written
+     * @throws IOException thrown on failure to write the file
+     */
+    public static long write(CacheStorage<Key, LocalCacheElement> storage, File file, boolean compress) throws IOException {
+        File partial = new File(file.getPath() + ".partial");
+        OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(partial), 65536);
+        long count;
+        boolean complete = false;
+        try {
+            DataOutputStream header = new DataOutputStream(fileOut);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeBoolean(compress);
+
+            OutputStream bodyOut = compress ? new GZIPOutputStream(fileOut, 65536) : fileOut;
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(bodyOut, crc));
+
+            EntryWriter writer = new EntryWriter(out);
+            storage.visit(writer);
+            if (writer.failure != null) throw writer.failure;
+            count = writer.count;
+
+            out.writeInt(0);
+            out.writeLong(count);
+            out.flush();
+            new DataOutputStream(bodyOut).writeLong(crc.getValue());
+
+            if (compress) ((GZIPOutputStream) bodyOut).finish();
+            complete = true;
+        } finally {
+            fileOut.close();
+            if (!complete) partial.delete();
+        }
+
+        if (!partial.renameTo(file)) {
+            // some platforms won't rename over an existing file
+            file.delete();
+            if (!partial.renameTo(file)) throw new IOException("unable to move snapshot into place at " + file);
+        }
+        return count;
+    }
+
+    /**
+     * Load a snapshot into a storage, which is expected to be empty and not yet serving requests. If the
+     * snapshot turns out to be corrupt the storage is cleared again.
+     *
+     * @param storage the storage to load into
+     * @param file the file to read from
+     * @param casCounter the counter the cache gives out CAS values from, which is moved past those of the
+     *                   entries loaded, so that no later write is given a CAS a client may still hold
+     * @return the number of entries loaded
+     * @throws IOException thrown on failure to read the file, or if it is not an intact snapshot
+     */
+    public static long read(CacheStorage<Key, LocalCacheElement> storage, File file, AtomicLong casCounter) throws IOException {
+        InputStream fileIn = new BufferedInputStream(new FileInputStream(file), 65536);
+        try {
+            DataInputStream header = new DataInputStream(fileIn);
+            if (header.readInt() != MAGIC) throw new IOException(file + " is not a snapshot");
+            if (header.readInt() != VERSION) throw new IOException(file + " is a snapshot of an unsupported version");
+            boolean compressed = header.readBoolean();
+
+            InputStream bodyIn = compressed ? new GZIPInputStream(fileIn, 65536) : fileIn;
+            CRC32 crc = new CRC32();
+            DataInputStream in = new DataInputStream(new CheckedInputStream(bodyIn, crc));
+
+            try {
+                int now = LocalCacheElement.Now();
+                long highestCas = 0;
+                long loaded = 0;
+                long count = 0;
+                int length;
+                while ((length = in.readInt()) != 0) {
+                    if (length < 4) throw new IOException(file + " is corrupt");
+
+                    // the element is a slice of the buffer, so each one gets its own
+                    ChannelBuffer buffer = ChannelBuffers.buffer(length);
+                    buffer.writeInt(length);
+                    in.readFully(buffer.array(), 4, length - 4);
+                    buffer.writerIndex(length);
+                    LocalCacheElement element = LocalCacheElement.readFromBuffer(buffer);
+                    count++;
+
+                    if (element.getExpire() != 0 && element.getExpire() < now) continue;
+                    storage.put(element.getKey(), element);
+                    highestCas = Math.max(highestCas, element.getCasUnique());
+                    loaded++;
+                }
+
+                long writtenCount = in.readLong();
+                long expectedCrc = crc.getValue();
+                if (writtenCount != count || new DataInputStream(bodyIn).readLong() != expectedCrc)
+                    throw new IOException(file + " failed its checksum");
+                advance(casCounter, highestCas);
+                return loaded;
+            } catch (IOException e) {
+                storage.clear();
+                throw e;
+            } catch (RuntimeException e) {
+                storage.clear();
+                throw new IOException(file + " is corrupt: " + e);
+            }
+        } finally {
+            fileIn.close();
+        }
+    }
+
+    /**
+     * Move a CAS counter past a value, unless it is past it already.
+     */
+    private static void advance(AtomicLong casCounter, long cas) {
+        long current;
+        while ((current = casCounter.get()) <= cas) {
+            if (casCounter.compareAndSet(current, cas + 1)) return;
+        }
+    }
+
+    /**
+     * Writes the live entries it is passed, holding on to the first failure as visitors can't throw it.
+     */
+    private static final class EntryWriter implements CacheStorage.Visitor<LocalCacheElement> {
+        private final DataOutputStream out;
+        private final int now = LocalCacheElement.Now();
+        private ChannelBuffer buffer = ChannelBuffers.buffer(4096);
+        private IOException failure;
+        private long count;
+
+        EntryWriter(DataOutputStream out) {
+            this.out = out;
+        }
+
+        public void visit(LocalCacheElement element) {
+            if (failure != null) return;
+            if (element.isBlocked() || (element.getExpire() != 0 && element.getExpire() < now)) return;
+
+            int size = element.bufferSize();
+            if (size > buffer.capacity()) buffer = ChannelBuffers.buffer(Math.max(size, buffer.capacity() * 2));
+            buffer.clear();
+            element.writeToBuffer(buffer);
+            try {
+                out.write(buffer.array(), buffer.arrayOffset(), size);
+                count++;
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+    }
+}
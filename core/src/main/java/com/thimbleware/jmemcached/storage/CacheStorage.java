@@ -20,11 +20,67 @@ public interface CacheStorage<K, V extends SizedItem> extends ConcurrentMap<K, V
      */
     long getMemoryUsed();
 
+    /**
+     * @return the number of bytes of the entries themselves, without the storage's own overhead; so the ratio of
+     * {@link #getMemoryUsed()} to this is how much the storage costs over the data it holds
+     */
+    long getDataUsed();
+
+    /**
+     * @return the memory (in bytes) taken by responses rendered in advance for the values held (see
+     * {@link SizedItem#responseHeaderSize()}); 0 for storage which doesn't keep them
+     */
+    long getResponseHeadersUsed();
+
     /**
      * @return the capacity (in # of items) of the storage
      */
     int capacity();
 
+    /**
+     * Look up a value which is to be written out to a client, or read to build the value replacing it. Storage which hands out views onto memory it may
+     * reuse keeps that memory from being reused until the value is released.
+     *
+     * @param key the key to look up
+     * @return the value, or null if there is none
+     * @see com.thimbleware.jmemcached.CacheElement#release()
+     */
+    V lease(K key);
+
+    /**
+     * Look up a number of values at once, as {@link #lease(Object)} does each; storage which locks can look up
+     * those which share a lock under one acquisition of it.
+     *
+     * @param keys the keys to look up
+     * @param values receives the value of each key, or null if it has none, at the key's position
+     */
+    void lease(K[] keys, V[] values);
+
+    /**
+     * Pass every value in the storage to a visitor, without holding up other operations for the whole pass. Like
+     * iteration over a {@link java.util.concurrent.ConcurrentHashMap}, entries added or removed during the pass
+     * may or may not be seen. The values passed are the visitor's to keep; they need not be released.
+     *
+     * @param visitor the visitor to pass the values to
+     */
+    void visit(Visitor<? super V> visitor);
+
+    /**
+     * Look through the next part of the storage for entries which have expired or been flushed, and remove them.
+     * Each call carries on from where the last left off, starting over once the whole storage has been covered.
+     *
+     * @param crawl decides which entries may be reclaimed, and counts those which are
+     * @param limit roughly how many entries to look at
+     */
+    void crawl(Crawl crawl, int limit);
+
+    /**
+     * Receives the values of a storage during {@link CacheStorage#visit(Visitor)}.
+     */
+    interface Visitor<V> {
+        void visit(V value);
+    }
+
     /**
      * Close the storage unit, deallocating any resources it might be currently holding.
      * @throws java.io.IOException thrown if IO faults occur anywhere during close.
@@ -0,0 +1,52 @@
+package com.thimbleware.jmemcached.storage;
+
+/**
+ * A step of a crawl through a storage for entries which have expired or been flushed, which decides which entries
+ * may be reclaimed and counts those which are.
+ *
+ * @see CacheStorage#crawl(Crawl, int)
+ */
+public final class Crawl {
+    private final int now;
+    private final long flushedThrough;
+
+    private int reclaimed;
+    private long reclaimedBytes;
+
+    /**
+     * @param now the current time in seconds; entries which expire before it are reclaimable
+     * @param flushedThrough entries stored at or before this stamp are reclaimable; 0 if the storage has never
+     *                       been flushed
+     */
+    public Crawl(int now, long flushedThrough) {
+        this.now = now;
+        this.flushedThrough = flushedThrough;
+    }
+
+    /**
+     * @param expiry the time in seconds at which the entry expires, or 0 if it doesn't
+     * @param stored the stamp the entry was stored with
+     * @return true if the entry may be reclaimed
+     */
+    public boolean isReclaimable(long expiry, long stored) {
+        return (expiry != 0 && expiry < now) || stored <= flushedThrough;
+    }
+
+    /**
+     * Count an entry as reclaimed.
+     *
+     * @param bytes the number of bytes freed by its removal
+     */
+    public void reclaimed(long bytes) {
+        reclaimed++;
+        reclaimedBytes += bytes;
+    }
+
+    public int getReclaimed() {
+        return reclaimed;
+    }
+
+    public long getReclaimedBytes() {
+        return reclaimedBytes;
+    }
+}
@@ -3,39 +3,80 @@ package com.thimbleware.jmemcached.storage.bytebuffer;
 import com.thimbleware.jmemcached.Key;
 import com.thimbleware.jmemcached.LocalCacheElement;
 import com.thimbleware.jmemcached.storage.CacheStorage;
+import com.thimbleware.jmemcached.storage.Crawl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
+import java.io.*;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Implementation of the cache using the block buffer storage back end.
+ * <p/>
+ * Each partition evicts its own regions when an allocation does not fit or it grows past its share of the
+ * ceiling; the maximum number of items is enforced across all partitions by evicting whichever partition
+ * holds the oldest eviction candidate.
+ * <p/>
+ * Reads first try the partition without taking its lock, validating against the partition's version
+ * afterwards, and only take the read lock if a writer interfered. Writes take the partition's write lock.
+ * Values leased out to be written to clients keep their regions pinned in the store until released.
+ * <p/>
+ * Partitions whose block stores outlive them (see {@link ByteBufferBlockStore#getStateFile()}) save their index
+ * on close rather than clearing it, and are reattached to the store's contents when next constructed.
  */
 public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCacheElement> {
 
+    final Logger logger = LoggerFactory.getLogger(BlockStorageCacheStorage.class);
+
+    /**
+     * The number of index slots looked at a time under a partition's lock while visiting or crawling it
+     */
+    private static final int VISIT_SLOTS = 256;
+
     Partition[] partitions;
 
+    /**
+     * The partition and index slot at which the last crawl left off
+     */
+    private int crawlPartition;
+    private int crawlSlot;
+
     volatile int ceilingBytes;
     volatile int maximumItems;
-    volatile int numberItems;
     final long maximumSizeBytes;
 
+    /**
+     * @param blockStoreBuckets the number of partitions
+     * @param ceilingBytesParam the number of bytes which may be in use before entries are evicted; 0 for no ceiling
+     * @param blockSizeBytes the size of a block in the store
+     * @param maximumSizeBytes the total size of the store
+     * @param maximumItemsVal the maximum number of items; 0 for no limit
+     * @param factory the factory for each partition's block store
+     */
     public BlockStorageCacheStorage(int blockStoreBuckets, int ceilingBytesParam, int blockSizeBytes, long maximumSizeBytes, int maximumItemsVal, BlockStoreFactory factory) {
         this.partitions = new Partition[blockStoreBuckets];
 
         long bucketSizeBytes = maximumSizeBytes / blockStoreBuckets;
+        long bucketCeilingBytes = ceilingBytesParam > 0 ? ceilingBytesParam / blockStoreBuckets : bucketSizeBytes;
+        AtomicLong sequence = new AtomicLong();
         for (int i = 0; i < blockStoreBuckets; i++) {
-            this.partitions[i] = new Partition(factory.manufacture(bucketSizeBytes, blockSizeBytes));
+            this.partitions[i] = new Partition(factory.manufacture(bucketSizeBytes, blockSizeBytes), bucketCeilingBytes, sequence);
+            restore(this.partitions[i]);
         }
 
-        this.numberItems = 0;
-        this.ceilingBytes = 0;
-        this.maximumItems = 0;
+        this.ceilingBytes = ceilingBytesParam;
+        this.maximumItems = maximumItemsVal;
         this.maximumSizeBytes = maximumSizeBytes;
     }
 
     private Partition pickPartition(Key key) {
-        return partitions[hash(key.hashCode()) & (partitions.length - 1)];
+        return partitions[partitionOf(key)];
+    }
+
+    private int partitionOf(Key key) {
+        // take the partition from the high bits of the hash, as each partition's index is addressed by the low ones
+        return (int) (((hash(key.hashCode()) & 0xffffffffL) * partitions.length) >>> 32);
     }
 
     public final long getMemoryCapacity() {
@@ -54,13 +95,37 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
         return memUsed;
     }
 
+    public final long getDataUsed() {
+        long dataUsed = 0;
+        for (Partition partition : partitions) {
+            dataUsed += partition.getDataBytes();
+        }
+        return dataUsed;
+    }
+
+    /**
+     * Always 0, as values are kept in serialized form, without anything rendered in advance for them
+     */
+    public final long getResponseHeadersUsed() {
+        return 0;
+    }
+
     public final int capacity() {
         return maximumItems;
     }
 
     public final void close() throws IOException {
-        // first clear all items
-        clear();
+        // first clear all items, or save them if they are to outlive us
+        for (Partition partition : partitions) {
+            partition.lockWrite();
+            try {
+                File stateFile = partition.blockStore.getStateFile();
+                if (stateFile != null) save(partition, stateFile);
+                else partition.clear();
+            } finally {
+                partition.unlockWrite();
+            }
+        }
 
         // then ask the block store to close
         for (Partition byteBufferBlockStore : partitions) {
@@ -69,33 +134,59 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
         this.partitions = null;
     }
 
+    private void save(Partition partition, File stateFile) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(stateFile)));
+        try {
+            partition.save(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reattach a partition to the contents its block store had when last closed, if it saved them. The saved state
+     * is deleted once read, as it no longer matches the store once the partition has been written to.
+     */
+    private void restore(Partition partition) {
+        File stateFile = partition.blockStore.getStateFile();
+        if (stateFile == null || !stateFile.exists()) return;
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)));
+            try {
+                if (partition.restore(in)) {
+                    logger.info("restored " + partition.numberItems + " items from " + stateFile);
+                } else {
+                    logger.warn("ignoring incompatible saved state " + stateFile);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logger.warn("unable to restore saved state " + stateFile + "; starting empty", e);
+            partition.clear();
+        }
+        stateFile.delete();
+    }
+
     public final LocalCacheElement putIfAbsent(Key key, LocalCacheElement item) {
         Partition partition = pickPartition(key);
 
-        partition.storageLock.readLock().lock();
+        // most adds are of keys which aren't there; a present one can be returned without the write lock
+        LocalCacheElement existing = getOptimistically(partition, key);
+        if (existing != null) return existing;
+
+        partition.lockWrite();
         try {
             Region region = partition.find(key);
-
-            // not there? add it
-            if (region == null) {
-                partition.storageLock.readLock().unlock();
-                partition.storageLock.writeLock().lock();
-                try {
-                    numberItems++;
-                    partition.add(key, item);
-                } finally {
-                    partition.storageLock.readLock().lock();
-                    partition.storageLock.writeLock().unlock();
-                }
-
-                return null;
-            } else {
-                // there? return its value
-                return region.toValue();
-            }
+            if (region != null) return region.copyValue();
+            partition.add(key, item);
         } finally {
-            partition.storageLock.readLock().unlock();
+            partition.unlockWrite();
         }
+
+        enforceMaximumItems();
+        return null;
     }
 
     /**
@@ -107,100 +198,64 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
         Key key = (Key) okey;
         Partition partition = pickPartition(key);
 
-
+        partition.lockWrite();
         try {
-            partition.storageLock.readLock().lock();
             Region region = partition.find(key);
-            if (region == null) return false;
-            else {
-                partition.storageLock.readLock().unlock();
-                partition.storageLock.writeLock().lock();
-                try {
-                    partition.blockStore.free(region);
-                    partition.remove(key, region);
-                    numberItems++;
-                    return true;
-                } finally {
-                    partition.storageLock.readLock().lock();
-                    partition.storageLock.writeLock().unlock();
-                }
-
-            }
+            if (region == null || !region.toValue().equals(value)) return false;
+            partition.remove(key, region);
+            return true;
         } finally {
-            partition.storageLock.readLock().unlock();
+            partition.unlockWrite();
         }
     }
 
     public final boolean replace(Key key, LocalCacheElement original, LocalCacheElement replace) {
         Partition partition = pickPartition(key);
 
-        partition.storageLock.readLock().lock();
+        partition.lockWrite();
         try {
             Region region = partition.find(key);
 
-            // not there? that's a fail
-            if (region == null) return false;
-
-            // there, check for equivalence of value
-            LocalCacheElement el = null;
-            el = region.toValue();
-            if (!el.equals(original)) {
-                return false;
-            } else {
-                partition.storageLock.readLock().unlock();
-                partition.storageLock.writeLock().lock();
-                try {
-                    partition.remove(key, region);
-                    partition.add(key, replace);
-                    return true;
-                } finally {
-                    partition.storageLock.readLock().lock();
-                    partition.storageLock.writeLock().unlock();
-                }
-
-            }
+            // not there, or not what was expected? that's a fail
+            if (region == null || !region.toValue().equals(original)) return false;
 
+            partition.remove(key, region);
+            partition.add(key, replace);
+            return true;
         } finally {
-            partition.storageLock.readLock().unlock();
+            partition.unlockWrite();
         }
     }
 
     public final LocalCacheElement replace(Key key, LocalCacheElement replace) {
         Partition partition = pickPartition(key);
 
-        partition.storageLock.readLock().lock();
+        partition.lockWrite();
         try {
             Region region = partition.find(key);
 
             // not there? that's a fail
             if (region == null) return null;
 
-            // there,
-            LocalCacheElement el = null;
-            el = region.toValue();
-            partition.storageLock.readLock().unlock();
-            partition.storageLock.writeLock().lock();
-            try {
-                partition.remove(key, region);
-                partition.add(key, replace);
-                return el;
-            } finally {
-                partition.storageLock.readLock().lock();
-                partition.storageLock.writeLock().unlock();
-            }
-
-
+            LocalCacheElement el = region.copyValue();
+            partition.remove(key, region);
+            partition.add(key, replace);
+            return el;
         } finally {
-            partition.storageLock.readLock().unlock();
+            partition.unlockWrite();
         }
     }
 
     public final int size() {
+        int numberItems = 0;
+        for (Partition partition : partitions) {
+            numberItems += partition.numberItems;
+        }
         return numberItems;
     }
 
     public final boolean isEmpty() {
-        return numberItems == 0;
+        return size() == 0;
     }
 
     public final boolean containsKey(Object okey) {
@@ -209,8 +264,16 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
         Key key = (Key) okey;
         Partition partition = pickPartition(key);
 
+        int stamp = partition.optimisticRead();
+        try {
+            boolean has = partition.has(key);
+            if (partition.validate(stamp)) return has;
+        } catch (RuntimeException e) {
+            // raced with a writer; retry under the lock
+        }
+
+        partition.storageLock.readLock().lock();
         try {
-            partition.storageLock.readLock().lock();
             return partition.has(key);
         } finally {
             partition.storageLock.readLock().unlock();
@@ -221,49 +284,257 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
         throw new UnsupportedOperationException("operation not supported");
     }
 
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The value is copied out of the store, as are those returned by put, replace and remove, so it stays whole
+     * whatever becomes of its region; {@link #lease(Key)} reads without the copy.
+     */
     public final LocalCacheElement get(Object okey) {
         if (!(okey instanceof Key)) return null;
 
         Key key = (Key) okey;
-        Partition partition = pickPartition(key);
+        return getOptimistically(pickPartition(key), key);
+    }
 
+    /**
+     * Look a key up without taking the partition's lock, falling back to the read lock if a writer
+     * modified the partition while the value was being read.
+     */
+    private LocalCacheElement getOptimistically(Partition partition, Key key) {
+        int stamp = partition.optimisticRead();
+        try {
+            Region region = partition.find(key);
+            LocalCacheElement value = region == null ? null : region.copyValue();
+            if (partition.validate(stamp)) {
+                if (region != null) partition.touch(region);
+                return value;
+            }
+        } catch (RuntimeException e) {
+            // raced with a writer and read a torn region; retry under the lock
+        }
+
+        partition.storageLock.readLock().lock();
         try {
-            partition.storageLock.readLock().lock();
             Region region = partition.find(key);
             if (region == null) return null;
-            return region.toValue();
+            partition.touch(region);
+            return region.copyValue();
         } finally {
             partition.storageLock.readLock().unlock();
         }
     }
 
-    public final LocalCacheElement put(final Key key, final LocalCacheElement item) {
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The value's key and data are slices of the block store, so its region is pinned until the value is released.
+     */
+    public final LocalCacheElement lease(Key key) {
         Partition partition = pickPartition(key);
 
-        partition.storageLock.readLock().lock();
+        int stamp = partition.optimisticRead();
+        int pin = Partition.NONE;
         try {
             Region region = partition.find(key);
+            if (region == null) {
+                if (partition.validate(stamp)) return null;
+            } else {
+                // pin before validating, so that a writer which got in after the read would see it
+                pin = partition.pin(region);
+                LocalCacheElement value = partition.read(region, pin);
+                if (partition.validate(stamp)) {
+                    partition.touch(region);
+                    return partition.lease(value, pin);
+                }
+            }
+        } catch (RuntimeException e) {
+            // raced with a writer and read a torn region; retry under the lock
+        }
+        if (pin != Partition.NONE) partition.unpin(pin);
 
+        partition.storageLock.readLock().lock();
+        try {
+            Region region = partition.find(key);
+            if (region == null) return null;
+            partition.touch(region);
+            pin = partition.pin(region);
+            return partition.lease(partition.read(region, pin), pin);
+        } finally {
             partition.storageLock.readLock().unlock();
-            partition.storageLock.writeLock().lock();
-            try {
-                LocalCacheElement old = null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The keys are sorted by partition, and those of each partition looked up together, validated once against the
+     * partition's version or, if a writer interfered, looked up again under a single acquisition of its read lock.
+     */
+    public final void lease(Key[] keys, LocalCacheElement[] values) {
+        if (keys.length == 1) {
+            values[0] = lease(keys[0]);
+            return;
+        }
+
+        // the partition in the high half and the position of the key in the low, so sorting groups them
+        long[] order = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            order[i] = ((long) partitionOf(keys[i]) << 32) | i;
+        }
+        Arrays.sort(order);
+
+        int start = 0;
+        while (start < order.length) {
+            int partition = (int) (order[start] >>> 32);
+            int end = start + 1;
+            while (end < order.length && (int) (order[end] >>> 32) == partition) end++;
+
+            lease(partitions[partition], keys, order, start, end, values);
+            start = end;
+        }
+    }
+
+    /**
+     * Lease the values of the keys at the given positions, which are all in the one partition.
+     */
+    private void lease(Partition partition, Key[] keys, long[] order, int start, int end, LocalCacheElement[] values) {
+        int count = end - start;
+        Region[] regions = new Region[count];
+        int[] pins = new int[count];
+        Arrays.fill(pins, Partition.NONE);
+
+        int stamp = partition.optimisticRead();
+        try {
+            for (int i = 0; i < count; i++) {
+                int index = (int) order[start + i];
+                Region region = partition.find(keys[index]);
                 if (region != null) {
-                    old = region.toValue();
+                    // pin before validating, so that a writer which got in after the read would see it
+                    pins[i] = partition.pin(region);
+                    values[index] = partition.read(region, pins[i]);
+                    regions[i] = region;
+                } else {
+                    values[index] = null;
                 }
-                if (region != null) partition.remove(key, region);
-                partition.add(key, item);
-                numberItems++;
-                return old;
-            } finally {
+            }
+            if (partition.validate(stamp)) {
+                for (int i = 0; i < count; i++) {
+                    if (regions[i] == null) continue;
+                    int index = (int) order[start + i];
+                    partition.touch(regions[i]);
+                    values[index] = partition.lease(values[index], pins[i]);
+                }
+                return;
+            }
+        } catch (RuntimeException e) {
+            // raced with a writer and read a torn region; retry under the lock
+        }
+        for (int i = 0; i < count; i++) {
+            if (pins[i] != Partition.NONE) partition.unpin(pins[i]);
+        }
+
+        partition.storageLock.readLock().lock();
+        try {
+            for (int i = start; i < end; i++) {
+                int index = (int) order[i];
+                Region region = partition.find(keys[index]);
+                if (region == null) {
+                    values[index] = null;
+                } else {
+                    partition.touch(region);
+                    int pin = partition.pin(region);
+                    values[index] = partition.lease(partition.read(region, pin), pin);
+                }
+            }
+        } finally {
+            partition.storageLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Values are copied out of each partition a run of index slots at a time under its read lock, so writers
+     * are only held up for as long as one run takes to copy.
+     */
+    public final void visit(Visitor<? super LocalCacheElement> visitor) {
+        List<LocalCacheElement> values = new ArrayList<LocalCacheElement>(VISIT_SLOTS);
+        for (Partition partition : partitions) {
+            int slot = 0;
+            while (slot != Partition.NONE) {
                 partition.storageLock.readLock().lock();
-                partition.storageLock.writeLock().unlock();
+                try {
+                    slot = partition.copyValues(slot, VISIT_SLOTS, values);
+                } finally {
+                    partition.storageLock.readLock().unlock();
+                }
+
+                for (LocalCacheElement value : values) {
+                    visitor.visit(value);
+                }
+                values.clear();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Entries are judged by the expiry and stamp in the index alone. Runs of index slots are looked through under
+     * the read lock, and the write lock only taken for those which hold something to reclaim.
+     */
+    public final synchronized void crawl(Crawl crawl, int limit) {
+        for (int looked = 0, partitionsDone = 0; looked < limit && partitionsDone < partitions.length; looked += VISIT_SLOTS) {
+            Partition partition = partitions[crawlPartition];
+
+            boolean reclaimable;
+            int next;
+            partition.storageLock.readLock().lock();
+            try {
+                reclaimable = partition.hasReclaimable(crawlSlot, VISIT_SLOTS, crawl);
+                next = partition.slotAfter(crawlSlot, VISIT_SLOTS);
+            } finally {
+                partition.storageLock.readLock().unlock();
             }
 
+            if (reclaimable) {
+                partition.lockWrite();
+                try {
+                    next = partition.reclaim(crawlSlot, VISIT_SLOTS, crawl);
+                } finally {
+                    partition.unlockWrite();
+                }
+            }
 
+            if (next == Partition.NONE) {
+                crawlPartition = (crawlPartition + 1) % partitions.length;
+                crawlSlot = 0;
+                partitionsDone++;
+            } else {
+                crawlSlot = next;
+            }
+        }
+    }
+
+    public final LocalCacheElement put(final Key key, final LocalCacheElement item) {
+        Partition partition = pickPartition(key);
+
+        LocalCacheElement old = null;
+        partition.lockWrite();
+        try {
+            Region region = partition.find(key);
+            if (region != null) {
+                old = region.copyValue();
+                partition.remove(key, region);
+            }
+            partition.add(key, item);
         } finally {
-            partition.storageLock.readLock().unlock();
+            partition.unlockWrite();
         }
+
+        enforceMaximumItems();
+        return old;
     }
 
     public final LocalCacheElement remove(Object okey) {
@@ -272,28 +543,15 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
         Key key = (Key) okey;
         Partition partition = pickPartition(key);
 
+        partition.lockWrite();
         try {
-            partition.storageLock.readLock().lock();
             Region region = partition.find(key);
             if (region == null) return null;
-            else {
-                partition.storageLock.readLock().unlock();
-                partition.storageLock.writeLock().lock();
-                try {
-                    LocalCacheElement old = null;
-                    old = region.toValue();
-                    partition.blockStore.free(region);
-                    partition.remove(key, region);
-                    numberItems--;
-                    return old;
-                } finally {
-                    partition.storageLock.readLock().lock();
-                    partition.storageLock.writeLock().unlock();
-                }
-
-            }
+            LocalCacheElement old = region.copyValue();
+            partition.remove(key, region);
+            return old;
         } finally {
-            partition.storageLock.readLock().unlock();
+            partition.unlockWrite();
         }
     }
 
@@ -309,15 +567,81 @@ public final class BlockStorageCacheStorage implements CacheStorage<Key, LocalCa
 
     public final void clear() {
         for (Partition partition : partitions) {
-            partition.storageLock.writeLock().lock();
-            numberItems += partition.keys().size() * - 1;
+            partition.lockWrite();
             try {
                 partition.clear();
             } finally {
-                partition.storageLock.writeLock().unlock();
+                partition.unlockWrite();
+            }
+        }
+
+    }
+
+    /**
+     * Evict from whichever partitions hold the oldest eviction candidates until the number of items is
+     * within the maximum. Must be called without holding any partition lock.
+     */
+    private void enforceMaximumItems() {
+        while (maximumItems > 0 && size() > maximumItems) {
+            Partition oldest = null;
+            long oldestSequence = Long.MAX_VALUE;
+            for (Partition partition : partitions) {
+                long headSequence = partition.headSequence;
+                if (headSequence < oldestSequence) {
+                    oldestSequence = headSequence;
+                    oldest = partition;
+                }
+            }
+            if (oldest == null) return;
+
+            oldest.lockWrite();
+            try {
+                oldest.evict();
+            } finally {
+                oldest.unlockWrite();
             }
         }
+    }
 
+    /**
+     * @return the highest CAS value of the entries reattached when the storage was opened, or 0 if there were none
+     */
+    public long getRestoredCasUnique() {
+        long cas = 0;
+        for (Partition partition : partitions) {
+            cas = Math.max(cas, partition.restoredCasUnique);
+        }
+        return cas;
+    }
+
+    /**
+     * @return the number of items evicted to make room for others
+     */
+    public long getEvictions() {
+        long evictions = 0;
+        for (Partition partition : partitions) {
+            evictions += partition.getEvictions();
+        }
+        return evictions;
+    }
+
+    /**
+     * @return the usage of each size class, summed over the partitions, smallest first; empty unless the
+     * partitions allocate from slabs
+     */
+    public List<SlabBlockStore.SlabClassStats> getSlabClassStats() {
+        List<SlabBlockStore.SlabClassStats> total = new ArrayList<SlabBlockStore.SlabClassStats>();
+        for (Partition partition : partitions) {
+            List<SlabBlockStore.SlabClassStats> stats = partition.getSlabClassStats();
+            if (stats == null) break;
+
+            for (int i = 0; i < stats.size(); i++) {
+                SlabBlockStore.SlabClassStats classStats = stats.get(i);
+                if (i == total.size()) total.add(classStats);
+                else total.set(i, total.get(i).add(classStats));
+            }
+        }
+        return total;
     }
 
     public Set<Key> keySet() {
@@ -4,18 +4,23 @@ import com.thimbleware.jmemcached.util.OpenBitSet;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
 import java.io.IOException;
 
 /**
- * Memory mapped block storage mechanism with a free-list maintained by TreeMap
- *
- * Allows memory for storage to be mapped outside of the VM's main memory, and outside the purvey
- * of the GC.
- *
- * Should offer O(Log(N)) search and free of blocks.
+ * Block storage in a single large array on the JVM heap, with the allocated blocks kept in a bitset and
+ * allocated first fit. However many entries it holds, the store is the same few objects for the GC to trace.
+ * Subclasses provide the buffer from elsewhere, such as a memory mapped file.
  */
 public class ByteBufferBlockStore {
 
+    /**
+     * The largest store which can be held in one array and addressed by int offsets
+     */
+    public static final long MAXIMUM_STORE_SIZE = Integer.MAX_VALUE;
+
     protected ChannelBuffer storageBuffer;
 
     private long freeBytes;
@@ -81,8 +86,6 @@ public class ByteBufferBlockStore {
         // clear the buffer
         storageBuffer.clear();
 
-        allocated = new OpenBitSet(storeSizeBytes / blockSizeBytes);
-
         clear();
     }
 
@@ -116,13 +119,50 @@ public class ByteBufferBlockStore {
         // noop
     }
 
-    private int markPos(int numBlocks) {
-        int mark = allocated.mark(numBlocks);
-        if (mark == -1) throw new BadAllocationException("unable to allocate room; all blocks consumed");
-        return mark;
+    /**
+     * @return the file in which the state of the store's partition is saved on close, so that it can be reattached
+     * to the store's contents when reopened; or null if the contents do not outlive the store
+     */
+    public File getStateFile() {
+        return null;
     }
 
+    /**
+     * Write out the allocation bitmap, for {@link #restoreAllocation(java.io.DataInput)} to read back.
+     */
+    public void saveAllocation(DataOutput out) throws IOException {
+        out.writeLong(storeSizeBytes);
+        out.writeInt(blockSizeBytes);
+        out.writeLong(freeBytes);
+
+        long[] bits = allocated.getBits();
+        int numWords = allocated.getNumWords();
+        out.writeInt(numWords);
+        for (int i = 0; i < numWords; i++) {
+            out.writeLong(bits[i]);
+        }
+    }
 
+    /**
+     * Read back an allocation bitmap written by {@link #saveAllocation(java.io.DataOutput)}.
+     *
+     * @return false, leaving the store as it was, if the bitmap was saved by a store of a different geometry
+     */
+    public boolean restoreAllocation(DataInput in) throws IOException {
+        if (in.readLong() != storeSizeBytes || in.readInt() != blockSizeBytes) return false;
+        long savedFreeBytes = in.readLong();
+
+        int numWords = in.readInt();
+        if (numWords != allocated.getNumWords()) return false;
+        long[] bits = new long[allocated.getBits().length];
+        for (int i = 0; i < numWords; i++) {
+            bits[i] = in.readLong();
+        }
+
+        allocated = new OpenBitSet(bits, numWords);
+        freeBytes = savedFreeBytes;
+        return true;
+    }
 
     private void clear(int start, int numBlocks) {
         allocated.clear(start, start + numBlocks);
@@ -137,10 +177,25 @@ public class ByteBufferBlockStore {
      * @return the region descriptor
      */
     public Region alloc(int desiredSize, long expiry, long timestamp) {
+        Region region = tryAlloc(desiredSize, expiry, timestamp);
+        if (region == null) throw new BadAllocationException("unable to allocate room; all blocks consumed");
+        return region;
+    }
+
+    /**
+     * Allocate a region in the block storage, if there is room for it.
+     *
+     * @param desiredSize size (in bytes) desired for the region
+     * @param expiry expiry time in ms since epoch
+     * @param timestamp allocation timestamp of the entry
+     * @return the region descriptor, or null if no run of free blocks is large enough
+     */
+    public Region tryAlloc(int desiredSize, long expiry, long timestamp) {
         final long desiredBlockSize = roundUp(desiredSize, blockSizeBytes);
         int numBlocks = (int) (desiredBlockSize / blockSizeBytes);
 
-        int pos = markPos(numBlocks);
+        int pos = allocated.mark(numBlocks);
+        if (pos == -1) return null;
 
         freeBytes -= desiredBlockSize;
 
@@ -153,22 +208,51 @@ public class ByteBufferBlockStore {
         return new Region(desiredSize, numBlocks, pos, slice, expiry, timestamp);
     }
 
+    /**
+     * Whether freeing the region starting at a block could make room for an allocation of the given size; in a
+     * store which allocates from a single run of blocks, any region's blocks could.
+     */
+    public boolean canReplace(int startBlock, int desiredSize) {
+        return true;
+    }
+
+    /**
+     * Choose blocks to empty so that an allocation of the given size can succeed, for when no region which
+     * {@link #canReplace(int, int) could be replaced} by it is left.
+     *
+     * @return the first block and the number of blocks, or null if emptying the oldest regions first is as good
+     */
+    public int[] blocksToEmpty(int desiredSize) {
+        return null;
+    }
+
     public ChannelBuffer get(int startBlock, int size) {
         return storageBuffer.slice(startBlock * blockSizeBytes, size);
     }
 
     public void free(Region region) {
-        freeBytes += (region.usedBlocks * blockSizeBytes);
         region.valid = false;
         region.slice = null;
-        int pos = region.startBlock;
-        clear(pos, region.size / blockSizeBytes);
+        free(region.startBlock, region.usedBlocks);
+    }
+
+    /**
+     * Return the blocks of a region to the store, given only its position.
+     *
+     * @param startBlock the first block of the region
+     * @param usedBlocks the number of blocks the region occupies
+     */
+    public void free(int startBlock, int usedBlocks) {
+        freeBytes += ((long) usedBlocks * blockSizeBytes);
+        clear(startBlock, usedBlocks);
     }
 
     public void clear()
     {
-        // say goodbye to the region list
-        allocated = new OpenBitSet(allocated.size());
+        // say goodbye to the region list; the bits past the last whole block are never handed out
+        long numBlocks = storeSizeBytes / blockSizeBytes;
+        allocated = new OpenBitSet(numBlocks);
+        allocated.set(numBlocks, allocated.capacity());
 
         // reset the # of free bytes back to the max size
         freeBytes = storeSizeBytes;
@@ -2,169 +2,831 @@ package com.thimbleware.jmemcached.storage.bytebuffer;
 
 import com.thimbleware.jmemcached.Key;
 import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.storage.Crawl;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
+ * A slice of the block storage, guarded by its own lock.
+ * <p/>
+ * Keys are located through an open-addressed (linearly probed) index held in a single buffer, on the JVM heap
+ * if the block store is and off it otherwise, so the partition is a fixed number of objects however many
+ * entries it holds. Each
+ * fixed-size slot holds the key's hash, a fingerprint of its bytes and the location of its region, so probing
+ * for a key allocates nothing and only goes to the block store for the final key comparison. A hit still
+ * allocates, though: a {@link Region} and a slice of the store for it, and then the {@link LocalCacheElement},
+ * its {@link Key} and the slices (or copy) of the bytes the value is read into; cutting those would mean handing
+ * the region's bytes straight to the response encoders, which is left for another day.
+ * Deleted slots are left as tombstones until the index is next rebuilt.
+ * <p/>
+ * Writers hold the write lock and bump a version number on the way in and out of it, so readers may look a key
+ * up without any lock at all (see {@link #optimisticRead()}) and only fall back to the read lock if a writer
+ * got in their way.
+ * <p/>
+ * Values handed out to be written to clients refer to the block store directly rather than to copies, so their
+ * regions are pinned until the write is done (see {@link #pin(Region)}). A pinned region which is removed leaves
+ * the index at once, but its blocks are only returned to the store once it is unpinned.
+ * <p/>
+ * Regions are kept on a list in insertion order which is threaded through the region headers in the block
+ * store itself. When an allocation does not fit, or the partition grows past its ceiling, regions are evicted
+ * from the head of that list, giving a "second chance" to those which have been read since they were last
+ * passed over (see {@link com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap.EvictionPolicy#SECOND_CHANCE}).
+ * Those passed over also include any whose blocks the store couldn't give the new region, as in a slab store
+ * where only regions of the same size class can make room for it.
  */
 public final class Partition {
-    private static final int NUM_BUCKETS = 32768;
+    private static final int INITIAL_SLOTS = 1024;
+
+    /**
+     * Offsets into an index slot
+     */
+    private static final int EXPIRY_OFFSET = 0;
+    private static final int TIMESTAMP_OFFSET = 8;
+    private static final int HASH_OFFSET = 16;
+    private static final int FINGERPRINT_OFFSET = 20;
+    private static final int START_BLOCK_OFFSET = 24;
+    private static final int SIZE_OFFSET = 28;
+    private static final int USED_BLOCKS_OFFSET = 32;
+    private static final int KEY_LENGTH_OFFSET = 36;
+    private static final int SLOT_SIZE = 40;
+
+    /**
+     * Start block values marking a slot which has never been used, and one whose entry has been removed
+     */
+    private static final int EMPTY = -1;
+    private static final int DELETED = -2;
+
+    /**
+     * Marker for the absence of a region on the eviction list, or of a pin
+     */
+    static final int NONE = -1;
+
+    /**
+     * The number of regions which may be pinned at once; values read beyond this are copied instead
+     */
+    private static final int MAX_PINS = 64;
+
+    /**
+     * Identifies the saved state of a partition, and the layout of the index and region headers it was saved with
+     */
+    private static final int STATE_MAGIC = 0x6a6d6370;
+    private static final int STATE_VERSION = 2;
 
     ReentrantReadWriteLock storageLock = new ReentrantReadWriteLock();
 
-    ChannelBuffer[] buckets = new ChannelBuffer[NUM_BUCKETS];
+    /**
+     * Incremented on acquiring and on releasing the write lock, so it is odd while a write is in progress. Both
+     * are atomic updates, so that none of a writer's stores can be seen before the first or after the second.
+     */
+    private final AtomicInteger version = new AtomicInteger();
 
     ByteBufferBlockStore blockStore;
 
-    int numberItems;
-
-    Partition(ByteBufferBlockStore blockStore) {
+    /**
+     * Replaced whole when the index is rebuilt; readers without the lock read it once per lookup
+     */
+    private volatile ChannelBuffer index;
+    private int slotMask;
+    private int tombstones;
+
+    volatile int numberItems;
+
+    /**
+     * The total size of the regions holding the partition's entries
+     */
+    volatile long dataBytes;
+
+    /**
+     * The maximum number of bytes this partition may have allocated before it starts evicting
+     */
+    final long ceilingBytes;
+
+    /**
+     * Insertion sequence shared by all partitions of a storage, so that their eviction candidates can be compared
+     */
+    private final AtomicLong sequence;
+
+    /**
+     * Start blocks of the first (next to be evicted) and last regions on the eviction list
+     */
+    private int head = NONE;
+    private int tail = NONE;
+
+    /**
+     * Insertion sequence of the region at the head of the eviction list, readable without holding the lock
+     */
+    volatile long headSequence = Long.MAX_VALUE;
+
+    volatile long evictions;
+
+    /**
+     * The highest CAS value of the entries reattached by {@link #restore(DataInputStream)}
+     */
+    long restoredCasUnique;
+
+    /**
+     * Start blocks (plus one, so that zero is free) of the pinned regions, and the number of pins held
+     */
+    private final AtomicIntegerArray pins = new AtomicIntegerArray(MAX_PINS);
+    private final AtomicInteger pinCount = new AtomicInteger();
+
+    /**
+     * Start blocks and block counts of removed regions still pinned at the time, and so not yet freed
+     */
+    private int[] deferred = new int[16];
+    private volatile int deferredCount;
+
+    Partition(ByteBufferBlockStore blockStore, long ceilingBytes, AtomicLong sequence) {
         this.blockStore = blockStore;
+        this.ceilingBytes = ceilingBytes;
+        this.sequence = sequence;
+        this.index = newIndex(INITIAL_SLOTS);
+    }
+
+    /**
+     * Take the write lock, marking the partition as being modified for optimistic readers.
+     */
+    void lockWrite() {
+        storageLock.writeLock().lock();
+        version.incrementAndGet();
+    }
+
+    void unlockWrite() {
+        version.incrementAndGet();
+        storageLock.writeLock().unlock();
+    }
+
+    /**
+     * Begin a read without taking the lock. Anything read from the partition before a successful
+     * {@link #validate(int)} of the returned stamp is consistent; anything else must be thrown away, and may
+     * even have thrown an exception on the way.
+     *
+     * @return a stamp to validate the read against, or -1 if a write is in progress
+     */
+    int optimisticRead() {
+        int stamp = version.get();
+        return (stamp & 1) == 0 ? stamp : -1;
+    }
+
+    /**
+     * @return true if the partition has not been modified since the stamp was taken. The check is a
+     * compare-and-set rather than a plain read of the version, as only that keeps the reads of the index and
+     * the store before it from being reordered past it.
+     */
+    boolean validate(int stamp) {
+        return stamp != -1 && version.compareAndSet(stamp, stamp);
     }
 
     public Region find(Key key) {
-        int bucket = findBucketNum(key);
-
-        if (buckets[bucket] == null) return null;
-        ChannelBuffer regions = buckets[bucket].slice();
-
-        regions.readerIndex(0);
-        while (regions.readableBytes() > 0) {
-            int totsize = regions.readInt();
-            int rsize = regions.readInt();
-            int rusedBlocks = regions.readInt();
-            int rstartBlock = regions.readInt();
-            long expiry = regions.readLong();
-            long timestamp = regions.readLong();
-            int rkeySize = regions.readInt();
-
-            if (rkeySize == key.bytes.capacity()) {
-                ChannelBuffer rkey = regions.readSlice(rkeySize);
-
-                key.bytes.readerIndex(0);
-                if (rkey.equals(key.bytes)) return new Region(rsize, rusedBlocks, rstartBlock, blockStore.get(rstartBlock, rsize), expiry, timestamp);
-            } else {
-                regions.skipBytes(rkeySize);
-            }
-        }
+        // this may run without the lock, so work from one index throughout
+        ChannelBuffer index = this.index;
+        int slot = findSlot(index, key);
+        if (slot == NONE) return null;
 
-        return null;
+        return region(index, slot * SLOT_SIZE);
+    }
+
+    private Region region(ChannelBuffer index, int offset) {
+        int startBlock = index.getInt(offset + START_BLOCK_OFFSET);
+        int size = index.getInt(offset + SIZE_OFFSET);
+        return new Region(size, index.getInt(offset + USED_BLOCKS_OFFSET), startBlock, blockStore.get(startBlock, size),
+                index.getLong(offset + EXPIRY_OFFSET), index.getLong(offset + TIMESTAMP_OFFSET));
     }
 
     public boolean has(Key key) {
-        int bucket = findBucketNum(key);
+        return findSlot(this.index, key) != NONE;
+    }
+
+    /**
+     * Remove a region from the index and the eviction list, and return its blocks to the store.
+     */
+    public void remove(Key key, Region region) {
+        int slot = findSlot(BlockStorageCacheStorage.hash(key.hashCode()), region.startBlock);
+        if (slot == NONE) return;
+
+        removeSlot(slot);
+        region.valid = false;
+        region.slice = null;
+    }
 
-        if (buckets[bucket] == null) return false;
-        ChannelBuffer regions = buckets[bucket].slice();
+    public Region add(Key key, LocalCacheElement e) {
+        Region region = allocate(Region.HEADER_SIZE + e.bufferSize(), e.getExpire(), e.getStored());
+        if (region == null)
+            throw new ByteBufferBlockStore.BadAllocationException("unable to allocate room; element is larger than the partition");
 
+        int hash = BlockStorageCacheStorage.hash(key.hashCode());
+        blockStore.storageBuffer.setInt(position(region.startBlock) + Region.HASH_OFFSET, hash);
+        region.slice.writerIndex(Region.HEADER_SIZE);
+        e.writeToBuffer(region.slice);
+        link(region.startBlock);
+
+        // keep at least a quarter of the slots empty so that probe sequences stay short
+        int slots = slotMask + 1;
+        if (numberItems + tombstones + 1 > slots - (slots >>> 2)) rebuildIndex();
+
+        int offset = insertionSlot(hash) * SLOT_SIZE;
+        if (index.getInt(offset + START_BLOCK_OFFSET) == DELETED) tombstones--;
+        index.setLong(offset + EXPIRY_OFFSET, region.expiry);
+        index.setLong(offset + TIMESTAMP_OFFSET, region.timestamp);
+        index.setInt(offset + HASH_OFFSET, hash);
+        index.setInt(offset + FINGERPRINT_OFFSET, fingerprint(key.bytes));
+        index.setInt(offset + START_BLOCK_OFFSET, region.startBlock);
+        index.setInt(offset + SIZE_OFFSET, region.size);
+        index.setInt(offset + USED_BLOCKS_OFFSET, region.usedBlocks);
+        index.setInt(offset + KEY_LENGTH_OFFSET, key.bytes.capacity());
+
+        numberItems++;
+        dataBytes += region.size;
 
-        regions.readerIndex(0);
-        while (regions.readableBytes() > 0) {
-            int totsize = regions.readInt();
-            regions.skipBytes(28);
-            int rkeySize = regions.readInt();
+        return region;
+    }
 
-            if (rkeySize == key.bytes.capacity()) {
-                ChannelBuffer rkey = regions.readSlice(rkeySize);
+    /**
+     * Allocate room for a new region, evicting older regions until there is a run of blocks which fits
+     * and the partition is within its ceiling.
+     *
+     * @param stored the stamp the element was stored with, kept in the index as the region's timestamp
+     * @return the region, or null if the partition holds nothing more which can be evicted
+     */
+    private Region allocate(int size, long expiry, long stored) {
+        if (deferredCount > 0) reclaim();
+
+        long blocksBytes = ByteBufferBlockStore.roundUp(size, blockStore.getBlockSizeBytes());
+        while (getUsedBytes() + blocksBytes > ceilingBytes) {
+            if (!evictFor(size)) break;
+        }
 
-                key.bytes.readerIndex(0);
-                if (rkey.equals(key.bytes)) return true;
-            } else {
-                regions.skipBytes(rkeySize);
+        Region region;
+        while ((region = blockStore.tryAlloc(size, expiry, stored)) == null) {
+            if (!evictFor(size)) return null;
+        }
+        return region;
+    }
+
+    /**
+     * Evict to make room for an allocation of the given size: the oldest region whose blocks the store could give
+     * it (see {@link ByteBufferBlockStore#canReplace(int, int)}), or failing that the regions in whatever blocks
+     * the store would have emptied for it, or failing that the region at the head of the eviction list.
+     *
+     * @return true if anything was evicted, false if the partition is empty
+     */
+    private boolean evictFor(int size) {
+        if (evictReplaceable(size)) return true;
+
+        int[] blocks = blockStore.blocksToEmpty(size);
+        if (blocks != null && evictBlocks(blocks[0], blocks[1])) return true;
+
+        return evict();
+    }
+
+    /**
+     * Evict the oldest region whose blocks the store could give an allocation of the given size, passing over
+     * the others where they are; those which could be replaced but have been referenced since they were last
+     * considered get a second chance, as {@link #evict()} gives them.
+     *
+     * @return true if a region was evicted
+     */
+    private boolean evictReplaceable(int size) {
+        ChannelBuffer storage = blockStore.storageBuffer;
+        int victim = head;
+        // each region is passed over at most twice, unless it is read again meanwhile
+        for (int steps = 2 * numberItems + 1; victim != NONE && steps > 0; steps--) {
+            int position = position(victim);
+            int next = storage.getInt(position + Region.NEXT_OFFSET);
+            if (blockStore.canReplace(victim, size)) {
+                if (storage.getByte(position + Region.REFERENCED_OFFSET) != 0) {
+                    unlink(victim);
+                    link(victim);
+                    // it may have been the tail, and so is now the next to look at
+                    if (next == NONE) next = victim;
+                } else {
+                    int slot = findSlot(storage.getInt(position + Region.HASH_OFFSET), victim);
+                    if (slot == NONE) {
+                        // not indexed; should never happen, but don't loop forever on it
+                        unlink(victim);
+                    } else {
+                        removeSlot(slot);
+                        evictions++;
+                        return true;
+                    }
+                }
+            }
+            victim = next;
+        }
+        return false;
+    }
+
+    /**
+     * Evict every region starting in a run of blocks.
+     *
+     * @return true if any region was evicted
+     */
+    private boolean evictBlocks(int firstBlock, int blocks) {
+        boolean evicted = false;
+        for (int slot = 0; slot <= slotMask; slot++) {
+            int startBlock = index.getInt(slot * SLOT_SIZE + START_BLOCK_OFFSET);
+            if (startBlock >= firstBlock && startBlock < firstBlock + blocks) {
+                removeSlot(slot);
+                evictions++;
+                evicted = true;
             }
         }
+        return evicted;
+    }
 
+    /**
+     * Evict the region at the head of the eviction list. Regions which have been referenced since they were
+     * last considered are instead cleared and moved to the tail.
+     *
+     * @return true if a region was evicted, false if the partition is empty
+     */
+    boolean evict() {
+        while (head != NONE) {
+            int victim = head;
+            int position = position(victim);
+            ChannelBuffer storage = blockStore.storageBuffer;
+            if (storage.getByte(position + Region.REFERENCED_OFFSET) != 0) {
+                unlink(victim);
+                link(victim);
+                continue;
+            }
+
+            int slot = findSlot(storage.getInt(position + Region.HASH_OFFSET), victim);
+            if (slot == NONE) {
+                // not indexed; should never happen, but don't loop forever on it
+                unlink(victim);
+                continue;
+            }
+            removeSlot(slot);
+            evictions++;
+            return true;
+        }
         return false;
     }
 
-    private int findBucketNum(Key key) {
-        int hash = BlockStorageCacheStorage.hash(key.hashCode());
-        return hash & (buckets.length - 1);
+    /**
+     * Flag a region as recently used, sparing it from the next eviction pass. This is a single byte write
+     * and may safely race with other readers.
+     */
+    void touch(Region region) {
+        blockStore.storageBuffer.setByte(position(region.startBlock) + Region.REFERENCED_OFFSET, 1);
     }
 
-    public void remove(Key key, Region region) {
-        int bucket = findBucketNum(key);
-
-        ChannelBuffer newRegion = ChannelBuffers.dynamicBuffer(128);
-        ChannelBuffer regions = buckets[bucket].slice();
-        if (regions == null) return;
-
-        regions.readerIndex(0);
-        while (regions.readableBytes() > 0) {
-            // read key portion then region portion
-            int pos = regions.readerIndex();
-            int totsize = regions.readInt();
-            regions.skipBytes(28);
-            int rkeySize = regions.readInt();
-            ChannelBuffer rkey = regions.readBytes(rkeySize);
-
-            if (rkeySize != key.bytes.capacity() || !rkey.equals(key.bytes)) {
-                newRegion.writeBytes(regions.slice(pos, regions.readerIndex()));
+    /**
+     * @return the slot holding the key, or NONE if it is not present
+     */
+    private int findSlot(ChannelBuffer index, Key key) {
+        // this may run without the lock, so never probe more than all of the index
+        int slotMask = index.capacity() / SLOT_SIZE - 1;
+
+        int hash = BlockStorageCacheStorage.hash(key.hashCode());
+        int keyLength = key.bytes.capacity();
+        int fingerprint = 0;
+        boolean fingerprinted = false;
+
+        for (int slot = hash & slotMask, probes = 0; probes <= slotMask; slot = (slot + 1) & slotMask, probes++) {
+            int offset = slot * SLOT_SIZE;
+            int startBlock = index.getInt(offset + START_BLOCK_OFFSET);
+            if (startBlock == EMPTY) return NONE;
+            if (startBlock == DELETED || index.getInt(offset + HASH_OFFSET) != hash || index.getInt(offset + KEY_LENGTH_OFFSET) != keyLength)
+                continue;
+
+            // only bother with the fingerprint once the hash has matched something
+            if (!fingerprinted) {
+                fingerprint = fingerprint(key.bytes);
+                fingerprinted = true;
             }
+            if (index.getInt(offset + FINGERPRINT_OFFSET) == fingerprint && keyMatches(startBlock, key.bytes)) return slot;
+        }
+        return NONE;
+    }
+
+    /**
+     * @return the slot referring to the region starting at the given block, or NONE if it is not indexed
+     */
+    private int findSlot(int hash, int startBlock) {
+        for (int slot = hash & slotMask; ; slot = (slot + 1) & slotMask) {
+            int slotStartBlock = index.getInt(slot * SLOT_SIZE + START_BLOCK_OFFSET);
+            if (slotStartBlock == EMPTY) return NONE;
+            if (slotStartBlock == startBlock) return slot;
+        }
+    }
+
+    /**
+     * @return the first empty or deleted slot on the probe sequence for a hash
+     */
+    private int insertionSlot(int hash) {
+        for (int slot = hash & slotMask; ; slot = (slot + 1) & slotMask) {
+            if (index.getInt(slot * SLOT_SIZE + START_BLOCK_OFFSET) < 0) return slot;
         }
+    }
+
+    private void removeSlot(int slot) {
+        int offset = slot * SLOT_SIZE;
+        int startBlock = index.getInt(offset + START_BLOCK_OFFSET);
+
+        unlink(startBlock);
+        free(startBlock, index.getInt(offset + USED_BLOCKS_OFFSET));
 
-        buckets[bucket] = newRegion;
+        // a probe sequence which ends right after this slot no longer needs it, nor any tombstones before it
+        if (index.getInt(((slot + 1) & slotMask) * SLOT_SIZE + START_BLOCK_OFFSET) == EMPTY) {
+            index.setInt(offset + START_BLOCK_OFFSET, EMPTY);
+            for (int prev = (slot - 1) & slotMask; index.getInt(prev * SLOT_SIZE + START_BLOCK_OFFSET) == DELETED; prev = (prev - 1) & slotMask) {
+                index.setInt(prev * SLOT_SIZE + START_BLOCK_OFFSET, EMPTY);
+                tombstones--;
+            }
+        } else {
+            index.setInt(offset + START_BLOCK_OFFSET, DELETED);
+            tombstones++;
+        }
 
         numberItems--;
+        dataBytes -= index.getInt(offset + SIZE_OFFSET);
     }
 
-    public Region add(Key key, LocalCacheElement e) {
-        Region region = blockStore.alloc(e.bufferSize(), e.getExpire(), System.currentTimeMillis());
-        e.writeToBuffer(region.slice);
-        int bucket = findBucketNum(key);
+    /**
+     * Rehash the live slots into a new index without tombstones, doubling its size if it is over half full.
+     */
+    private void rebuildIndex() {
+        int slots = slotMask + 1;
+        ChannelBuffer oldIndex = index;
+        index = newIndex(numberItems + 1 > slots >>> 1 ? slots << 1 : slots);
+        tombstones = 0;
+
+        for (int offset = 0; offset < slots * SLOT_SIZE; offset += SLOT_SIZE) {
+            if (oldIndex.getInt(offset + START_BLOCK_OFFSET) >= 0) {
+                index.setBytes(insertionSlot(oldIndex.getInt(offset + HASH_OFFSET)) * SLOT_SIZE, oldIndex, offset, SLOT_SIZE);
+            }
+        }
+    }
 
-        ChannelBuffer outbuf = ChannelBuffers.directBuffer(32 + key.bytes.capacity());
-        outbuf.writeInt(region.size);
-        outbuf.writeInt(region.usedBlocks);
-        outbuf.writeInt(region.startBlock);
-        outbuf.writeLong(region.expiry);
-        outbuf.writeLong(region.timestamp);
-        outbuf.writeInt(key.bytes.capacity());
-        key.bytes.readerIndex(0);
-        outbuf.writeBytes(key.bytes);
+    private ChannelBuffer newIndex(int slots) {
+        ChannelBuffer buffer = blockStore.storageBuffer.isDirect()
+                ? ChannelBuffers.directBuffer(slots * SLOT_SIZE) : ChannelBuffers.buffer(slots * SLOT_SIZE);
+        for (int offset = 0; offset < slots * SLOT_SIZE; offset += SLOT_SIZE) {
+            buffer.setInt(offset + START_BLOCK_OFFSET, EMPTY);
+        }
+        slotMask = slots - 1;
+        return buffer;
+    }
 
-        ChannelBuffer regions = buckets[bucket];
-        if (regions == null) {
-            regions = ChannelBuffers.dynamicBuffer(128);
-            buckets[bucket] = regions;
+    /**
+     * Compare a key against the one stored in a region, a long at a time, without materializing the latter.
+     */
+    private boolean keyMatches(int startBlock, ChannelBuffer key) {
+        ChannelBuffer storage = blockStore.storageBuffer;
+        int keyPosition = position(startBlock) + Region.KEY_LENGTH_OFFSET + 4;
+        int length = key.capacity();
+
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            if (storage.getLong(keyPosition + i) != key.getLong(i)) return false;
+        }
+        for (; i < length; i++) {
+            if (storage.getByte(keyPosition + i) != key.getByte(i)) return false;
         }
+        return true;
+    }
 
-        regions.writeInt(outbuf.capacity());
-        regions.writeBytes(outbuf);
+    /**
+     * A second, independent (FNV-1a) hash of the key's bytes, which spares a trip to the block store on
+     * most collisions of the main hash.
+     */
+    static int fingerprint(ChannelBuffer key) {
+        int fingerprint = 0x811c9dc5;
+        for (int i = 0; i < key.capacity(); i++) {
+            fingerprint ^= key.getByte(i) & 0xff;
+            fingerprint *= 0x01000193;
+        }
+        return fingerprint;
+    }
 
-        numberItems++;
+    /**
+     * Keep a region's blocks from being reused until it is unpinned, even if it is removed in the meantime.
+     * Readers not holding the lock must pin before validating their read, as writers check for pins only
+     * after marking the partition as modified.
+     *
+     * @return the pin to release, or NONE if too many regions are pinned already
+     */
+    int pin(Region region) {
+        pinCount.incrementAndGet();
+        int mark = region.startBlock + 1;
+        for (int i = 0, pin = mark & (MAX_PINS - 1); i < MAX_PINS; i++, pin = (pin + 1) & (MAX_PINS - 1)) {
+            if (pins.get(pin) == 0 && pins.compareAndSet(pin, 0, mark)) return pin;
+        }
+        pinCount.decrementAndGet();
+        return NONE;
+    }
 
-        return region;
+    /**
+     * Release a pin, and free any removed regions which it was the last to hold. Must be called without
+     * holding the lock.
+     */
+    void unpin(int pin) {
+        pins.set(pin, 0);
+        pinCount.decrementAndGet();
+
+        if (deferredCount > 0) {
+            lockWrite();
+            try {
+                reclaim();
+            } finally {
+                unlockWrite();
+            }
+        }
+    }
+
+    private boolean isPinned(int startBlock) {
+        if (pinCount.get() == 0) return false;
+        for (int pin = 0; pin < MAX_PINS; pin++) {
+            if (pins.get(pin) == startBlock + 1) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Return a removed region's blocks to the store, unless it is pinned, in which case that is left until it
+     * is unpinned.
+     */
+    private void free(int startBlock, int usedBlocks) {
+        if (!isPinned(startBlock)) {
+            blockStore.free(startBlock, usedBlocks);
+            return;
+        }
+
+        if (deferredCount * 2 == deferred.length) {
+            int[] grown = new int[deferred.length * 2];
+            System.arraycopy(deferred, 0, grown, 0, deferred.length);
+            deferred = grown;
+        }
+        deferred[deferredCount * 2] = startBlock;
+        deferred[deferredCount * 2 + 1] = usedBlocks;
+        deferredCount++;
+    }
+
+    /**
+     * Free those removed regions which are no longer pinned.
+     */
+    private void reclaim() {
+        int remaining = 0;
+        for (int i = 0; i < deferredCount; i++) {
+            int startBlock = deferred[i * 2];
+            int usedBlocks = deferred[i * 2 + 1];
+            if (isPinned(startBlock)) {
+                deferred[remaining * 2] = startBlock;
+                deferred[remaining * 2 + 1] = usedBlocks;
+                remaining++;
+            } else {
+                blockStore.free(startBlock, usedBlocks);
+            }
+        }
+        deferredCount = remaining;
+    }
+
+    /**
+     * Read the value of a region which has been pinned, or a copy of it if it couldn't be.
+     */
+    LocalCacheElement read(Region region, int pin) {
+        return pin == NONE ? region.copyValue() : region.toValue();
+    }
+
+    /**
+     * Arrange for a pin to be released along with the value read under it.
+     */
+    LocalCacheElement lease(LocalCacheElement value, final int pin) {
+        if (pin != NONE) {
+            value.onRelease(new Runnable() {
+                public void run() {
+                    unpin(pin);
+                }
+            });
+        }
+        return value;
+    }
+
+    private void link(int startBlock) {
+        ChannelBuffer storage = blockStore.storageBuffer;
+        int position = position(startBlock);
+        storage.setInt(position + Region.PREV_OFFSET, tail);
+        storage.setInt(position + Region.NEXT_OFFSET, NONE);
+        storage.setLong(position + Region.SEQUENCE_OFFSET, sequence.incrementAndGet());
+        storage.setByte(position + Region.REFERENCED_OFFSET, 0);
+
+        if (tail == NONE) {
+            head = startBlock;
+            updateHeadSequence();
+        } else {
+            storage.setInt(position(tail) + Region.NEXT_OFFSET, startBlock);
+        }
+        tail = startBlock;
+    }
+
+    private void unlink(int startBlock) {
+        ChannelBuffer storage = blockStore.storageBuffer;
+        int position = position(startBlock);
+        int prev = storage.getInt(position + Region.PREV_OFFSET);
+        int next = storage.getInt(position + Region.NEXT_OFFSET);
+
+        if (prev == NONE) head = next;
+        else storage.setInt(position(prev) + Region.NEXT_OFFSET, next);
+
+        if (next == NONE) tail = prev;
+        else storage.setInt(position(next) + Region.PREV_OFFSET, prev);
+
+        if (prev == NONE) updateHeadSequence();
+    }
+
+    private void updateHeadSequence() {
+        headSequence = head == NONE ? Long.MAX_VALUE : blockStore.storageBuffer.getLong(position(head) + Region.SEQUENCE_OFFSET);
+    }
+
+    private int position(int startBlock) {
+        return startBlock * blockStore.getBlockSizeBytes();
+    }
+
+    public long getUsedBytes() {
+        return blockStore.getStoreSizeBytes() - blockStore.getFreeBytes();
     }
 
     public void clear() {
-        for (ChannelBuffer bucket : buckets) {
-            if (bucket != null)
-                bucket.clear();
+        if (pinCount.get() == 0) {
+            blockStore.clear();
+            deferredCount = 0;
+        } else {
+            // spare the pinned regions; everything else goes back to the store
+            for (int offset = 0; offset <= slotMask * SLOT_SIZE; offset += SLOT_SIZE) {
+                int startBlock = index.getInt(offset + START_BLOCK_OFFSET);
+                if (startBlock >= 0) free(startBlock, index.getInt(offset + USED_BLOCKS_OFFSET));
+            }
         }
-        blockStore.clear();
+        index = newIndex(INITIAL_SLOTS);
+        tombstones = 0;
+        head = NONE;
+        tail = NONE;
+        headSequence = Long.MAX_VALUE;
         numberItems = 0;
+        dataBytes = 0;
+    }
+
+    /**
+     * Copy out the values of the entries in a run of index slots. Must be called holding the lock; the index may be
+     * rebuilt between calls, so a pass over it in runs may miss entries moved by the rebuild, or see them twice.
+     *
+     * @param fromSlot the first slot of the run
+     * @param slots the number of slots in the run
+     * @param values receives copies of the values
+     * @return the slot following the run, or NONE if it reached the end of the index
+     */
+    int copyValues(int fromSlot, int slots, List<LocalCacheElement> values) {
+        int end = Math.min(fromSlot + slots, slotMask + 1);
+        for (int slot = fromSlot; slot < end; slot++) {
+            int offset = slot * SLOT_SIZE;
+            if (index.getInt(offset + START_BLOCK_OFFSET) >= 0) values.add(region(index, offset).copyValue());
+        }
+        return slotAfter(fromSlot, slots);
+    }
+
+    /**
+     * @return true if any entry in a run of index slots may be reclaimed by a crawl. Must be called holding the lock.
+     */
+    boolean hasReclaimable(int fromSlot, int slots, Crawl crawl) {
+        int end = Math.min(fromSlot + slots, slotMask + 1);
+        for (int slot = fromSlot; slot < end; slot++) {
+            int offset = slot * SLOT_SIZE;
+            if (index.getInt(offset + START_BLOCK_OFFSET) >= 0
+                    && crawl.isReclaimable(index.getLong(offset + EXPIRY_OFFSET), index.getLong(offset + TIMESTAMP_OFFSET)))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Remove those entries in a run of index slots which may be reclaimed by a crawl. Must be called holding the
+     * write lock.
+     *
+     * @return the slot following the run, or NONE if it reached the end of the index
+     */
+    int reclaim(int fromSlot, int slots, Crawl crawl) {
+        int end = Math.min(fromSlot + slots, slotMask + 1);
+        for (int slot = fromSlot; slot < end; slot++) {
+            int offset = slot * SLOT_SIZE;
+            if (index.getInt(offset + START_BLOCK_OFFSET) >= 0
+                    && crawl.isReclaimable(index.getLong(offset + EXPIRY_OFFSET), index.getLong(offset + TIMESTAMP_OFFSET))) {
+                crawl.reclaimed((long) index.getInt(offset + USED_BLOCKS_OFFSET) * blockStore.getBlockSizeBytes());
+                // removal leaves other slots where they are, so the run carries on as it was
+                removeSlot(slot);
+            }
+        }
+        return slotAfter(fromSlot, slots);
+    }
+
+    /**
+     * @return the slot following a run of index slots, or NONE if the run reaches the end of the index
+     */
+    int slotAfter(int fromSlot, int slots) {
+        return fromSlot + slots > slotMask ? NONE : fromSlot + slots;
+    }
+
+    /**
+     * Save the index and the eviction list, along with the block store's allocation bitmap, so that the partition
+     * can be reattached to the store's contents by {@link #restore(java.io.DataInputStream)}. Must be called holding
+     * the write lock, as the store is being closed.
+     */
+    void save(DataOutputStream out) throws IOException {
+        // nothing will be reading removed regions any more; don't let them leak into the saved bitmap
+        for (int i = 0; i < deferredCount; i++) {
+            blockStore.free(deferred[i * 2], deferred[i * 2 + 1]);
+        }
+        deferredCount = 0;
+
+        out.writeInt(STATE_MAGIC);
+        out.writeInt(STATE_VERSION);
+        blockStore.saveAllocation(out);
+
+        out.writeLong(sequence.get());
+        out.writeInt(slotMask + 1);
+        out.writeInt(numberItems);
+        out.writeInt(tombstones);
+        out.writeInt(head);
+        out.writeInt(tail);
+        index.getBytes(0, out, index.capacity());
+    }
+
+    /**
+     * Reattach to the contents of the block store as saved by {@link #save(java.io.DataOutputStream)}, dropping
+     * entries which expired in the meantime. Must be called before the partition is in use.
+     *
+     * @return false, leaving the partition empty, if the state was saved by an incompatible partition
+     */
+    boolean restore(DataInputStream in) throws IOException {
+        if (in.readInt() != STATE_MAGIC || in.readInt() != STATE_VERSION || !blockStore.restoreAllocation(in)) {
+            clear();
+            return false;
+        }
+
+        long savedSequence = in.readLong();
+        int slots = in.readInt();
+        if (slots < INITIAL_SLOTS || (slots & (slots - 1)) != 0) {
+            clear();
+            return false;
+        }
+
+        numberItems = in.readInt();
+        tombstones = in.readInt();
+        head = in.readInt();
+        tail = in.readInt();
+
+        index = newIndex(slots);
+        byte[] chunk = new byte[64 * 1024];
+        for (int offset = 0; offset < index.capacity(); offset += chunk.length) {
+            int length = Math.min(chunk.length, index.capacity() - offset);
+            in.readFully(chunk, 0, length);
+            index.setBytes(offset, chunk, 0, length);
+        }
+
+        // regions keep their place on the eviction list, so carry on numbering after the last one
+        if (savedSequence > sequence.get()) sequence.set(savedSequence);
+        updateHeadSequence();
+
+        dataBytes = 0;
+        for (int offset = 0; offset < index.capacity(); offset += SLOT_SIZE) {
+            if (index.getInt(offset + START_BLOCK_OFFSET) >= 0) dataBytes += index.getInt(offset + SIZE_OFFSET);
+        }
+
+        int now = LocalCacheElement.Now();
+        for (int slot = 0; slot < slots; slot++) {
+            int offset = slot * SLOT_SIZE;
+            long expiry = index.getLong(offset + EXPIRY_OFFSET);
+            if (index.getInt(offset + START_BLOCK_OFFSET) >= 0 && expiry != 0 && expiry < now) removeSlot(slot);
+        }
+
+        // the entries keep their CAS values, which the cache must not give out again
+        restoredCasUnique = 0;
+        for (int offset = 0; offset < index.capacity(); offset += SLOT_SIZE) {
+            if (index.getInt(offset + START_BLOCK_OFFSET) >= 0)
+                restoredCasUnique = Math.max(restoredCasUnique, region(index, offset).toValue().getCasUnique());
+        }
+        return true;
     }
 
     public Collection<Key> keys() {
         Set<Key> keys = new HashSet<Key>();
+        ChannelBuffer storage = blockStore.storageBuffer;
 
-        for (ChannelBuffer regionsa : buckets) {
-            if (regionsa != null) {
-                ChannelBuffer regions = regionsa.slice();
-                regions.readerIndex(0);
-                while (regions.readableBytes() > 0) {
-                    // read key portion then region portion
-                    int totsize = regions.readInt();
-                    regions.skipBytes(28);
-                    int rkeySize = regions.readInt();
-                    ChannelBuffer rkey = regions.readBytes(rkeySize);
-
-                    keys.add(new Key(rkey));
-                }
+        for (int offset = 0; offset <= slotMask * SLOT_SIZE; offset += SLOT_SIZE) {
+            int startBlock = index.getInt(offset + START_BLOCK_OFFSET);
+            if (startBlock >= 0) {
+                int keyPosition = position(startBlock) + Region.KEY_LENGTH_OFFSET + 4;
+                keys.add(new Key(storage.copy(keyPosition, index.getInt(offset + KEY_LENGTH_OFFSET))));
             }
         }
         return keys;
@@ -173,4 +835,26 @@ public final class Partition {
     public int getNumberItems() {
         return numberItems;
     }
+
+    public long getDataBytes() {
+        return dataBytes;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return the usage of each size class of the store, smallest first, or null if it doesn't allocate from slabs
+     */
+    List<SlabBlockStore.SlabClassStats> getSlabClassStats() {
+        if (!(blockStore instanceof SlabBlockStore)) return null;
+
+        storageLock.readLock().lock();
+        try {
+            return ((SlabBlockStore) blockStore).getSlabClassStats();
+        } finally {
+            storageLock.readLock().unlock();
+        }
+    }
 }
@@ -3,15 +3,34 @@ package com.thimbleware.jmemcached.storage.bytebuffer;
 import com.thimbleware.jmemcached.Key;
 import com.thimbleware.jmemcached.LocalCacheElement;
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBufferInputStream;
-
-import java.io.IOException;
-import java.io.ObjectInputStream;
 
 /**
      * Represents a number of allocated blocks in the store
+ *
+ * Every region starts with a small header holding the partition's eviction bookkeeping (its insertion
+ * sequence, the start blocks of its neighbours in insertion order, the hash of its key and a referenced flag),
+ * followed by the serialized element.
  */
 public final class Region {
+    /**
+     * Offsets into the region header
+     */
+    static final int SEQUENCE_OFFSET = 0;
+    static final int PREV_OFFSET = 8;
+    static final int NEXT_OFFSET = 12;
+    static final int HASH_OFFSET = 16;
+    static final int REFERENCED_OFFSET = 20;
+
+    /**
+     * Size in bytes of the region header which precedes the element
+     */
+    public static final int HEADER_SIZE = 21;
+
+    /**
+     * Offset of the key's length within the region; the key itself follows it
+     */
+    static final int KEY_LENGTH_OFFSET = HEADER_SIZE + 4 + 8;
+
     /**
      * Size in bytes of the requested area
      */
@@ -51,15 +70,22 @@ public final class Region {
     }
 
     public Key keyFromRegion() {
-        slice.readerIndex(0);
+        slice.readerIndex(KEY_LENGTH_OFFSET);
 
         int length = slice.readInt();
         return new Key(slice.slice(slice.readerIndex(), length));
     }
 
     public LocalCacheElement toValue() {
-        slice.readerIndex(0);
+        slice.readerIndex(HEADER_SIZE);
         return LocalCacheElement.readFromBuffer(slice);
     }
 
+    /**
+     * @return the value, read from a copy of the region rather than from the store itself
+     */
+    public LocalCacheElement copyValue() {
+        return LocalCacheElement.readFromBuffer(slice.copy(HEADER_SIZE, size - HEADER_SIZE));
+    }
+
 }
@@ -0,0 +1,365 @@
+package com.thimbleware.jmemcached.storage.bytebuffer;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Block storage mechanism which allocates from slabs divided into fixed size chunks, in the manner of memcached.
+ * <p/>
+ * The store is cut into equal slabs. A slab is assigned to a size class when one of that class's allocations
+ * first needs it, and is cut into chunks of that class's size; chunk sizes grow from one class to the next by a
+ * constant factor. Each slab keeps a free list of its chunks threaded through the chunks themselves, and each
+ * class a list of its slabs which have a free chunk, so both allocation and freeing are O(1). A slab whose chunks
+ * have all been freed is returned to the pool of unassigned slabs, so that memory can move between size classes.
+ * Once the store is full, an allocation evicts from its own size class (see {@link #canReplace(int, int)}); a
+ * class with nothing to evict is given a slab emptied of another class's entries (see {@link #blocksToEmpty(int)}).
+ * <p/>
+ * Unlike the first-fit bitmap of {@link ByteBufferBlockStore} there is no external fragmentation; at most a
+ * chunk wastes the difference between its class's size and the size of the previous class. Allocations larger
+ * than a slab always fail.
+ */
+public final class SlabBlockStore extends ByteBufferBlockStore {
+
+    public static final double DEFAULT_GROWTH_FACTOR = 1.25;
+
+    public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+    private static final int MIN_CHUNK_SIZE = 64;
+
+    /**
+     * Marker for the absence of a slab or chunk on a list
+     */
+    private static final int NONE = -1;
+
+    private static final SlabBlockStoreFactory SLAB_BLOCK_STORE_FACTORY = new SlabBlockStoreFactory(DEFAULT_GROWTH_FACTOR, DEFAULT_SLAB_SIZE);
+
+    private final int slabSizeBytes;
+
+    /**
+     * Per size class: the size of its chunks, how many fit in a slab, the first of its slabs with a free chunk,
+     * how many slabs it has and how many of its chunks are in use
+     */
+    private final int[] chunkSizes;
+    private final int[] chunksPerSlab;
+    private final int[] partialSlabs;
+    private final int[] classSlabs;
+    private final long[] classUsedChunks;
+
+    /**
+     * Per slab: its size class, how many of its chunks are in use, the first chunk on its free list, how many
+     * of its chunks have ever been handed out since it was assigned, and its neighbours on its class's list of
+     * slabs with a free chunk
+     */
+    private final int[] slabClass;
+    private final int[] slabUsedChunks;
+    private final int[] slabFreeChunk;
+    private final int[] slabCarvedChunks;
+    private final int[] slabPrev;
+    private final int[] slabNext;
+
+    /**
+     * Stack of slabs not assigned to any size class
+     */
+    private final int[] freeSlabs;
+    private int freeSlabCount;
+
+    private long usedBytes;
+
+    public static BlockStoreFactory getFactory() {
+        return SLAB_BLOCK_STORE_FACTORY;
+    }
+
+    public static class SlabBlockStoreFactory implements BlockStoreFactory<SlabBlockStore> {
+        private final double growthFactor;
+        private final int slabSizeBytes;
+
+        /**
+         * @param growthFactor the ratio between the chunk sizes of successive size classes; must be greater than 1
+         * @param slabSizeBytes the size of a slab, which is also the largest allocation the store can satisfy; stores
+         *                      smaller than this are a single slab
+         */
+        public SlabBlockStoreFactory(double growthFactor, int slabSizeBytes) {
+            if (growthFactor <= 1.0) throw new IllegalArgumentException("growth factor must be greater than 1");
+            this.growthFactor = growthFactor;
+            this.slabSizeBytes = slabSizeBytes;
+        }
+
+        public SlabBlockStore manufacture(long sizeBytes, int blockSizeBytes) {
+            return new SlabBlockStore(ChannelBuffers.buffer((int) sizeBytes), blockSizeBytes, slabSizeBytes, growthFactor);
+        }
+    }
+
+    private SlabBlockStore(ChannelBuffer storageBuffer, int blockSizeBytes, int slabSizeBytes, double growthFactor) {
+        super(blockSizeBytes);
+
+        int storeSizeBytes = storageBuffer.capacity();
+        int slabSize = Math.max(Math.min(slabSizeBytes, storeSizeBytes), blockSizeBytes);
+        this.slabSizeBytes = slabSize - slabSize % blockSizeBytes;
+
+        this.chunkSizes = sizeClasses(this.slabSizeBytes, blockSizeBytes, growthFactor);
+        int numClasses = chunkSizes.length;
+        this.chunksPerSlab = new int[numClasses];
+        for (int i = 0; i < numClasses; i++) {
+            chunksPerSlab[i] = this.slabSizeBytes / chunkSizes[i];
+        }
+        this.partialSlabs = new int[numClasses];
+        this.classSlabs = new int[numClasses];
+        this.classUsedChunks = new long[numClasses];
+
+        int numSlabs = storeSizeBytes / this.slabSizeBytes;
+        this.slabClass = new int[numSlabs];
+        this.slabUsedChunks = new int[numSlabs];
+        this.slabFreeChunk = new int[numSlabs];
+        this.slabCarvedChunks = new int[numSlabs];
+        this.slabPrev = new int[numSlabs];
+        this.slabNext = new int[numSlabs];
+        this.freeSlabs = new int[numSlabs];
+
+        this.storageBuffer = storageBuffer;
+        initialize(storeSizeBytes);
+    }
+
+    /**
+     * @return the chunk size of each class, in increasing order, each a multiple of the block size, the last
+     * being the whole slab
+     */
+    private static int[] sizeClasses(int slabSizeBytes, int blockSizeBytes, double growthFactor) {
+        List<Integer> sizes = new ArrayList<Integer>();
+        long size = roundUp(Math.min(MIN_CHUNK_SIZE, slabSizeBytes), blockSizeBytes);
+        while (size < slabSizeBytes) {
+            sizes.add((int) size);
+            size = Math.max(roundUp((long) (size * growthFactor), blockSizeBytes), size + blockSizeBytes);
+        }
+        sizes.add(slabSizeBytes);
+
+        int[] chunkSizes = new int[sizes.size()];
+        for (int i = 0; i < chunkSizes.length; i++) {
+            chunkSizes[i] = sizes.get(i);
+        }
+        return chunkSizes;
+    }
+
+    /**
+     * @return the smallest size class which fits the size, or NONE if it is larger than a slab
+     */
+    private int classFor(int size) {
+        int i = Arrays.binarySearch(chunkSizes, size);
+        if (i >= 0) return i;
+        i = -i - 1;
+        return i < chunkSizes.length ? i : NONE;
+    }
+
+    @Override
+    public Region tryAlloc(int desiredSize, long expiry, long timestamp) {
+        int sizeClass = classFor(desiredSize);
+        if (sizeClass == NONE) return null;
+
+        int slab = partialSlabs[sizeClass];
+        if (slab == NONE) {
+            if (freeSlabCount == 0) return null;
+            slab = freeSlabs[--freeSlabCount];
+            slabClass[slab] = sizeClass;
+            slabUsedChunks[slab] = 0;
+            slabFreeChunk[slab] = NONE;
+            slabCarvedChunks[slab] = 0;
+            classSlabs[sizeClass]++;
+            linkPartial(slab, sizeClass);
+        }
+
+        int chunkSize = chunkSizes[sizeClass];
+        int chunk = slabFreeChunk[slab];
+        if (chunk != NONE) {
+            slabFreeChunk[slab] = storageBuffer.getInt(chunkPosition(slab, chunk, chunkSize));
+        } else {
+            chunk = slabCarvedChunks[slab]++;
+        }
+
+        if (++slabUsedChunks[slab] == chunksPerSlab[sizeClass]) unlinkPartial(slab, sizeClass);
+        classUsedChunks[sizeClass]++;
+        usedBytes += chunkSize;
+
+        int position = chunkPosition(slab, chunk, chunkSize);
+        ChannelBuffer slice = storageBuffer.slice(position, desiredSize);
+        slice.writerIndex(0);
+        slice.readerIndex(0);
+
+        return new Region(desiredSize, chunkSize / getBlockSizeBytes(), position / getBlockSizeBytes(), slice, expiry, timestamp);
+    }
+
+    @Override
+    public void free(int startBlock, int usedBlocks) {
+        int position = startBlock * getBlockSizeBytes();
+        int slab = position / slabSizeBytes;
+        int sizeClass = slabClass[slab];
+        int chunkSize = chunkSizes[sizeClass];
+
+        boolean wasFull = slabUsedChunks[slab] == chunksPerSlab[sizeClass];
+        classUsedChunks[sizeClass]--;
+        usedBytes -= chunkSize;
+
+        if (--slabUsedChunks[slab] == 0) {
+            // nothing left in it; give it back so that any class may use it
+            if (!wasFull) unlinkPartial(slab, sizeClass);
+            slabClass[slab] = NONE;
+            classSlabs[sizeClass]--;
+            freeSlabs[freeSlabCount++] = slab;
+            return;
+        }
+
+        int chunk = (position - slab * slabSizeBytes) / chunkSize;
+        storageBuffer.setInt(position, slabFreeChunk[slab]);
+        slabFreeChunk[slab] = chunk;
+        if (wasFull) linkPartial(slab, sizeClass);
+    }
+
+    /**
+     * Only a chunk of the allocation's own size class can be given to it once the store is full.
+     */
+    @Override
+    public boolean canReplace(int startBlock, int desiredSize) {
+        int sizeClass = classFor(desiredSize);
+        return sizeClass != NONE && slabClass[startBlock * getBlockSizeBytes() / slabSizeBytes] == sizeClass;
+    }
+
+    /**
+     * Reassign a slab to a size class which has nothing to evict: the least used slab of the class with the most
+     * slabs, as emptying it loses the fewest entries and takes from the class best able to spare it.
+     */
+    @Override
+    public int[] blocksToEmpty(int desiredSize) {
+        int sizeClass = classFor(desiredSize);
+        if (sizeClass == NONE) return null;
+
+        int victimClass = NONE;
+        for (int i = 0; i < classSlabs.length; i++) {
+            if (i != sizeClass && classSlabs[i] > 0 && (victimClass == NONE || classSlabs[i] > classSlabs[victimClass])) {
+                victimClass = i;
+            }
+        }
+        if (victimClass == NONE) return null;
+
+        int victim = NONE;
+        for (int slab = 0; slab < slabClass.length; slab++) {
+            if (slabClass[slab] == victimClass && (victim == NONE || slabUsedChunks[slab] < slabUsedChunks[victim])) {
+                victim = slab;
+            }
+        }
+        int blocksPerSlab = slabSizeBytes / getBlockSizeBytes();
+        return new int[] { victim * blocksPerSlab, blocksPerSlab };
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(partialSlabs, NONE);
+        Arrays.fill(classSlabs, 0);
+        Arrays.fill(classUsedChunks, 0);
+        Arrays.fill(slabClass, NONE);
+
+        // hand out slabs from the start of the store first
+        freeSlabCount = freeSlabs.length;
+        for (int i = 0; i < freeSlabCount; i++) {
+            freeSlabs[i] = freeSlabCount - 1 - i;
+        }
+
+        usedBytes = 0;
+    }
+
+    @Override
+    public long getFreeBytes() {
+        return getStoreSizeBytes() - usedBytes;
+    }
+
+    private int chunkPosition(int slab, int chunk, int chunkSize) {
+        return slab * slabSizeBytes + chunk * chunkSize;
+    }
+
+    private void linkPartial(int slab, int sizeClass) {
+        int head = partialSlabs[sizeClass];
+        slabPrev[slab] = NONE;
+        slabNext[slab] = head;
+        if (head != NONE) slabPrev[head] = slab;
+        partialSlabs[sizeClass] = slab;
+    }
+
+    private void unlinkPartial(int slab, int sizeClass) {
+        int prev = slabPrev[slab];
+        int next = slabNext[slab];
+        if (prev == NONE) partialSlabs[sizeClass] = next;
+        else slabNext[prev] = next;
+        if (next != NONE) slabPrev[next] = prev;
+    }
+
+    public int getSlabSizeBytes() {
+        return slabSizeBytes;
+    }
+
+    /**
+     * @return the number of slabs not currently assigned to any size class
+     */
+    public int getFreeSlabs() {
+        return freeSlabCount;
+    }
+
+    /**
+     * @return a snapshot of the usage of each size class, smallest first
+     */
+    public List<SlabClassStats> getSlabClassStats() {
+        List<SlabClassStats> stats = new ArrayList<SlabClassStats>(chunkSizes.length);
+        for (int i = 0; i < chunkSizes.length; i++) {
+            stats.add(new SlabClassStats(chunkSizes[i], chunksPerSlab[i], classSlabs[i], classUsedChunks[i]));
+        }
+        return stats;
+    }
+
+    /**
+     * Usage of a single size class
+     */
+    public static final class SlabClassStats {
+        private final int chunkSize;
+        private final int chunksPerSlab;
+        private final int totalSlabs;
+        private final long usedChunks;
+
+        SlabClassStats(int chunkSize, int chunksPerSlab, int totalSlabs, long usedChunks) {
+            this.chunkSize = chunkSize;
+            this.chunksPerSlab = chunksPerSlab;
+            this.totalSlabs = totalSlabs;
+            this.usedChunks = usedChunks;
+        }
+
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        public int getChunksPerSlab() {
+            return chunksPerSlab;
+        }
+
+        public int getTotalSlabs() {
+            return totalSlabs;
+        }
+
+        public long getTotalChunks() {
+            return (long) totalSlabs * chunksPerSlab;
+        }
+
+        public long getUsedChunks() {
+            return usedChunks;
+        }
+
+        public long getFreeChunks() {
+            return getTotalChunks() - usedChunks;
+        }
+
+        /**
+         * @return the usage of this class together with that of the same class in another store
+         */
+        SlabClassStats add(SlabClassStats other) {
+            return new SlabClassStats(chunkSize, chunksPerSlab, totalSlabs + other.totalSlabs, usedChunks + other.usedChunks);
+        }
+    }
+}
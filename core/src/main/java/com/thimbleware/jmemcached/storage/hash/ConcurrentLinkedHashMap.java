@@ -16,7 +16,11 @@ package com.thimbleware.jmemcached.storage.hash;
  * limitations under the License.
  */
 
+import com.thimbleware.jmemcached.CacheElement;
+import com.thimbleware.jmemcached.LocalCacheElement;
 import com.thimbleware.jmemcached.storage.CacheStorage;
+import com.thimbleware.jmemcached.storage.Crawl;
+import com.thimbleware.jmemcached.util.HeapSize;
 
 import java.io.Serializable;
 import java.util.AbstractCollection;
@@ -25,10 +29,13 @@ import java.util.AbstractSet;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
@@ -55,9 +62,24 @@ import java.util.concurrent.locks.ReentrantLock;
  * <li> Least Recently Used: An eviction policy based on the observation that entries that
  * have been used recently will likely be used again soon. This policy provides a good
  * approximation of an optimal algorithm, but suffers by being expensive to maintain.
- * The cost of reordering entries on the list during every access operation reduces
- * the concurrency and performance characteristics of this policy.
+ * To keep every access from contending on the list's lock, accesses are recorded in
+ * buffers striped by thread, and applied to the list in batches by whichever thread
+ * fills a buffer and finds the lock free. An access may be lost if its buffer wraps
+ * before it is drained, which makes the order approximate but never blocks a read.
+ * <li> Window TinyLFU: New entries go on a small window list, about a hundredth of the
+ * capacity, kept in LRU order. Once the map is full, the oldest entry in an overgrown
+ * window is admitted to the main list, also in LRU order, only if a sketch of how often
+ * keys have been used says it is used more than the main list's least recently used
+ * entry; the loser is evicted. This keeps bursts of keys which are used once from
+ * flushing out the entries which are used all the time.
  * </ul>
+ * Whatever the policy, entries which are cache elements and have expired are evicted
+ * before any live entry; they are found through a queue of expiring entries ordered by
+ * the time they expire.
+ * <p/>
+ * The memory capacity is held to against an estimate of the heap each entry takes up (see
+ * {@link SizedItem#retainedSize()}), the map's own node and hash table entry for it included,
+ * rather than just the size of its value.
  *
  * @author <a href="mailto:ben.manes@reardencommerce.com">Ben Manes</a>
  * @see http://code.google.com/p/concurrentlinkedhashmap/
@@ -68,15 +90,55 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
         }
     };
     private static final long serialVersionUID = 8350170357874293408L;
+
+    /**
+     * The number of read buffers, a power of two with about one per processor, and the size of each, after half
+     * of which a buffer is drained
+     */
+    static final int READ_BUFFERS = ceilingPowerOfTwo(Runtime.getRuntime().availableProcessors());
+    static final int READ_BUFFER_SIZE = 64;
+    static final int READ_BUFFER_THRESHOLD = READ_BUFFER_SIZE / 2;
+
+    /**
+     * The heap an entry takes up besides its value: its node, the hash table's entry for it and a share of the
+     * table itself
+     */
+    static final int ENTRY_OVERHEAD = HeapSize.align(HeapSize.OBJECT_HEADER + 6 * HeapSize.REFERENCE + 1 + 4)
+            + HeapSize.align(HeapSize.OBJECT_HEADER + 3 * HeapSize.REFERENCE + 4) + 2 * HeapSize.REFERENCE;
+
     final ConcurrentMap<K, Node<K, V>> data;
+
+    /**
+     * Where the last call to {@link #crawl(Crawl, int)} left off
+     */
+    private transient Iterator<Node<K, V>> crawlCursor;
     final EvictionListener<K, V> listener;
     final AtomicInteger capacity;
     final EvictionPolicy policy;
     final AtomicInteger length;
     final Node<K, V> sentinel;
+    final Node<K, V> window;
+    final FrequencySketch sketch;
+
+    /**
+     * The entries which expire, soonest first; a node has at most one entry which is current, the one it refers
+     * to. An entry is left in the queue when its node is removed or given a value which expires at another time,
+     * and is dropped when it comes to the head or when enough of them have built up. Guarded by the lock.
+     */
+    final PriorityQueue<ExpiringNode<K, V>> expiries;
+
+    /**
+     * The nodes given a value since the expiries were last brought up to date, each at most once; writes add to
+     * it without locking, and it is drained along with the read buffers.
+     */
+    final ConcurrentLinkedQueue<Node<K, V>> writtenNodes;
+    final AtomicInteger writtenCount;
     final Lock lock;
     final AtomicLong memoryCapacity;
     final AtomicLong memoryUsed;
+    final AtomicLong dataUsed;
+    final AtomicLong responseHeadersUsed;
+    final ReadBuffer<K, V>[] readBuffers;
 
     /**
      * Creates a map with the specified eviction policy, maximum capacity, and at the default concurrency level.
@@ -139,6 +201,7 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
      *                         performs internal sizing to try to accommodate this many threads.
      * @param listener         The listener registered for notification when an entry is evicted.
      */
+    @SuppressWarnings("unchecked")
     private ConcurrentLinkedHashMap(EvictionPolicy policy, int maximumCapacity, long maximumMemoryCapacity,
                                     int concurrencyLevel, EvictionListener<K, V> listener) {
         if ((policy == null) || (maximumCapacity < 0) || (concurrencyLevel <= 0) || (listener == null)) {
@@ -151,8 +214,30 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
         this.policy = policy;
         this.lock = new ReentrantLock();
         this.sentinel = new Node<K, V>(lock);
+        this.window = new Node<K, V>(lock);
+        this.expiries = new PriorityQueue<ExpiringNode<K, V>>();
+        this.writtenNodes = new ConcurrentLinkedQueue<Node<K, V>>();
+        this.writtenCount = new AtomicInteger();
+        if (policy == EvictionPolicy.TINY_LFU) {
+            this.sketch = new FrequencySketch();
+            sketch.ensureCapacity(maximumCapacity);
+        } else {
+            this.sketch = null;
+        }
         this.memoryUsed = new AtomicLong(0);
+        this.dataUsed = new AtomicLong(0);
+        this.responseHeadersUsed = new AtomicLong(0);
         this.memoryCapacity = new AtomicLong(maximumMemoryCapacity);
+        this.readBuffers = new ReadBuffer[READ_BUFFERS];
+        for (int i = 0; i < READ_BUFFERS; i++) {
+            readBuffers[i] = new ReadBuffer<K, V>();
+        }
+    }
+
+    private static int ceilingPowerOfTwo(int n) {
+        int power = 1;
+        while (power < n) power <<= 1;
+        return power;
     }
 
     /**
@@ -172,6 +257,39 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
         return memoryUsed.get();
     }
 
+    public long getDataUsed() {
+        return dataUsed.get();
+    }
+
+    public long getResponseHeadersUsed() {
+        return responseHeadersUsed.get();
+    }
+
+    /**
+     * @return the memory an entry holding the value takes up
+     */
+    private long weigh(V value) {
+        return value.retainedSize() + ENTRY_OVERHEAD;
+    }
+
+    /**
+     * Counts the memory taken by a value which has been stored.
+     */
+    private void charge(V value) {
+        memoryUsed.addAndGet(weigh(value));
+        dataUsed.addAndGet(value.size());
+        responseHeadersUsed.addAndGet(value.responseHeaderSize());
+    }
+
+    /**
+     * Counts the memory given back by a value which is no longer stored.
+     */
+    private void credit(V value) {
+        memoryUsed.addAndGet(-weigh(value));
+        dataUsed.addAndGet(-value.size());
+        responseHeadersUsed.addAndGet(-value.responseHeaderSize());
+    }
+
     /**
      * Sets the maximum capacity of the map and eagerly evicts entries until it shrinks to the appropriate size.
      *
@@ -182,6 +300,14 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
             throw new IllegalArgumentException();
         }
         this.capacity.set(capacity);
+        if (sketch != null) {
+            lock.lock();
+            try {
+                sketch.ensureCapacity(capacity);
+            } finally {
+                lock.unlock();
+            }
+        }
         while (evict()) {
         }
     }
@@ -255,15 +381,31 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
      * Evicts a single entry if the map exceeds the maximum capacity.
      */
     private boolean evict() {
+        if ((policy == EvictionPolicy.LRU || policy == EvictionPolicy.TINY_LFU) && isOverflow()) {
+            // bring the order and frequencies up to date with the reads so far
+            lock.lock();
+            try {
+                drainReadBuffers();
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (sketch != null && window.count > windowCapacity()) {
+            spillWindow();
+        }
         while (isOverflow()) {
-            Node<K, V> node = sentinel.getNext();
+            Node<K, V> node = pollExpired();
+            boolean expired = (node != null);
+            if (!expired) {
+                node = (sketch == null) ? sentinel.getNext() : selectVictim();
+            }
             if (node == sentinel) {
                 return false;
-            } else if (policy.onEvict(this, node)) {
+            } else if (expired || policy.onEvict(this, node)) {
                 // Attempt to remove the node if it's still available
                 if (data.remove(node.getKey(), new Identity(node))) {
                     length.decrementAndGet();
-                    memoryUsed.addAndGet(-1 * node.getValue().size());
+                    credit(node.getValue());
 
                     node.remove();
                     listener.onEviction(node.getKey(), node.getValue());
@@ -274,6 +416,164 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
         return false;
     }
 
+    /**
+     * Records that a node has been given a value, to be queued by the time it expires on the next drain; and
+     * drains the buffers if enough writes have built up and the list is free.
+     */
+    private void indexExpiry(Node<K, V> node, V value) {
+        if (node.written) {
+            // already waiting to be drained, which will see this value
+            return;
+        }
+        if (node.expiring == null && (!(value instanceof CacheElement) || ((CacheElement) value).getExpire() == 0)) {
+            // never queued, and nothing to queue
+            return;
+        }
+        node.written = true;
+        writtenNodes.add(node);
+        if (writtenCount.incrementAndGet() >= READ_BUFFER_THRESHOLD && lock.tryLock()) {
+            try {
+                drainReadBuffers();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Queues each node written since the last drain by the time its value expires, unless it is queued by that
+     * time already. Must be called with the lock held.
+     */
+    private void drainWrittenNodes() {
+        Node<K, V> node;
+        while ((node = writtenNodes.poll()) != null) {
+            writtenCount.decrementAndGet();
+            // cleared before the value is read, so a write after it is queued again
+            node.written = false;
+            V value = node.getValue();
+            long expire = (value instanceof CacheElement) ? ((CacheElement) value).getExpire() : 0;
+            if (expire == 0 || node.isUnlinked()) {
+                node.expiring = null;
+            } else if (node.expiring == null || node.expiring.expire != expire) {
+                if (expiries.size() >= 2 * Math.max(size(), 1024)) {
+                    pruneExpiries();
+                }
+                node.expiring = new ExpiringNode<K, V>(expire, node);
+                expiries.add(node.expiring);
+            }
+        }
+    }
+
+    /**
+     * Drops the queued expiries which no longer apply. Must be called with the lock held.
+     */
+    private void pruneExpiries() {
+        for (Iterator<ExpiringNode<K, V>> i = expiries.iterator(); i.hasNext();) {
+            if (!i.next().isCurrent()) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * @return a node whose value has expired, or null if there are none
+     */
+    private Node<K, V> pollExpired() {
+        int now = LocalCacheElement.Now();
+        lock.lock();
+        try {
+            drainWrittenNodes();
+            ExpiringNode<K, V> head;
+            while (((head = expiries.peek()) != null) && (head.expire < now)) {
+                expiries.poll();
+                if (head.isCurrent()) {
+                    return head.node;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of entries the window list holds before its oldest compete for admission
+     */
+    private int windowCapacity() {
+        return Math.max(1, capacity() / 100);
+    }
+
+    /**
+     * Moves the window's oldest entries to the main list while there is room for them.
+     */
+    private void spillWindow() {
+        lock.lock();
+        try {
+            while (window.count > windowCapacity() && !isOverflow()) {
+                Node<K, V> node = window.getNext();
+                if (node == window) {
+                    return;
+                }
+                node.relink(sentinel);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Chooses the entry to evict under the Window TinyLFU policy. If the window has grown past its capacity its
+     * oldest entry competes with the main list's least recently used one, and moves to the main list if it wins;
+     * otherwise the main list's least recently used entry goes.
+     *
+     * @return the entry to evict, or the sentinel if there are none
+     */
+    private Node<K, V> selectVictim() {
+        lock.lock();
+        try {
+            Node<K, V> candidate = window.getNext();
+            Node<K, V> victim = sentinel.getNext();
+            if (victim == sentinel) {
+                return (candidate == window) ? sentinel : candidate;
+            } else if ((candidate == window) || (window.count <= windowCapacity())) {
+                return victim;
+            } else if (sketch.frequency(candidate.getKey()) > sketch.frequency(victim.getKey())) {
+                candidate.relink(sentinel);
+                return victim;
+            }
+            return candidate;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records a read of a node, to be applied to the list later, and applies the reads recorded so far if the
+     * buffer has filled and the list is free.
+     */
+    void recordRead(Node<K, V> node) {
+        ReadBuffer<K, V> buffer = readBuffers[(int) Thread.currentThread().getId() & (READ_BUFFERS - 1)];
+        if (buffer.record(node) && lock.tryLock()) {
+            try {
+                drainReadBuffers();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Moves the nodes read since the last drain to the tail, in the order they were read within each buffer, and
+     * counts the reads in the frequency sketch if there is one; then queues the nodes written since by when they
+     * expire. Must be called with the lock held.
+     */
+    private void drainReadBuffers() {
+        for (ReadBuffer<K, V> buffer : readBuffers) {
+            buffer.drain(sketch);
+        }
+        drainWrittenNodes();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -287,6 +587,63 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
         return null;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Values are held on the heap, so there is nothing to keep from being reused.
+     */
+    public V lease(K key) {
+        return get(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Reads take no lock, so each key is simply looked up in turn.
+     */
+    public void lease(K[] keys, V[] values) {
+        for (int i = 0; i < keys.length; i++) {
+            values[i] = get(keys[i]);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Only values which are cache elements can be told to have expired; others are left alone.
+     */
+    public synchronized void crawl(Crawl crawl, int limit) {
+        boolean restarted = false;
+        for (int i = 0; i < limit; i++) {
+            if (crawlCursor == null || !crawlCursor.hasNext()) {
+                // once round per call is enough
+                if (restarted) return;
+                crawlCursor = data.values().iterator();
+                restarted = true;
+                if (!crawlCursor.hasNext()) return;
+            }
+
+            Node<K, V> node = crawlCursor.next();
+            V value = node.getValue();
+            if (!(value instanceof CacheElement)) continue;
+
+            CacheElement element = (CacheElement) value;
+            if (crawl.isReclaimable(element.getExpire(), element.getStored()) && remove(node.getKey(), value)) {
+                crawl.reclaimed(weigh(value));
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void visit(Visitor<? super V> visitor) {
+        for (Node<K, V> node : data.values()) {
+            V value = node.getValue();
+            if (value != null) visitor.visit(value);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -295,14 +652,16 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
         if (value == null) {
             throw new IllegalArgumentException();
         }
-        Node<K, V> old = putIfAbsent(new Node<K, V>(key, value, sentinel, lock));
-        memoryUsed.addAndGet(value.size());
+        Node<K, V> old = putIfAbsent(new Node<K, V>(key, value, (sketch == null) ? sentinel : window, lock));
         if (old == null) {
             return null;
         }
         else {
-            memoryUsed.addAndGet(-1 * old.getValue().size());
-            return old.getAndSetValue(value);
+            V previous = old.getAndSetValue(value);
+            credit(previous);
+            charge(value);
+            indexExpiry(old, value);
+            return previous;
         }
     }
 
@@ -313,10 +672,8 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
         if (value == null) {
             throw new IllegalArgumentException();
         }
-        Node<K, V> old = putIfAbsent(new Node<K, V>(key, value, sentinel, lock));
+        Node<K, V> old = putIfAbsent(new Node<K, V>(key, value, (sketch == null) ? sentinel : window, lock));
         if (old == null) {
-            memoryUsed.addAndGet(value.size());
-
             return null;
         }
         else return old.getValue();
@@ -332,7 +689,13 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
         Node<K, V> old = data.putIfAbsent(node.getKey(), node);
         if (old == null) {
             length.incrementAndGet();
+            charge(node.getValue());
             node.appendToTail();
+            indexExpiry(node, node.getValue());
+            if (sketch != null) {
+                // an insertion counts as a use
+                recordRead(node);
+            }
             evict();
         } else {
             policy.onAccess(this, old);
@@ -350,7 +713,7 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
             return null;
         }
         length.decrementAndGet();
-        memoryUsed.addAndGet(-1 * node.getValue().size());
+        credit(node.getValue());
         node.remove();
 
         return node.getValue();
@@ -363,7 +726,7 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
         Node<K, V> node = data.get(key);
         if ((node != null) && node.value.equals(value) && data.remove(key, new Identity(node))) {
             length.decrementAndGet();
-            memoryUsed.addAndGet(-1 * node.getValue().size());
+            credit(node.getValue());
             node.remove();
 
             return true;
@@ -381,10 +744,11 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
         Node<K, V> node = data.get(key);
         if (node == null) return null;
         else {
-            memoryUsed.addAndGet(-1 * node.getValue().size());
-            memoryUsed.addAndGet(value.size());
-
-            return node.getAndSetValue(value);
+            V previous = node.getAndSetValue(value);
+            credit(previous);
+            charge(value);
+            indexExpiry(node, value);
+            return previous;
         }
     }
 
@@ -400,8 +764,9 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
         else {
             final boolean val = node.casValue(oldValue, newValue);
             if (val) {
-                memoryUsed.addAndGet(-1 * oldValue.size());
-                memoryUsed.addAndGet(newValue.size());
+                credit(oldValue);
+                charge(newValue);
+                indexExpiry(node, newValue);
             }
             return val;
         }
@@ -489,12 +854,28 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
         LRU() {
             @Override
             <K, V extends SizedItem> void onAccess(ConcurrentLinkedHashMap<K, V> map, Node<K, V> node) {
-                node.moveToTail();
+                map.recordRead(node);
             }
             @Override
             <K, V extends SizedItem> boolean onEvict(ConcurrentLinkedHashMap<K, V> map, Node<K, V> node) {
                 return true;
             }
+        },
+
+        /**
+         * Evicts entries based on how recently they are used, but only lets a new entry displace an older one if it
+         * is used more often.
+         */
+        TINY_LFU() {
+            @Override
+            <K, V extends SizedItem> void onAccess(ConcurrentLinkedHashMap<K, V> map, Node<K, V> node) {
+                map.recordRead(node);
+            }
+            @Override
+            <K, V extends SizedItem> boolean onEvict(ConcurrentLinkedHashMap<K, V> map, Node<K, V> node) {
+                // the contest for admission has already been decided
+                return true;
+            }
         };
 
         /**
@@ -520,10 +901,25 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
 
         private final K key;
         private final Lock lock;
-        private final Node<K, V> sentinel;
+        private volatile Node<K, V> sentinel;
+
+        /**
+         * The number of nodes on the list, kept on its sentinel
+         */
+        private volatile int count;
 
         private volatile V value;
         private volatile boolean marked;
+
+        /**
+         * Whether the node is waiting to have its expiry queued
+         */
+        volatile boolean written;
+
+        /**
+         * The entry queued for the node's expiry, if any. Set with the lock held; read without it only as a hint.
+         */
+        ExpiringNode<K, V> expiring;
         private volatile Node<K, V> prev;
         private volatile Node<K, V> next;
 
@@ -565,6 +961,7 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
                 sentinel.prev = this;
                 tail.next = this;
                 prev = tail;
+                sentinel.count++;
             } finally {
                 lock.unlock();
             }
@@ -589,6 +986,7 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
                     prev.next = next;
                     next.prev = prev;
                     next = UNLINKED; // mark as unlinked
+                    sentinel.count--;
                 } finally {
                     lock.unlock();
                 }
@@ -624,6 +1022,22 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
             }
         }
 
+        /**
+         * Moves the node to the tail of another list. Must be called with the lock held, on a linked node.
+         */
+        void relink(Node<K, V> list) {
+            prev.next = next;
+            next.prev = prev;
+            sentinel.count--;
+
+            sentinel = list;
+            next = list;
+            prev = list.prev;
+            list.prev = this;
+            prev.next = this;
+            list.count++;
+        }
+
         /**
          * Checks whether the node is linked on the list chain.
          *
@@ -725,6 +1139,72 @@ public final class ConcurrentLinkedHashMap<K, V extends SizedItem> extends Abstr
         }
     }
 
+    /**
+     * A ring of the nodes recently read by the threads sharing it. Reads are recorded without locking; once half
+     * of the ring has been filled since it was drained, the recording thread is told to try to drain it. The
+     * ring is drained only with the list's lock held, and slots overwritten before then are simply lost.
+     */
+    static final class ReadBuffer<K, V> implements Serializable {
+        private static final long serialVersionUID = -3893411431262811271L;
+
+        private final AtomicReferenceArray<Node<K, V>> slots = new AtomicReferenceArray<Node<K, V>>(READ_BUFFER_SIZE);
+        private final AtomicLong writes = new AtomicLong();
+        private volatile long drained;
+
+        /**
+         * @return true if the buffer should be drained
+         */
+        boolean record(Node<K, V> node) {
+            long write = writes.getAndIncrement();
+            slots.set((int) write & (READ_BUFFER_SIZE - 1), node);
+            return write - drained >= READ_BUFFER_THRESHOLD;
+        }
+
+        void drain(FrequencySketch sketch) {
+            long end = writes.get();
+            long start = Math.max(drained, end - READ_BUFFER_SIZE);
+            for (long i = start; i < end; i++) {
+                Node<K, V> node = slots.getAndSet((int) i & (READ_BUFFER_SIZE - 1), null);
+                if (node != null) {
+                    if (sketch != null) {
+                        sketch.increment(node.getKey());
+                    }
+                    node.moveToTail();
+                }
+            }
+            drained = end;
+        }
+    }
+
+    /**
+     * A node queued by the time its value expires, in seconds.
+     */
+    static final class ExpiringNode<K, V> implements Comparable<ExpiringNode<K, V>>, Serializable {
+        private static final long serialVersionUID = -2310874535281337451L;
+
+        final long expire;
+        final Node<K, V> node;
+
+        ExpiringNode(long expire, Node<K, V> node) {
+            this.expire = expire;
+            this.node = node;
+        }
+
+        /**
+         * @return whether this is the node's own entry, and the node is still in the map with a value which
+         * expires at this time. Must be called with the lock held.
+         */
+        boolean isCurrent() {
+            V value = node.getValue();
+            return (node.expiring == this) && !node.isUnlinked() && (value instanceof CacheElement)
+                    && (((CacheElement) value).getExpire() == expire);
+        }
+
+        public int compareTo(ExpiringNode<K, V> other) {
+            return (expire < other.expire) ? -1 : ((expire == other.expire) ? 0 : 1);
+        }
+    }
+
     /**
      * Allows {@link #equals(Object)} to compare using object identity.
      */
@@ -0,0 +1,137 @@
+package com.thimbleware.jmemcached.storage.hash;
+
+/*
+ * Copyright 2015 Ben Manes. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.Serializable;
+
+/**
+ * A count-min sketch of how often keys have been used, in 4 bit counters packed sixteen to a long, for the
+ * admission decisions of {@link ConcurrentLinkedHashMap.EvictionPolicy#TINY_LFU}.
+ * <p/>
+ * Each key has a counter in four of the longs, and its estimated frequency is the least of them. After as many
+ * increments as ten times the capacity, every counter is halved, so that keys which were popular once don't stay
+ * that way forever.
+ * <p/>
+ * Not thread safe; the map only uses it with its list lock held.
+ * <p/>
+ * Adapted from Caffeine's FrequencySketch, for Java 5.
+ *
+ * @author <a href="mailto:ben.manes@gmail.com">Ben Manes</a>
+ * @see https://github.com/ben-manes/caffeine
+ */
+final class FrequencySketch implements Serializable {
+    private static final long serialVersionUID = 5764371823456732419L;
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+
+    /**
+     * The most longs the table will take, whatever the capacity
+     */
+    private static final int MAXIMUM_TABLE_SIZE = 1 << 24;
+
+    private long[] table = new long[0];
+    private int tableMask;
+    private int sampleSize;
+    private int size;
+
+    /**
+     * Size the sketch for the given number of entries, which starts it over if that changes its size.
+     */
+    void ensureCapacity(int maximumSize) {
+        int entries = Math.max(8, Math.min(maximumSize, MAXIMUM_TABLE_SIZE));
+        int length = 1;
+        while (length < entries) length <<= 1;
+        if (table.length >= length) return;
+
+        table = new long[length];
+        tableMask = length - 1;
+        sampleSize = 10 * entries;
+        size = 0;
+    }
+
+    /**
+     * @return the estimated number of times the key has been used, from 0 to 15
+     */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Count a use of the key, ageing all the counts if enough uses have been counted since the last time.
+     */
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+
+        if (added && (++size >= sampleSize)) {
+            reset();
+        }
+    }
+
+    /**
+     * Increment the counter at the given position of a long, unless it is already at its maximum.
+     */
+    private boolean incrementAt(int i, int j) {
+        int offset = j << 2;
+        long mask = (0xfL << offset);
+        if ((table[i] & mask) != mask) {
+            table[i] += (1L << offset);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Halve every counter, and the number of increments counted to match.
+     */
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < table.length; i++) {
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size - (odd >>> 2)) >>> 1;
+    }
+
+    private int indexOf(int item, int i) {
+        long hash = (item + SEEDS[i]) * SEEDS[i];
+        hash += (hash >>> 32);
+        return ((int) hash) & tableMask;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
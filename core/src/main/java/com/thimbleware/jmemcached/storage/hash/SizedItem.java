@@ -4,4 +4,16 @@ package com.thimbleware.jmemcached.storage.hash;
  */
 public interface SizedItem {
     int size();
+
+    /**
+     * @return an estimate of the heap memory (in bytes) the item keeps from being collected, its own objects and
+     * arrays included, by which heap storage keeps to its memory limit
+     */
+    long retainedSize();
+
+    /**
+     * @return how much of {@link #retainedSize()} is taken by a response rendered in advance of being asked for,
+     * to be served as is; 0 if there is none
+     */
+    long responseHeaderSize();
 }
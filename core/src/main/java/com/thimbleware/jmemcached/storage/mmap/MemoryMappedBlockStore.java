@@ -8,6 +8,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.MappedByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 import static java.nio.channels.FileChannel.MapMode.*;
 
 /**
@@ -17,11 +18,17 @@ import static java.nio.channels.FileChannel.MapMode.*;
  * of the GC.
  *
  * Should offer O(Log(N)) search and free of blocks.
+ *
+ * A durable store maps a named file shared with the file system rather than a private temporary one, and keeps
+ * it on close, along with a state file alongside it in which its partition saves what it needs to pick the
+ * contents up again; see {@link #getDurableFactory(java.io.File)}.
  */
 public final class MemoryMappedBlockStore extends ByteBufferBlockStore {
 
     private File physicalFile;
     private RandomAccessFile fileStorage;
+    private MappedByteBuffer mappedStorage;
+    private final boolean durable;
     private static final MemoryMappedBlockStoreFactory MEMORY_MAPPED_BLOCK_STORE_FACTORY = new MemoryMappedBlockStoreFactory();
 
     /**
@@ -30,10 +37,12 @@ public final class MemoryMappedBlockStore extends ByteBufferBlockStore {
      * @param maxBytes the number of bytes to allocate in the file
      * @param file the file to use
      * @param blockSizeBytes the size of a block in the store
+     * @param durable whether the file's contents should be kept, rather than discarded on close
      * @throws java.io.IOException thrown on failure to open the store or map the file
      */
-    private MemoryMappedBlockStore(long maxBytes, File file, int blockSizeBytes) throws IOException {
+    private MemoryMappedBlockStore(long maxBytes, File file, int blockSizeBytes, boolean durable) throws IOException {
         super(blockSizeBytes);
+        this.durable = durable;
         storageBuffer = ChannelBuffers.wrappedBuffer(getMemoryMappedFileStorage(maxBytes, file));
         initialize(storageBuffer.capacity());
     }
@@ -42,38 +51,84 @@ public final class MemoryMappedBlockStore extends ByteBufferBlockStore {
         return MEMORY_MAPPED_BLOCK_STORE_FACTORY;
     }
 
+    /**
+     * @param basePath the path of the files to map; each store's file is named by appending a dot and the number of
+     *                 the store, counting from 0 in the order the stores are manufactured
+     * @return a factory for stores whose contents survive a restart
+     */
+    public static BlockStoreFactory getDurableFactory(File basePath) {
+        return new MemoryMappedBlockStoreFactory(basePath);
+    }
+
     private MappedByteBuffer getMemoryMappedFileStorage(long maxBytes, File file) throws IOException {
         this.physicalFile = file;
 
         // open the file for read-write
         fileStorage = new RandomAccessFile(file, "rw");
-        fileStorage.seek(maxBytes);
+        if (!durable) {
+            fileStorage.seek(maxBytes);
+            mappedStorage = fileStorage.getChannel().map(PRIVATE, 0, maxBytes);
+        } else {
+            // keep what is already there, as long as it is the right size
+            if (fileStorage.length() != maxBytes) fileStorage.setLength(maxBytes);
+            mappedStorage = fileStorage.getChannel().map(READ_WRITE, 0, maxBytes);
+        }
+        return mappedStorage;
+    }
 
-        return fileStorage.getChannel().map(PRIVATE, 0, maxBytes);
+    @Override
+    public File getStateFile() {
+        return durable ? new File(physicalFile.getPath() + ".state") : null;
     }
 
     @Override
     protected void freeResources() throws IOException {
         super.freeResources();
 
+        if (durable) {
+            // make sure the contents have made it to the file before it is reopened
+            mappedStorage.force();
+        }
+
         // close the actual file
         fileStorage.close();
 
-        // delete the file; it is no longer of any use
-        physicalFile.delete();
+        if (!durable) {
+            // delete the file; it is no longer of any use
+            physicalFile.delete();
+        }
 
         physicalFile = null;
         fileStorage = null;
+        mappedStorage = null;
     }
 
 
     public static class MemoryMappedBlockStoreFactory implements BlockStoreFactory<MemoryMappedBlockStore> {
+        private final File basePath;
+        private final AtomicInteger manufactured = new AtomicInteger();
+
+        public MemoryMappedBlockStoreFactory() {
+            this(null);
+        }
+
+        /**
+         * @param basePath the path of the files of durable stores, or null for stores on temporary files
+         */
+        public MemoryMappedBlockStoreFactory(File basePath) {
+            this.basePath = basePath;
+        }
 
         public MemoryMappedBlockStore manufacture(long sizeBytes, int blockSizeBytes) {
             try {
+                if (basePath != null) {
+                    File file = new File(basePath.getPath() + "." + manufactured.getAndIncrement());
+                    return new MemoryMappedBlockStore(sizeBytes, file, blockSizeBytes, true);
+                }
+
                 final File tempFile = File.createTempFile("jmemcached", "blockStore");
                 tempFile.deleteOnExit();
-                return new MemoryMappedBlockStore(sizeBytes, tempFile, blockSizeBytes);
+                return new MemoryMappedBlockStore(sizeBytes, tempFile, blockSizeBytes, false);
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
@@ -13,6 +13,16 @@ public class BufferUtils {
             99999999, 999999999, Integer.MAX_VALUE };
     private static final ChannelBuffer LONG_MIN_VALUE_BYTES = ChannelBuffers.wrappedBuffer("-9223372036854775808".getBytes());
 
+    /**
+     * Masks for working on the eight bytes of a long at a time
+     */
+    private static final long LOW_SEVEN_BITS = 0x7f7f7f7f7f7f7f7fL;
+    private static final long SPACES = 0x2020202020202020L;
+    private static final long CRS = 0x0d0d0d0d0d0d0d0dL;
+    private static final long LFS = 0x0a0a0a0a0a0a0a0aL;
+    private static final long ZEROS = 0x3030303030303030L;
+    private static final long HIGH_NIBBLES = 0xf0f0f0f0f0f0f0f0L;
+
     // Requires positive x
     static int stringSize(int x) {
         for (int i=0; ; i++)
@@ -59,15 +69,31 @@ public class BufferUtils {
     public static int atoi(ChannelBuffer s)
             throws NumberFormatException
     {
+        return atoi(s, 0, s.capacity());
+    }
+
+    /**
+     * Parse the number in the given bytes of a buffer, without slicing them out of it.
+     */
+    public static int atoi(ChannelBuffer s, int index, int len)
+            throws NumberFormatException
+    {
+        // most numbers are a few digits, with room after them in the buffer to load eight bytes at once; the
+        // rest, and signed or bad ones, are left to the loop
+        if (len > 0 && len <= 8 && index + 8 <= s.capacity()) {
+            long value = eightDigits(s, index, len);
+            if (value >= 0) return (int) value;
+        }
+
         int result = 0;
         boolean negative = false;
-        int i = 0, len = s.capacity();
+        int i = 0;
         int limit = -Integer.MAX_VALUE;
         int multmin;
         int digit;
 
         if (len > 0) {
-            byte firstChar = s.getByte(0);
+            byte firstChar = s.getByte(index);
             if (firstChar < '0') { // Possible leading "-"
                 if (firstChar == '-') {
                     negative = true;
@@ -82,7 +108,7 @@ public class BufferUtils {
             multmin = limit / 10;
             while (i < len) {
                 // Accumulating negatively avoids surprises near MAX_VALUE
-                digit = Character.digit(s.getByte(i++),10);
+                digit = Character.digit(s.getByte(index + i++),10);
                 if (digit < 0) {
                     throw new NumberFormatException();
                 }
@@ -104,15 +130,36 @@ public class BufferUtils {
     public static long atol(ChannelBuffer s)
             throws NumberFormatException
     {
+        return atol(s, 0, s.capacity());
+    }
+
+    /**
+     * Parse the number in the given bytes of a buffer, without slicing them out of it.
+     */
+    public static long atol(ChannelBuffer s, int index, int len)
+            throws NumberFormatException
+    {
+        if (len > 0 && len <= 16 && index + Math.max(len, 8) <= s.capacity()) {
+            long value;
+            if (len <= 8) {
+                value = eightDigits(s, index, len);
+            } else {
+                long high = eightDigits(s, index, len - 8);
+                long low = eightDigits(s, index + len - 8, 8);
+                value = high < 0 || low < 0 ? -1 : high * 100000000L + low;
+            }
+            if (value >= 0) return value;
+        }
+
         long result = 0;
         boolean negative = false;
-        int i = 0, len = s.capacity();
+        int i = 0;
         long limit = -Long.MAX_VALUE;
         long multmin;
         int digit;
 
         if (len > 0) {
-            byte firstChar = s.getByte(0);
+            byte firstChar = s.getByte(index);
             if (firstChar < '0') { // Possible leading "-"
                 if (firstChar == '-') {
                     negative = true;
@@ -127,7 +174,7 @@ public class BufferUtils {
             multmin = limit / 10;
             while (i < len) {
                 // Accumulating negatively avoids surprises near MAX_VALUE
-                digit = Character.digit(s.getByte(i++),10);
+                digit = Character.digit(s.getByte(index + i++),10);
                 if (digit < 0) {
                     throw new NumberFormatException();
                 }
@@ -146,6 +193,67 @@ public class BufferUtils {
         return negative ? result : -result;
     }
 
+    /**
+     * Parse up to eight decimal digits at once, from a load of eight bytes starting at the index; bytes past the
+     * digits are ignored, but there must be eight bytes in the buffer.
+     *
+     * @return the value, or -1 if any of the bytes isn't a digit
+     */
+    private static long eightDigits(ChannelBuffer s, int index, int len) {
+        // the first digit in the lowest byte
+        long word = Long.reverseBytes(s.getLong(index));
+        if (len < 8) {
+            // move the digits up to the high bytes, and put leading zeros under them
+            word = (word << ((8 - len) << 3)) | (ZEROS >>> (len << 3));
+        }
+
+        // every byte must be from 0x30 to 0x39: a high nibble of 3, which adding 6 doesn't change
+        if (((word & HIGH_NIBBLES) | (((word + 0x0606060606060606L) & HIGH_NIBBLES) >>> 4)) != 0x3333333333333333L) {
+            return -1;
+        }
+
+        // combine pairs of digits, then pairs of those, then the two halves
+        word -= ZEROS;
+        word = (word * 10) + (word >>> 8);
+        word = (((word & 0x000000ff000000ffL) * (100 + (1000000L << 32)))
+                + (((word >>> 16) & 0x000000ff000000ffL) * (1 + (10000L << 32)))) >>> 32;
+        return word;
+    }
+
+    /**
+     * Find the first space, CR or LF in part of a buffer, looking at eight bytes at a time.
+     *
+     * @param s the buffer to look in
+     * @param index where to start looking
+     * @param end where to stop looking (exclusive)
+     * @return the index of the first space, CR or LF, or -1 if there is none
+     */
+    public static int indexOfDelimiter(ChannelBuffer s, int index, int end) {
+        for (; index + 8 <= end; index += 8) {
+            long word = s.getLong(index);
+            long found = zeroBytes(word ^ SPACES) | zeroBytes(word ^ CRS) | zeroBytes(word ^ LFS);
+            if (found != 0) {
+                // the buffer's big endian load puts the first byte highest
+                return index + (Long.numberOfLeadingZeros(found) >>> 3);
+            }
+        }
+        for (; index < end; index++) {
+            byte b = s.getByte(index);
+            if (b == ' ' || b == '\r' || b == '\n') return index;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the word with the high bit of each of its bytes which are zero set, and every other bit clear
+     */
+    private static long zeroBytes(long word) {
+        // unlike the usual subtraction, this can't borrow from one byte into the next, so a zero byte can't make
+        // another look like one
+        long low = (word & LOW_SEVEN_BITS) + LOW_SEVEN_BITS;
+        return ~(low | word | LOW_SEVEN_BITS);
+    }
+
     /** Blatant copy of Integer.toString, but returning a byte array instead of a String, as
      *  string charset decoding/encoding was killing us on performance.
      * @param i integer to convert
@@ -0,0 +1,57 @@
+package com.thimbleware.jmemcached.util;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Rough sizes of objects on the heap, for storage which has to keep its memory use within a limit. They are
+ * for a 64 bit JVM with compressed references, the default for heaps under 32GB; a JVM without them uses somewhat
+ * more.
+ */
+public final class HeapSize {
+    public static final int OBJECT_HEADER = 12;
+    public static final int ARRAY_HEADER = 16;
+    public static final int REFERENCE = 4;
+
+    /**
+     * A heap channel buffer: the header, reader and writer indexes and marks, the array reference and the order
+     */
+    public static final int CHANNEL_BUFFER = align(OBJECT_HEADER + 4 * 4 + REFERENCE + REFERENCE);
+
+    /**
+     * A slice or duplicate of a channel buffer: as a buffer, plus a reference to the one it views and its offset
+     * and length
+     */
+    public static final int DERIVED_CHANNEL_BUFFER = align(OBJECT_HEADER + 4 * 4 + REFERENCE + 4 + 4);
+
+    private HeapSize() {
+    }
+
+    /**
+     * @return the size rounded up to the 8 byte alignment of objects
+     */
+    public static int align(int size) {
+        return (size + 7) & ~7;
+    }
+
+    /**
+     * @return the size of a byte array of the given length
+     */
+    public static int byteArray(int length) {
+        return align(ARRAY_HEADER + length);
+    }
+
+    /**
+     * Estimate the memory a buffer keeps from being collected: the buffer, the one it is a view onto if it is a
+     * slice, and the whole array behind them, which a small slice of a large array keeps alive just as well.
+     *
+     * @return the estimate in bytes
+     */
+    public static long of(ChannelBuffer buffer) {
+        if (buffer == null) return 0;
+        if (!buffer.hasArray()) return DERIVED_CHANNEL_BUFFER + CHANNEL_BUFFER;
+
+        int arrayLength = buffer.array().length;
+        boolean derived = buffer.arrayOffset() != 0 || buffer.capacity() != arrayLength;
+        return (derived ? DERIVED_CHANNEL_BUFFER : 0) + CHANNEL_BUFFER + byteArray(arrayLength);
+    }
+}
@@ -0,0 +1,28 @@
+package com.thimbleware.jmemcached.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Makes threads named after what they do and numbered, so they can be told apart in thread dumps and profiles.
+ */
+public final class NamedThreadFactory implements ThreadFactory {
+    private final String prefix;
+    private final boolean daemon;
+    private final AtomicInteger number = new AtomicInteger();
+
+    /**
+     * @param name what the threads do; they are named "jmemcached-&lt;name&gt;-&lt;n&gt;"
+     * @param daemon whether the threads are daemon threads, which don't keep the JVM running
+     */
+    public NamedThreadFactory(String name, boolean daemon) {
+        this.prefix = "jmemcached-" + name + "-";
+        this.daemon = daemon;
+    }
+
+    public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, prefix + number.incrementAndGet());
+        thread.setDaemon(daemon);
+        return thread;
+    }
+}
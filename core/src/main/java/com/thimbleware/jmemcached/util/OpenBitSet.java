@@ -669,7 +669,7 @@ public class OpenBitSet implements Cloneable, Serializable {
             starting_block = b;
 
             for (count = 0; count < blocks_needed; count++) {
-                if ((bits[b >>> OFFSET] & (1 << (b & 0x3f))) != 0)
+                if ((bits[b >>> OFFSET] & (1L << (b & 0x3f))) != 0)
                     break;
                 b++;
                 if (b >= wdth) {
@@ -685,7 +685,7 @@ public class OpenBitSet implements Cloneable, Serializable {
             }
 
             if (count == blocks_needed) {
-                set(starting_block, b+blocks_needed);
+                set(starting_block, starting_block + blocks_needed);
                 return starting_block;
             }
 
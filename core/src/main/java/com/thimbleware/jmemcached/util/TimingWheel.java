@@ -0,0 +1,158 @@
+package com.thimbleware.jmemcached.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A hashed timing wheel: a ring of buckets, one per tick, each holding the timeouts which fall due on that tick
+ * of some turn of the wheel. Scheduling and cancelling are O(1) and don't contend with each other; the thread
+ * driving the wheel with {@link #advance(long, Expiry)} files newly scheduled timeouts into their buckets, and
+ * expires everything in each bucket it passes which is due on the current turn.
+ * <p/>
+ * Timeouts fire on the first tick at or after their deadline, so at most a tick late, never early.
+ *
+ * @param <T> the type of item scheduled
+ */
+public final class TimingWheel<T> {
+
+    /**
+     * Called on the driving thread for each item whose timeout falls due.
+     */
+    public interface Expiry<T> {
+        void expired(T item);
+    }
+
+    private final long tickMillis;
+    private final long startMillis;
+    private final Timeout<T>[] buckets;
+    private final int mask;
+
+    /**
+     * Timeouts scheduled since the wheel last advanced, waiting to be filed into their buckets
+     */
+    private final Queue<Timeout<T>> scheduled = new ConcurrentLinkedQueue<Timeout<T>>();
+
+    /**
+     * The next tick to be expired, counted from startMillis
+     */
+    private long tick;
+
+    /**
+     * @param tickMillis the length of a tick in ms, which is how late a timeout can fire
+     * @param ticksPerWheel the number of buckets, rounded up to a power of two; deadlines more than a turn of the
+     *                      wheel away are passed over once per turn until they are due
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tickMillis, int ticksPerWheel) {
+        if (tickMillis <= 0) throw new IllegalArgumentException("tick must be positive");
+        if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30)) throw new IllegalArgumentException("ticks per wheel out of range");
+
+        int size = 1;
+        while (size < ticksPerWheel) size <<= 1;
+
+        this.tickMillis = tickMillis;
+        this.startMillis = System.currentTimeMillis();
+        this.buckets = new Timeout[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Schedule an item to expire after a delay. May be called from any thread.
+     *
+     * @param item the item
+     * @param delayMillis the delay in ms
+     * @return a handle on the timeout, by which it can be cancelled
+     */
+    public Timeout<T> schedule(T item, long delayMillis) {
+        Timeout<T> timeout = new Timeout<T>(item, System.currentTimeMillis() + Math.max(delayMillis, 0));
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Expire every timeout due at or before the given time. Calls are serialized, and are expected to come from a
+     * single thread driving the wheel at about the rate of its ticks.
+     *
+     * @param nowMillis the current time in ms
+     * @param expiry called for each item which falls due
+     * @return the number of items expired
+     */
+    public synchronized int advance(long nowMillis, Expiry<? super T> expiry) {
+        fileScheduled();
+
+        long through = (nowMillis - startMillis) / tickMillis;
+        int expired = 0;
+        for (; tick <= through; tick++) {
+            int index = (int) (tick & mask);
+            Timeout<T> previous = null;
+            Timeout<T> timeout = buckets[index];
+            while (timeout != null) {
+                Timeout<T> next = timeout.next;
+                if (timeout.cancelled || timeout.rounds <= 0) {
+                    if (previous == null) buckets[index] = next;
+                    else previous.next = next;
+                    timeout.next = null;
+                    if (!timeout.cancelled) {
+                        timeout.cancelled = true;
+                        expiry.expired(timeout.item);
+                        expired++;
+                    }
+                } else {
+                    timeout.rounds--;
+                    previous = timeout;
+                }
+                timeout = next;
+            }
+        }
+        return expired;
+    }
+
+    private void fileScheduled() {
+        Timeout<T> timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            if (timeout.cancelled) continue;
+
+            // the first tick whose start is at or after the deadline; those already past go in the next one
+            long due = (timeout.deadline - startMillis + tickMillis - 1) / tickMillis;
+            if (due < tick) due = tick;
+            timeout.rounds = (due - tick) / buckets.length;
+
+            int index = (int) (due & mask);
+            timeout.next = buckets[index];
+            buckets[index] = timeout;
+        }
+    }
+
+    /**
+     * A scheduled item. Cancelled timeouts are dropped the next time the wheel passes them.
+     */
+    public static final class Timeout<T> {
+        private final T item;
+        private final long deadline;
+        private volatile boolean cancelled;
+
+        // only touched by the driving thread
+        private long rounds;
+        private Timeout<T> next;
+
+        private Timeout(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+
+        public T getItem() {
+            return item;
+        }
+
+        /**
+         * Stop the item from expiring, if it hasn't already.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
@@ -4,6 +4,7 @@ import com.thimbleware.jmemcached.*;
 import com.thimbleware.jmemcached.storage.bytebuffer.BlockStorageCacheStorage;
 import com.thimbleware.jmemcached.storage.CacheStorage;
 import com.thimbleware.jmemcached.storage.bytebuffer.ByteBufferBlockStore;
+import com.thimbleware.jmemcached.storage.bytebuffer.SlabBlockStore;
 import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
 import com.thimbleware.jmemcached.storage.mmap.MemoryMappedBlockStore;
 import com.thimbleware.jmemcached.util.Bytes;
@@ -37,7 +38,7 @@ public abstract class AbstractCacheTest {
 
 
     public static enum CacheType {
-        LOCAL_HASH, BLOCK, MAPPED
+        LOCAL_HASH, BLOCK, MAPPED, SLAB
     }
 
     public static enum ProtocolMode {
@@ -52,7 +53,9 @@ public abstract class AbstractCacheTest {
                 {CacheType.BLOCK, 4, ProtocolMode.TEXT},
                 {CacheType.BLOCK, 4, ProtocolMode.BINARY},
                 {CacheType.MAPPED, 4, ProtocolMode.TEXT},
-                {CacheType.MAPPED, 4, ProtocolMode.BINARY }
+                {CacheType.MAPPED, 4, ProtocolMode.BINARY },
+                {CacheType.SLAB, 4, ProtocolMode.TEXT},
+                {CacheType.SLAB, 4, ProtocolMode.BINARY}
         });
     }
 
@@ -92,6 +95,9 @@ public abstract class AbstractCacheTest {
             case MAPPED:
                 cacheStorage = new BlockStorageCacheStorage(16, CEILING_SIZE, blockSize, MAX_BYTES, MAX_SIZE, MemoryMappedBlockStore.getFactory());
 
+                break;
+            case SLAB:
+                cacheStorage = new BlockStorageCacheStorage(16, CEILING_SIZE, blockSize, MAX_BYTES, MAX_SIZE, new SlabBlockStore.SlabBlockStoreFactory(SlabBlockStore.DEFAULT_GROWTH_FACTOR, MAX_BYTES / 32));
                 break;
         }
         return cacheStorage;
@@ -3,16 +3,24 @@ package com.thimbleware.jmemcached.test;
 import static com.thimbleware.jmemcached.LocalCacheElement.Now;
 import com.thimbleware.jmemcached.*;
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
 import static junit.framework.Assert.assertTrue;
 
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
 
 /**
  */
@@ -60,6 +68,33 @@ public class BasicCacheTest extends AbstractCacheTest {
         assertEquals("cache has 1 element", 1, cache.getCurrentItems());
     }
 
+    @Test
+    public void testMultiGet() {
+        Key[] keys = new Key[200];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new Key(ChannelBuffers.wrappedBuffer(("key" + i).getBytes()));
+            // every third key is left out
+            if (i % 3 == 0) continue;
+
+            LocalCacheElement element = new LocalCacheElement(keys[i], 0, NO_EXPIRE, 0L);
+            element.setData(ChannelBuffers.wrappedBuffer(("value" + i).getBytes()));
+            assertEquals(Cache.StoreResponse.STORED, cache.set(element));
+        }
+
+        CacheElement[] results = cache.get(keys);
+        assertEquals(keys.length, results.length);
+        for (int i = 0; i < keys.length; i++) {
+            if (i % 3 == 0) {
+                assertNull("no value for " + i, results[i]);
+            } else {
+                assertNotNull("value for " + i, results[i]);
+                assertEquals(keys[i], results[i].getKey());
+                assertEquals(ChannelBuffers.wrappedBuffer(("value" + i).getBytes()), results[i].getData());
+                results[i].release();
+            }
+        }
+    }
+
     @Test
     public void testAddReplace() {
         Key testKey = new Key(ChannelBuffers.wrappedBuffer("12345678".getBytes()));
@@ -190,8 +225,180 @@ public class BasicCacheTest extends AbstractCacheTest {
 
         cache.flush_all();
 
-        assertEquals("size of cache matches is empty after flush", 0, cache.getCurrentBytes());
+        // flushed entries are only reclaimed as they are come upon
+        assertNull("flushed element is gone", cache.get(testKey)[0]);
         assertEquals("cache has no elements after flush", 0, cache.getCurrentItems());
+
+        // and may be added again
+        element = new LocalCacheElement(testKey, 0, NO_EXPIRE, 0L);
+        element.setData(ChannelBuffers.wrappedBuffer(testvalue.getBytes()));
+        assertEquals(Cache.StoreResponse.STORED, cache.add(element));
+        assertNotNull("element added after flush is present", cache.get(testKey)[0]);
+    }
+
+    @Test
+    public void testDelayedFlush() throws InterruptedException {
+        Key testKey = new Key(ChannelBuffers.wrappedBuffer("12345678".getBytes()));
+
+        LocalCacheElement element = new LocalCacheElement(testKey, 0, NO_EXPIRE, 0L);
+        element.setData(ChannelBuffers.wrappedBuffer("87654321".getBytes()));
+        cache.set(element);
+
+        assertTrue(cache.flush_all(1));
+        assertNotNull("element present until the flush takes effect", cache.get(testKey)[0]);
+
+        Thread.sleep(1100);
+        assertNull("element flushed once the delay is up", cache.get(testKey)[0]);
+    }
+
+    @Test
+    public void testMemoryAccounting() {
+        Key testKey = new Key(ChannelBuffers.wrappedBuffer("12345678".getBytes()));
+        byte[] value = new byte[1000];
+
+        LocalCacheElement element = new LocalCacheElement(testKey, 0, NO_EXPIRE, 0L);
+        element.setData(ChannelBuffers.wrappedBuffer(value));
+        cache.set(element);
+
+        assertTrue("entry counted", cache.getCurrentDataBytes() >= value.length);
+        assertTrue("overhead counted", cache.getCurrentBytes() > cache.getCurrentDataBytes());
+
+        cache.delete(testKey, 0);
+        assertEquals("nothing left", 0, cache.getCurrentDataBytes());
+    }
+
+    @Test
+    public void testSlabStats() {
+        LocalCacheElement element = new LocalCacheElement(new Key(ChannelBuffers.wrappedBuffer("slabbed".getBytes())), 0, NO_EXPIRE, 0L);
+        element.setData(ChannelBuffers.wrappedBuffer("hello".getBytes()));
+        cache.set(element);
+
+        Map<String, Set<String>> stats = cache.stat("slabs");
+        if (cacheType == CacheType.SLAB) {
+            assertEquals(Collections.singleton("1"), stats.get("active_slabs"));
+            assertTrue(stats.containsKey("total_malloced"));
+            boolean used = false;
+            for (Map.Entry<String, Set<String>> stat : stats.entrySet()) {
+                if (stat.getKey().endsWith(":used_chunks")) used |= stat.getValue().contains("1");
+            }
+            assertTrue("the element's chunk is counted", used);
+        } else {
+            for (String stat : stats.keySet()) {
+                assertFalse("no size classes without slabs", stat.contains(":"));
+            }
+        }
+    }
+
+    @Test
+    public void testResponseHeaders() {
+        ((CacheImpl) cache).setRenderResponseHeaders(true);
+        Key testKey = new Key(ChannelBuffers.wrappedBuffer("12345678".getBytes()));
+
+        LocalCacheElement element = new LocalCacheElement(testKey, 5, NO_EXPIRE, 0L);
+        element.setData(ChannelBuffers.wrappedBuffer("hello".getBytes()));
+        cache.set(element);
+
+        LocalCacheElement appended = new LocalCacheElement(testKey, 0, NO_EXPIRE, 0L);
+        appended.setData(ChannelBuffers.wrappedBuffer(" world".getBytes()));
+        assertEquals(Cache.StoreResponse.STORED, cache.append(appended));
+
+        ChannelBuffer header = cache.get(testKey)[0].getResponseHeader();
+        if (cacheType == CacheType.LOCAL_HASH) {
+            assertEquals("header follows the append", "VALUE 12345678 5 11", header.toString("US-ASCII"));
+            assertTrue("header memory counted", cache.getCurrentResponseHeaderBytes() >= header.capacity());
+            assertTrue("and reported", !cache.stat(null).get("current_response_header_bytes").contains("0"));
+        } else {
+            // serialized storage keeps no headers
+            assertNull(header);
+            assertEquals(0, cache.getCurrentResponseHeaderBytes());
+        }
+
+        cache.delete(testKey, 0);
+        assertEquals("nothing left", 0, cache.getCurrentResponseHeaderBytes());
+    }
+
+    @Test
+    public void testTouch() {
+        Key testKey = new Key(ChannelBuffers.wrappedBuffer("12345678".getBytes()));
+        LocalCacheElement element = new LocalCacheElement(testKey, 0, Now() + 100, 0L);
+        element.setData(ChannelBuffers.wrappedBuffer("87654321".getBytes()));
+        cache.set(element);
+        long cas = cache.get(testKey)[0].getCasUnique();
+
+        CacheElement touched = cache.getAndTouch(0, testKey)[0];
+        assertNotNull(touched);
+        assertEquals("no longer expires", 0, touched.getExpire());
+        assertEquals("cas kept", cas, touched.getCasUnique());
+        assertEquals("data kept", ChannelBuffers.wrappedBuffer("87654321".getBytes()), touched.getData());
+        assertEquals(0, cache.get(testKey)[0].getExpire());
+
+        assertTrue(cache.touch(testKey, Now() - 1));
+        assertNull("expired once touched into the past", cache.get(testKey)[0]);
+        assertTrue("nothing to touch", !cache.touch(testKey, 0));
+        assertNull(cache.getAndTouch(0, testKey)[0]);
+    }
+
+    @Test
+    public void testGetAndTouchKeepsDataUntilReleased() {
+        Key testKey = new Key(ChannelBuffers.wrappedBuffer("touched".getBytes()));
+        LocalCacheElement element = new LocalCacheElement(testKey, 0, NO_EXPIRE, 0L);
+        element.setData(ChannelBuffers.wrappedBuffer("AAAA".getBytes()));
+        cache.set(element);
+
+        CacheElement touched = cache.getAndTouch(0, testKey)[0];
+        assertNotNull(touched);
+
+        // the key overwritten and removed, then others stored, which storage could put in the memory the touched
+        // element was read from were it freed
+        LocalCacheElement overwrite = new LocalCacheElement(testKey, 0, NO_EXPIRE, 0L);
+        overwrite.setData(ChannelBuffers.wrappedBuffer("BBBB".getBytes()));
+        cache.set(overwrite);
+        cache.delete(testKey, 0);
+        for (int i = 0; i < 1000; i++) {
+            LocalCacheElement other = new LocalCacheElement(new Key(ChannelBuffers.wrappedBuffer(("other" + i).getBytes())), 0, NO_EXPIRE, 0L);
+            other.setData(ChannelBuffers.wrappedBuffer("CCCC".getBytes()));
+            cache.set(other);
+            if (i % 2 == 0) cache.delete(other.getKey(), 0);
+        }
+
+        assertEquals("data intact until released", ChannelBuffers.wrappedBuffer("AAAA".getBytes()), touched.getData());
+        touched.release();
+    }
+
+    @Test
+    public void testDelayedDelete() throws InterruptedException {
+        Key testKey = new Key(ChannelBuffers.wrappedBuffer("12345678".getBytes()));
+
+        LocalCacheElement element = new LocalCacheElement(testKey, 0, NO_EXPIRE, 0L);
+        element.setData(ChannelBuffers.wrappedBuffer("87654321".getBytes()));
+        cache.set(element);
+
+        assertEquals(Cache.DeleteResponse.DELETED, cache.delete(testKey, 1));
+        assertNull("element gone once deleted", cache.get(testKey)[0]);
+        assertEquals("key held until the delay is up", Cache.StoreResponse.EXISTS, cache.add(element));
+
+        Thread.sleep(1300);
+        assertEquals("key released once the delay is up", Cache.StoreResponse.STORED, cache.add(element));
+        assertNotNull(cache.get(testKey)[0]);
+    }
+
+    @Test
+    public void testCrawlerReclaimsExpired() throws InterruptedException {
+        LocalCacheElement expired = new LocalCacheElement(new Key(ChannelBuffers.wrappedBuffer("expired".getBytes())), 0, Now() - 10, 0L);
+        expired.setData(ChannelBuffers.wrappedBuffer("gone".getBytes()));
+        cache.set(expired);
+
+        LocalCacheElement live = new LocalCacheElement(new Key(ChannelBuffers.wrappedBuffer("live".getBytes())), 0, NO_EXPIRE, 0L);
+        live.setData(ChannelBuffers.wrappedBuffer("here".getBytes()));
+        cache.set(live);
+
+        // the crawler gets to it without anything reading it
+        for (int i = 0; i < 50 && cache.getCurrentItems() > 1; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals("expired element reclaimed", 1, cache.getCurrentItems());
+        assertTrue("reclaim counted", cache.stat(null).get("crawler_reclaimed").contains("1"));
+        assertNotNull("live element left alone", cache.get(live.getKey())[0]);
     }
 
     @Test
@@ -240,4 +447,92 @@ public class BasicCacheTest extends AbstractCacheTest {
         assertEquals(ChannelBuffers.wrappedBuffer("11".getBytes()), data);
     }
 
+    @Test
+    public void testGetSurvivesOverwriteUntilReleased() {
+        Key testKey = new Key(ChannelBuffers.wrappedBuffer("12345678".getBytes()));
+
+        LocalCacheElement element = new LocalCacheElement(testKey, 0, NO_EXPIRE, 0L);
+        element.setData(ChannelBuffers.wrappedBuffer("87654321".getBytes()));
+        assertEquals(cache.set(element), Cache.StoreResponse.STORED);
+
+        CacheElement result = cache.get(testKey)[0];
+        assertNotNull("got result", result);
+
+        // delete and rewrite the key; its old storage must not be reused while the result is still held
+        for (int i = 0; i < 10; i++) {
+            assertEquals(cache.delete(testKey, 0), Cache.DeleteResponse.DELETED);
+            element = new LocalCacheElement(testKey, 0, NO_EXPIRE, 0L);
+            element.setData(ChannelBuffers.wrappedBuffer("abcdefgh".getBytes()));
+            assertEquals(cache.set(element), Cache.StoreResponse.STORED);
+        }
+
+        assertEquals("data unchanged", ChannelBuffers.wrappedBuffer("87654321".getBytes()), result.getData());
+        assertEquals("key unchanged", testKey, result.getKey());
+        result.release();
+
+        assertEquals("cache has 1 element", 1, cache.getCurrentItems());
+    }
+
+    @Test
+    public void testSnapshotRestore() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            LocalCacheElement element = new LocalCacheElement(new Key(ChannelBuffers.wrappedBuffer(("key" + i).getBytes())), i, NO_EXPIRE, 0L);
+            element.setData(ChannelBuffers.wrappedBuffer(("value" + i).getBytes()));
+            assertEquals(cache.set(element), Cache.StoreResponse.STORED);
+        }
+        LocalCacheElement expired = new LocalCacheElement(new Key(ChannelBuffers.wrappedBuffer("expired".getBytes())), 0, Now() - 10, 0L);
+        expired.setData(ChannelBuffers.wrappedBuffer("gone".getBytes()));
+        cache.set(expired);
+
+        File snapshot = File.createTempFile("jmemcached", "snapshot");
+        try {
+            assertEquals("live items written", 100, cache.snapshot(snapshot, true));
+
+            // empty the cache; flushing it would also do for anything restored which was stored before the flush
+            for (int i = 0; i < 100; i++) {
+                cache.delete(new Key(ChannelBuffers.wrappedBuffer(("key" + i).getBytes())), 0);
+            }
+            cache.delete(expired.getKey(), 0);
+            assertEquals("cache emptied", 0, cache.getCurrentItems());
+
+            assertEquals("live items loaded", 100, cache.restore(snapshot));
+            assertEquals(100, cache.getCurrentItems());
+            for (int i = 0; i < 100; i++) {
+                CacheElement result = cache.get(new Key(ChannelBuffers.wrappedBuffer(("key" + i).getBytes())))[0];
+                assertNotNull("restored " + i, result);
+                assertEquals("flags restored", i, result.getFlags());
+                assertEquals(ChannelBuffers.wrappedBuffer(("value" + i).getBytes()), result.getData());
+                result.release();
+            }
+        } finally {
+            snapshot.delete();
+        }
+    }
+
+    @Test
+    public void testRestoreMovesCasPastRestored() throws IOException {
+        long highestCas = 0;
+        for (int i = 0; i < 10; i++) {
+            LocalCacheElement element = new LocalCacheElement(new Key(ChannelBuffers.wrappedBuffer(("key" + i).getBytes())), 0, NO_EXPIRE, 0L);
+            element.setData(ChannelBuffers.wrappedBuffer(("value" + i).getBytes()));
+            cache.set(element);
+            highestCas = Math.max(highestCas, element.getCasUnique());
+        }
+
+        File snapshot = File.createTempFile("jmemcached", "snapshot");
+        CacheImpl restarted = new CacheImpl(ConcurrentLinkedHashMap.<Key, LocalCacheElement>create(
+                ConcurrentLinkedHashMap.EvictionPolicy.FIFO, MAX_SIZE, MAX_BYTES));
+        try {
+            cache.snapshot(snapshot, false);
+            assertEquals(10, restarted.restore(snapshot));
+
+            LocalCacheElement element = new LocalCacheElement(new Key(ChannelBuffers.wrappedBuffer("new".getBytes())), 0, NO_EXPIRE, 0L);
+            element.setData(ChannelBuffers.wrappedBuffer("value".getBytes()));
+            restarted.set(element);
+            assertTrue("a write after the restore gets a CAS no client has seen", element.getCasUnique() > highestCas);
+        } finally {
+            restarted.close();
+            snapshot.delete();
+        }
+    }
 }
@@ -0,0 +1,147 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.CacheImpl;
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.MemCacheDaemon;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap.EvictionPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Binary protocol requests which arrive a few bytes at a time, over several reads, are decoded as if they had
+ * arrived whole; and the responses to them are laid out as the protocol has them.
+ */
+public class BinaryProtocolTest {
+    private MemCacheDaemon<LocalCacheElement> daemon;
+    private InetSocketAddress address;
+
+    @Before
+    public void setUp() throws Exception {
+        address = new InetSocketAddress("localhost", AvailablePortFinder.getNextAvailable());
+        daemon = new MemCacheDaemon<LocalCacheElement>(new CacheImpl(
+                ConcurrentLinkedHashMap.<Key, LocalCacheElement>create(EvictionPolicy.FIFO, 1000, Long.MAX_VALUE)));
+        daemon.setAddr(address);
+        daemon.setBinary(true);
+        daemon.start();
+    }
+
+    @After
+    public void tearDown() {
+        daemon.stop();
+    }
+
+    @Test
+    public void testRequestsSplitAcrossReads() throws Exception {
+        ByteArrayOutputStream requests = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(requests);
+        request(out, 0x01, 1, new byte[8], "key", "value");           // Set
+        request(out, 0x0C, 2, new byte[0], "key", "");                // GetK
+        request(out, 0x05, 3, new byte[20], "missing", "");           // Increment
+        request(out, 0x09, 4, new byte[0], "missing", "");            // GetQ, which misses quietly
+        request(out, 0x0A, 5, new byte[0], "", "");                   // Noop
+
+        Socket socket = new Socket(address.getAddress(), address.getPort());
+        try {
+            socket.setSoTimeout(10000);
+            socket.setTcpNoDelay(true);
+            OutputStream output = socket.getOutputStream();
+            byte[] bytes = requests.toByteArray();
+            for (int i = 0; i < bytes.length; i += 5) {
+                output.write(bytes, i, Math.min(5, bytes.length - i));
+                output.flush();
+                Thread.sleep(2);
+            }
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            assertResponse(in, 0x01, 0, 1, 0, 0, "");
+            assertResponse(in, 0x0C, 0, 2, 4, 3, "keyvalue");
+            assertResponse(in, 0x05, 1, 3, 0, 0, "");
+            assertResponse(in, 0x0A, 0, 5, 0, 0, "");
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testTouchAndUnknownCommands() throws Exception {
+        byte[] expiration = new byte[] { 0, 0, 0, 100 };
+        ByteArrayOutputStream requests = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(requests);
+        request(out, 0x01, 1, new byte[8], "key", "value");           // Set
+        request(out, 0x1C, 2, expiration, "key", "");                 // Touch
+        request(out, 0x1C, 3, expiration, "missing", "");             // Touch, which misses
+        request(out, 0x1D, 4, expiration, "key", "");                 // GAT
+        request(out, 0x1E, 5, expiration, "missing", "");             // GATQ, which misses quietly
+        request(out, 0x24, 6, expiration, "key", "");                 // GATKQ
+        request(out, 0x1B, 7, new byte[4], "", "");                   // Verbosity
+        request(out, 0x20, 8, new byte[0], "", "");                   // SASL list mechanisms, not supported
+        request(out, 0x7F, 9, new byte[0], "", "");                   // no such command
+        request(out, 0x30, 10, new byte[0], "key", "");               // no such command, with a key
+        request(out, 0x0A, 11, new byte[0], "", "");                  // Noop
+
+        Socket socket = new Socket(address.getAddress(), address.getPort());
+        try {
+            socket.setSoTimeout(10000);
+            socket.getOutputStream().write(requests.toByteArray());
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            assertResponse(in, 0x01, 0, 1, 0, 0, "");
+            assertResponse(in, 0x1C, 0, 2, 0, 0, "");
+            assertResponse(in, 0x1C, 1, 3, 0, 0, "");
+            assertResponse(in, 0x1D, 0, 4, 4, 0, "value");
+            assertResponse(in, 0x24, 0, 6, 4, 3, "keyvalue");
+            assertResponse(in, 0x1B, 0, 7, 0, 0, "");
+            assertResponse(in, 0x20, 0x81, 8, 0, 0, "");
+            assertResponse(in, 0x7F, 0x81, 9, 0, 0, "");
+            assertResponse(in, 0x30, 0x81, 10, 0, 0, "");
+            assertResponse(in, 0x0A, 0, 11, 0, 0, "");
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static void request(DataOutputStream out, int opcode, int opaque, byte[] extras, String key, String value) throws IOException {
+        out.writeByte(0x80);
+        out.writeByte(opcode);
+        out.writeShort(key.length());
+        out.writeByte(extras.length);
+        out.writeByte(0);
+        out.writeShort(0);
+        out.writeInt(extras.length + key.length() + value.length());
+        out.writeInt(opaque);
+        out.writeLong(0);
+        out.write(extras);
+        out.writeBytes(key);
+        out.writeBytes(value);
+    }
+
+    private static void assertResponse(DataInputStream in, int opcode, int status, int opaque, int extrasLength, int keyLength, String keyAndValue) throws IOException {
+        assertEquals("magic", 0x81, in.readUnsignedByte());
+        assertEquals("opcode", opcode, in.readUnsignedByte());
+        assertEquals("key length", keyLength, in.readUnsignedShort());
+        assertEquals("extras length", extrasLength, in.readUnsignedByte());
+        in.readUnsignedByte();
+        assertEquals("status", status, in.readUnsignedShort());
+        int bodyLength = in.readInt();
+        assertEquals("body length", extrasLength + keyAndValue.length(), bodyLength);
+        assertEquals("opaque", opaque, in.readInt());
+        in.readLong();
+
+        byte[] body = new byte[bodyLength];
+        in.readFully(body);
+        assertEquals(keyAndValue, new String(body, extrasLength, bodyLength - extrasLength, "US-ASCII"));
+    }
+}
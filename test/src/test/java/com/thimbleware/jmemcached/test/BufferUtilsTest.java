@@ -0,0 +1,76 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.util.BufferUtils;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import static junit.framework.Assert.*;
+
+/**
+ * The word at a time parsing and scanning of {@link BufferUtils} agree with doing it a byte at a time.
+ */
+public class BufferUtilsTest {
+
+    @Test
+    public void testAtoi() {
+        String[] numbers = { "0", "7", "42", "1234567", "12345678", "00000001", "123456789", "2147483647", "-1", "-2147483648" };
+        for (String number : numbers) {
+            int expected = Integer.parseInt(number);
+            assertEquals(number, expected, BufferUtils.atoi(ChannelBuffers.wrappedBuffer(number.getBytes())));
+            // with room after it for the whole word to be loaded
+            assertEquals(number, expected, BufferUtils.atoi(padded(number), 3, number.length()));
+        }
+    }
+
+    @Test
+    public void testAtol() {
+        String[] numbers = { "0", "99", "12345678", "123456789", "9999999999999999", "12345678901234567", "9223372036854775807", "-5" };
+        for (String number : numbers) {
+            long expected = Long.parseLong(number);
+            assertEquals(number, expected, BufferUtils.atol(ChannelBuffers.wrappedBuffer(number.getBytes())));
+            assertEquals(number, expected, BufferUtils.atol(padded(number), 3, number.length()));
+        }
+    }
+
+    @Test
+    public void testBadNumbers() {
+        String[] numbers = { "", "x", "12a", "1 2", "+5", "9:", "/1", "2147483648", "12345678x" };
+        for (String number : numbers) {
+            try {
+                BufferUtils.atoi(padded(number), 3, number.length());
+                fail(number + " is not a number");
+            } catch (NumberFormatException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testIndexOfDelimiter() {
+        String line = "get some_rather_long_key_name another\r\n";
+        ChannelBuffer buffer = ChannelBuffers.wrappedBuffer(line.getBytes());
+        for (int from = 0; from < line.length(); from++) {
+            int expected = -1;
+            for (int i = from; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (c == ' ' || c == '\r' || c == '\n') {
+                    expected = i;
+                    break;
+                }
+            }
+            assertEquals("from " + from, expected, BufferUtils.indexOfDelimiter(buffer, from, line.length()));
+        }
+        assertEquals(-1, BufferUtils.indexOfDelimiter(buffer, 4, 20));
+
+        // bytes with the high bit set, which mustn't be taken for delimiters
+        byte[] high = new byte[17];
+        for (int i = 0; i < high.length; i++) high[i] = (byte) (0xa0 + i);
+        high[13] = '\n';
+        assertEquals(13, BufferUtils.indexOfDelimiter(ChannelBuffers.wrappedBuffer(high), 0, high.length));
+    }
+
+    private static ChannelBuffer padded(String number) {
+        return ChannelBuffers.wrappedBuffer(("xx " + number + "\r\nyyyyyyyyyyyyyyyy").getBytes());
+    }
+}
@@ -57,6 +57,26 @@ public class CacheFIFOTest extends AbstractCacheTest {
         assertEquals("correct number of cache hits", MAX_SIZE, daemon.getCache().getGetHits());
     }
 
+    @Test
+    public void testEvictWhenFull() {
+        // fill to several times the memory capacity; sets must keep succeeding by evicting the oldest items
+        byte[] value = new byte[MAX_BYTES / 64];
+        int fillSize = 64 * 4;
+
+        for (int i = 0; i < fillSize; i++) {
+            LocalCacheElement el = createElement("" + i, "");
+            el.setData(ChannelBuffers.wrappedBuffer(value));
+
+            assertEquals(Cache.StoreResponse.STORED, daemon.getCache().set(el));
+        }
+
+        assertTrue("some items were evicted", daemon.getCache().getCurrentItems() < fillSize);
+
+        CacheElement result = daemon.getCache().get(new Key(ChannelBuffers.wrappedBuffer(("" + (fillSize - 1)).getBytes())))[0];
+        assertNotNull("most recent item is present", result);
+        assertEquals(value.length, result.size());
+    }
+
     private LocalCacheElement createElement(String testKey, String testvalue) {
         LocalCacheElement element = new LocalCacheElement(new Key(ChannelBuffers.wrappedBuffer(testKey.getBytes())), 0, Now() + (1000*60*5), 0L);
         element.setData(ChannelBuffers.wrappedBuffer(testvalue.getBytes()));
@@ -0,0 +1,124 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.CacheImpl;
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.storage.bytebuffer.BlockStorageCacheStorage;
+import com.thimbleware.jmemcached.storage.mmap.MemoryMappedBlockStore;
+import com.thimbleware.jmemcached.util.Bytes;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static com.thimbleware.jmemcached.LocalCacheElement.Now;
+import static junit.framework.Assert.*;
+
+/**
+ */
+public class DurableMappedStorageTest {
+    private static final int PARTITIONS = 4;
+    private static final long MAX_BYTES = Bytes.valueOf("4m").bytes();
+
+    private File basePath;
+
+    @Before
+    public void setup() throws IOException {
+        basePath = File.createTempFile("jmemcached", "durable");
+        basePath.delete();
+    }
+
+    @After
+    public void teardown() {
+        for (int i = 0; i < PARTITIONS; i++) {
+            new File(basePath.getPath() + "." + i).delete();
+            new File(basePath.getPath() + "." + i + ".state").delete();
+        }
+    }
+
+    private BlockStorageCacheStorage open() {
+        return new BlockStorageCacheStorage(PARTITIONS, 0, 8, MAX_BYTES, 0, MemoryMappedBlockStore.getDurableFactory(basePath));
+    }
+
+    @Test
+    public void testContentsSurviveRestart() throws IOException {
+        BlockStorageCacheStorage storage = open();
+        for (int i = 0; i < 500; i++) {
+            storage.put(key("" + i), element("" + i, i + "x", 0));
+        }
+        storage.put(key("expiring"), element("expiring", "gone", Now() + 1));
+        storage.remove(key("7"));
+        storage.close();
+
+        // let the expiring entry lapse while the cache is down
+        try {
+            Thread.sleep(2100);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+
+        storage = open();
+        assertEquals("live items restored", 499, storage.size());
+        assertNull("expired item dropped", storage.get(key("expiring")));
+        assertNull("removed item stays removed", storage.get(key("7")));
+        assertEquals(ChannelBuffers.wrappedBuffer("42x".getBytes()), storage.get(key("42")).getData());
+
+        // the restored partitions take writes as usual
+        storage.put(key("new"), element("new", "value", 0));
+        storage.remove(key("42"));
+        assertEquals(ChannelBuffers.wrappedBuffer("value".getBytes()), storage.get(key("new")).getData());
+        assertEquals(499, storage.size());
+        storage.close();
+    }
+
+    @Test
+    public void testCasCarriesOnAfterRestart() throws IOException {
+        CacheImpl cache = new CacheImpl(open());
+        long highestCas = 0;
+        for (int i = 0; i < 10; i++) {
+            LocalCacheElement element = element("" + i, "value", 0);
+            cache.set(element);
+            highestCas = Math.max(highestCas, element.getCasUnique());
+        }
+        cache.close();
+
+        cache = new CacheImpl(open());
+        try {
+            LocalCacheElement element = element("new", "value", 0);
+            cache.set(element);
+            assertTrue("a write after the restart gets a CAS no client has seen", element.getCasUnique() > highestCas);
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testStartsEmptyWithoutSavedState() throws IOException {
+        BlockStorageCacheStorage storage = open();
+        storage.put(key("a"), element("a", "b", 0));
+        storage.close();
+
+        // as after a crash, the files are there but not the state saved on a clean close
+        for (int i = 0; i < PARTITIONS; i++) {
+            new File(basePath.getPath() + "." + i + ".state").delete();
+        }
+
+        storage = open();
+        assertEquals(0, storage.size());
+        assertNull(storage.get(key("a")));
+        storage.close();
+    }
+
+    private static Key key(String key) {
+        return new Key(ChannelBuffers.wrappedBuffer(key.getBytes()));
+    }
+
+    private static LocalCacheElement element(String key, String value, long expire) {
+        LocalCacheElement element = new LocalCacheElement(key(key), 0, expire, 0L);
+        element.setData(ChannelBuffers.wrappedBuffer(value.getBytes()));
+        return element;
+    }
+}
@@ -0,0 +1,169 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap.EvictionPolicy;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static com.thimbleware.jmemcached.LocalCacheElement.Now;
+import static junit.framework.Assert.*;
+
+/**
+ */
+public class EvictionPolicyTest {
+    private static final int CAPACITY = 100;
+
+    @Test
+    public void testLRUKeepsRecentlyRead() {
+        ConcurrentLinkedHashMap<Key, LocalCacheElement> map = ConcurrentLinkedHashMap.create(EvictionPolicy.LRU, CAPACITY, Long.MAX_VALUE);
+        for (int i = 0; i < CAPACITY; i++) {
+            map.put(key(i), element(i));
+        }
+        // read the older half, fewer times than it takes to fill a read buffer
+        for (int i = 0; i < CAPACITY / 2; i++) {
+            assertNotNull(map.get(key(i)));
+        }
+        for (int i = CAPACITY; i < CAPACITY + CAPACITY / 2; i++) {
+            map.put(key(i), element(i));
+        }
+
+        assertEquals(CAPACITY, map.size());
+        for (int i = 0; i < CAPACITY / 2; i++) {
+            assertNotNull(i + " was read recently", map.get(key(i)));
+        }
+        for (int i = CAPACITY / 2; i < CAPACITY; i++) {
+            assertNull(i + " was least recently used", map.get(key(i)));
+        }
+    }
+
+    @Test
+    public void testLRUConcurrentReads() throws InterruptedException {
+        final ConcurrentLinkedHashMap<Key, LocalCacheElement> map = ConcurrentLinkedHashMap.create(EvictionPolicy.LRU, CAPACITY, Long.MAX_VALUE);
+        for (int i = 0; i < CAPACITY; i++) {
+            map.put(key(i), element(i));
+        }
+
+        final int threads = 8;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread() {
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        map.get(key(i % CAPACITY));
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        for (int i = CAPACITY; i < CAPACITY * 20; i++) {
+            map.put(key(i), element(i));
+            assertTrue(map.size() <= CAPACITY);
+        }
+        done.await();
+        assertEquals(CAPACITY, map.size());
+    }
+
+    @Test
+    public void testTinyLFUResistsScans() {
+        ConcurrentLinkedHashMap<Key, LocalCacheElement> map = ConcurrentLinkedHashMap.create(EvictionPolicy.TINY_LFU, CAPACITY, Long.MAX_VALUE);
+        int hot = CAPACITY / 2;
+        for (int i = 0; i < hot; i++) {
+            map.put(key(i), element(i));
+        }
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < hot; i++) {
+                assertNotNull(map.get(key(i)));
+            }
+        }
+
+        // a scan of keys used once each
+        for (int i = CAPACITY; i < CAPACITY * 10; i++) {
+            map.put(key(i), element(i));
+            assertTrue(map.size() <= CAPACITY);
+        }
+
+        int survivors = 0;
+        for (int i = 0; i < hot; i++) {
+            if (map.get(key(i)) != null) survivors++;
+        }
+        assertEquals("hot entries survive the scan", hot, survivors);
+    }
+
+    @Test
+    public void testExpiredEvictedBeforeLive() {
+        for (EvictionPolicy policy : EvictionPolicy.values()) {
+            ConcurrentLinkedHashMap<Key, LocalCacheElement> map = ConcurrentLinkedHashMap.create(policy, CAPACITY, Long.MAX_VALUE);
+            for (int i = 0; i < CAPACITY - 2; i++) {
+                map.put(key(i), element(i));
+            }
+            // the newest entries, one of which has expired and one which has yet to
+            map.put(key(-1), element(-1, Now() - 10));
+            map.put(key(-2), element(-2, Now() + 1000));
+
+            map.put(key(CAPACITY), element(CAPACITY));
+
+            assertEquals(policy + " keeps to capacity", CAPACITY, map.size());
+            assertNull(policy + " evicts the expired entry", map.get(key(-1)));
+            assertNotNull(policy + " keeps the entry yet to expire", map.get(key(-2)));
+            for (int i = 0; i < CAPACITY - 2; i++) {
+                assertNotNull(policy + " keeps live entry " + i, map.get(key(i)));
+            }
+        }
+    }
+
+    @Test
+    public void testRewrittenExpiriesFollowLatestValue() {
+        for (EvictionPolicy policy : EvictionPolicy.values()) {
+            ConcurrentLinkedHashMap<Key, LocalCacheElement> map = ConcurrentLinkedHashMap.create(policy, CAPACITY, Long.MAX_VALUE);
+            for (int i = 0; i < CAPACITY - 2; i++) {
+                map.put(key(i), element(i));
+            }
+            // rewritten many times with the same expiry before it is given one already gone
+            for (int i = 0; i < 1000; i++) {
+                map.put(key(-1), element(-1, Now() + 1000));
+            }
+            map.replace(key(-1), element(-1, Now() - 10));
+            // and the other way about, expired and then never to expire
+            map.put(key(-2), element(-2, Now() - 10));
+            map.put(key(-2), element(-2));
+
+            map.put(key(CAPACITY), element(CAPACITY));
+
+            assertEquals(policy + " keeps to capacity", CAPACITY, map.size());
+            assertNull(policy + " evicts the entry which has expired since", map.get(key(-1)));
+            assertNotNull(policy + " keeps the entry which no longer expires", map.get(key(-2)));
+        }
+    }
+
+    @Test
+    public void testMemoryCapacityCountsOverhead() {
+        long memoryCapacity = 64 * 1024;
+        ConcurrentLinkedHashMap<Key, LocalCacheElement> map = ConcurrentLinkedHashMap.create(EvictionPolicy.FIFO, 100000, memoryCapacity);
+        for (int i = 0; i < 10000; i++) {
+            map.put(key(i), element(i));
+        }
+
+        assertTrue(map.getMemoryUsed() <= memoryCapacity);
+        // each entry's value is a few bytes, but it takes up over a hundred
+        assertTrue(map.size() < memoryCapacity / 100);
+        assertTrue(map.getDataUsed() < map.getMemoryUsed() / 10);
+    }
+
+    static Key key(int i) {
+        return new Key(ChannelBuffers.wrappedBuffer(("" + i).getBytes()));
+    }
+
+    static LocalCacheElement element(int i) {
+        return element(i, 0);
+    }
+
+    static LocalCacheElement element(int i, long expire) {
+        LocalCacheElement element = new LocalCacheElement(key(i), 0, expire, 0L);
+        element.setData(ChannelBuffers.wrappedBuffer((i + "x").getBytes()));
+        return element;
+    }
+}
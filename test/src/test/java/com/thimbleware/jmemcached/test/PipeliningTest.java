@@ -0,0 +1,120 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.CacheImpl;
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.MemCacheDaemon;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap.EvictionPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Commands sent together in one write, as a pipelining client does, get their responses complete and in order.
+ */
+public class PipeliningTest {
+    private static final int COMMANDS = 500;
+
+    private MemCacheDaemon<LocalCacheElement> daemon;
+    private InetSocketAddress address;
+
+    @Before
+    public void setUp() throws Exception {
+        address = new InetSocketAddress("localhost", AvailablePortFinder.getNextAvailable());
+        daemon = new MemCacheDaemon<LocalCacheElement>(new CacheImpl(
+                ConcurrentLinkedHashMap.<Key, LocalCacheElement>create(EvictionPolicy.LRU, COMMANDS * 2, Long.MAX_VALUE)));
+        daemon.setAddr(address);
+        daemon.start();
+    }
+
+    @After
+    public void tearDown() {
+        daemon.stop();
+    }
+
+    @Test
+    public void testPipelinedResponsesInOrder() throws Exception {
+        StringBuilder requests = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < COMMANDS; i++) {
+            String value = "value" + i;
+            requests.append("set key").append(i).append(" 0 0 ").append(value.length()).append("\r\n").append(value).append("\r\n");
+            requests.append("get key").append(i).append("\r\n");
+            expected.append("STORED\r\n");
+            expected.append("VALUE key").append(i).append(" 0 ").append(value.length()).append("\r\n").append(value).append("\r\nEND\r\n");
+        }
+
+        assertResponse(requests.toString(), expected.toString());
+    }
+
+    @Test
+    public void testBadCommandsDontStopPipeline() throws Exception {
+        assertResponse("set counter 0 0 1\r\n5\r\nbogus\r\nincr counter x\r\n\r\nincr counter 2\r\nget counter\r\n",
+                "STORED\r\nCLIENT_ERROR\r\nCLIENT_ERROR\r\n7\r\nVALUE counter 0 1\r\n7\r\nEND\r\n");
+    }
+
+    @Test
+    public void testRenderedResponseHeaders() throws Exception {
+        ((CacheImpl) daemon.getCache()).setRenderResponseHeaders(true);
+        assertResponse("set a 3 0 2\r\nhi\r\nappend a 0 0 1\r\n!\r\nset b 0 0 1\r\n7\r\nincr b 10\r\nget a b c\r\n",
+                "STORED\r\nSTORED\r\nSTORED\r\n17\r\nVALUE a 3 3\r\nhi!\r\nVALUE b 0 2\r\n17\r\nEND\r\n");
+
+        Socket socket = new Socket(address.getAddress(), address.getPort());
+        try {
+            socket.getOutputStream().write("gets a\r\n".getBytes("US-ASCII"));
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            assertTrue(in.readLine().matches("VALUE a 3 3 \\d+"));
+            assertEquals("hi!", in.readLine());
+            assertEquals("END", in.readLine());
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testTouchAndGetAndTouch() throws Exception {
+        assertResponse("set t 5 0 1\r\nx\r\ntouch t 100\r\ntouch nope 100\r\ntouch t 100 noreply\r\ngat 100 t nope\r\n",
+                "STORED\r\nTOUCHED\r\nNOT_FOUND\r\nVALUE t 5 1\r\nx\r\nEND\r\n");
+    }
+
+    @Test
+    public void testExpiryInSeconds() throws Exception {
+        assertResponse("set e 0 1 1\r\nx\r\nset f 0 100 1\r\ny\r\n", "STORED\r\nSTORED\r\n");
+        Thread.sleep(2100);
+        assertResponse("get e f\r\n", "VALUE f 0 1\r\ny\r\nEND\r\n");
+    }
+
+    @Test
+    public void testExpiryAsTime() throws Exception {
+        long now = System.currentTimeMillis() / 1000;
+        assertResponse("set past 0 " + (now - 100) + " 1\r\nx\r\nset future 0 " + (now + 100) + " 1\r\ny\r\nget past future\r\n",
+                "STORED\r\nSTORED\r\nVALUE future 0 1\r\ny\r\nEND\r\n");
+    }
+
+    private void assertResponse(String requests, String expected) throws Exception {
+        Socket socket = new Socket(address.getAddress(), address.getPort());
+        try {
+            socket.setSoTimeout(10000);
+            OutputStream out = socket.getOutputStream();
+            out.write(requests.getBytes("US-ASCII"));
+            out.flush();
+
+            byte[] response = new byte[expected.length()];
+            new DataInputStream(socket.getInputStream()).readFully(response);
+            assertEquals(expected, new String(response, "US-ASCII"));
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.thimbleware.jmemcached.test;
+
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.storage.bytebuffer.BlockStorageCacheStorage;
+import com.thimbleware.jmemcached.storage.bytebuffer.ByteBufferBlockStore;
+import com.thimbleware.jmemcached.storage.bytebuffer.Region;
+import com.thimbleware.jmemcached.storage.bytebuffer.SlabBlockStore;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import java.util.List;
+
+import static junit.framework.Assert.*;
+
+/**
+ * Allocations from a slab store go to the smallest size class which fits them, reuse the chunks freed in their
+ * class, and let a slab emptied in one class go to another; once the store is full, a new entry displaces
+ * others of its own size.
+ */
+public class SlabBlockStoreTest {
+    private static final int SLAB_SIZE = 1024;
+    private static final int BLOCK_SIZE = 4;
+
+    @Test
+    public void testSizeClassSelection() {
+        SlabBlockStore store = store(4);
+
+        List<SlabBlockStore.SlabClassStats> classes = store.getSlabClassStats();
+        int[] expected = new int[] { 64, 128, 256, 512, 1024 };
+        assertEquals(expected.length, classes.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], classes.get(i).getChunkSize());
+            assertEquals(SLAB_SIZE / expected[i], classes.get(i).getChunksPerSlab());
+        }
+
+        assertEquals(64, chunkSize(store.tryAlloc(1, 0, 0)));
+        assertEquals(64, chunkSize(store.tryAlloc(64, 0, 0)));
+        assertEquals(128, chunkSize(store.tryAlloc(65, 0, 0)));
+        assertEquals(1024, chunkSize(store.tryAlloc(1000, 0, 0)));
+
+        classes = store.getSlabClassStats();
+        assertEquals(2, classes.get(0).getUsedChunks());
+        assertEquals(1, classes.get(1).getUsedChunks());
+        assertEquals(0, classes.get(2).getTotalSlabs());
+        assertEquals(1, classes.get(4).getTotalSlabs());
+        assertEquals(1, store.getFreeSlabs());
+        assertEquals(4 * SLAB_SIZE - 2 * 64 - 128 - 1024, store.getFreeBytes());
+    }
+
+    @Test
+    public void testFreedChunkReused() {
+        SlabBlockStore store = store(1);
+        Region[] regions = new Region[SLAB_SIZE / 64];
+        for (int i = 0; i < regions.length; i++) {
+            regions[i] = store.tryAlloc(50, 0, 0);
+            assertNotNull(regions[i]);
+        }
+        assertNull("the slab is full", store.tryAlloc(50, 0, 0));
+        assertEquals(0, store.getSlabClassStats().get(0).getFreeChunks());
+
+        int offset = regions[5].slice.arrayOffset();
+        store.free(regions[5]);
+        assertEquals(1, store.getSlabClassStats().get(0).getFreeChunks());
+
+        Region reused = store.tryAlloc(60, 0, 0);
+        assertNotNull(reused);
+        assertEquals("the freed chunk is handed out again", offset, reused.slice.arrayOffset());
+        assertEquals(0, store.getSlabClassStats().get(0).getFreeChunks());
+    }
+
+    @Test
+    public void testEmptiedSlabGoesToAnotherClass() {
+        SlabBlockStore store = store(1);
+        Region small = store.tryAlloc(10, 0, 0);
+        assertEquals(0, store.getFreeSlabs());
+        assertNull("the only slab belongs to the smallest class", store.tryAlloc(100, 0, 0));
+
+        store.free(small);
+        assertEquals(1, store.getFreeSlabs());
+        assertEquals(0, store.getSlabClassStats().get(0).getTotalSlabs());
+
+        Region larger = store.tryAlloc(100, 0, 0);
+        assertNotNull(larger);
+        assertEquals(128, chunkSize(larger));
+        assertEquals(0, larger.slice.arrayOffset());
+        assertEquals(1, store.getSlabClassStats().get(1).getTotalSlabs());
+        assertEquals(0, store.getFreeSlabs());
+    }
+
+    @Test
+    public void testAllocationLargerThanSlabFails() {
+        SlabBlockStore store = store(4);
+        assertNull(store.tryAlloc(SLAB_SIZE + 1, 0, 0));
+        assertEquals(4, store.getFreeSlabs());
+        assertEquals(4 * SLAB_SIZE, store.getFreeBytes());
+
+        try {
+            store.alloc(SLAB_SIZE + 1, 0, 0);
+            fail("allocated more than a slab");
+        } catch (ByteBufferBlockStore.BadAllocationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFullStoreEvictsFromTheSizeClass() {
+        // one partition of four slabs: the medium entries take two slabs, four to a slab, and the newer small ones
+        // the other two, eight to a slab
+        BlockStorageCacheStorage storage = new BlockStorageCacheStorage(1, 0, BLOCK_SIZE, 4 * SLAB_SIZE, 0,
+                new SlabBlockStore.SlabBlockStoreFactory(2.0, SLAB_SIZE));
+        for (int i = 0; i < 8; i++) storage.put(key("m" + i), element("m" + i, 150));
+        for (int i = 0; i < 16; i++) storage.put(key("s" + i), element("s" + i, 10));
+        assertEquals(24, storage.size());
+
+        // a small entry takes the place of the oldest small one, rather than of medium ones older still
+        storage.put(key("s16"), element("s16", 10));
+        assertEquals(24, storage.size());
+        assertNull(storage.get(key("s0")));
+        for (int i = 1; i <= 16; i++) assertNotNull("small entry " + i, storage.get(key("s" + i)));
+        for (int i = 0; i < 8; i++) assertNotNull("medium entry " + i, storage.get(key("m" + i)));
+
+        // an entry of a class without slabs gets one slab's worth, emptied of a single class
+        storage.put(key("large"), element("large", 600));
+        assertNotNull(storage.get(key("large")));
+        int small = 0, medium = 0;
+        for (int i = 0; i <= 16; i++) if (storage.get(key("s" + i)) != null) small++;
+        for (int i = 0; i < 8; i++) if (storage.get(key("m" + i)) != null) medium++;
+        assertTrue("one class gave up one slab", (small == 16 - 8 && medium == 8) || (small == 16 && medium == 8 - 4));
+    }
+
+    private static Key key(String key) {
+        return new Key(ChannelBuffers.wrappedBuffer(key.getBytes()));
+    }
+
+    private static LocalCacheElement element(String key, int size) {
+        LocalCacheElement element = new LocalCacheElement(key(key), 0, 0, 0L);
+        element.setData(ChannelBuffers.wrappedBuffer(new byte[size]));
+        return element;
+    }
+
+    private static SlabBlockStore store(int slabs) {
+        return new SlabBlockStore.SlabBlockStoreFactory(2.0, SLAB_SIZE).manufacture(slabs * SLAB_SIZE, BLOCK_SIZE);
+    }
+
+    private static int chunkSize(Region region) {
+        return region.usedBlocks * BLOCK_SIZE;
+    }
+}